@@ -0,0 +1,165 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Workload for the JMH benchmarks, declared in the default package so that it can call the
+ * server classes directly. Inputs are the serialized TestParams fixtures (when test_ser_data is
+ * present) followed by randomly generated viewports, route pairs, points and prefix streams.
+ */
+public class BearMapsWorkload implements bearmaps.bench.Workload {
+
+    private static final String OSM_DB_PATH = "berkeley.osm";
+    private static final String GRAPH_SNAPSHOT_PATH = "berkeley.graph";
+    private static final String TEST_PARAMS_PATH = "test_ser_data";
+
+    private GraphDB g;
+    private final List<Map<String, Double>> viewports = new ArrayList<>();
+    private final List<Map<String, Double>> routes = new ArrayList<>();
+    private final List<double[]> points = new ArrayList<>();
+    private final List<String> prefixes = new ArrayList<>();
+    // JMH threads share this workload, so each gets its own session, and its own png buffer
+    // reused so the raster benchmark measures rastering rather than growing a fresh buffer
+    private final ThreadLocal<Client> clients = ThreadLocal.withInitial(Client::new);
+
+    /** The state of one benchmark thread, standing in for one browser. */
+    private static class Client {
+        final String sessionToken = "bench-" + Thread.currentThread().getId();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(1 << 20);
+    }
+
+    @Override
+    public void setUp(long seed, int randomQueries) throws Exception {
+        MapServer.initialize();
+        // initialize() leaves a snapshot behind, so this second copy for nearest() is cheap
+        g = GraphSnapshot.read(new File(GRAPH_SNAPSHOT_PATH), new File(OSM_DB_PATH), false);
+        if (g == null) {
+            g = new GraphDB(OSM_DB_PATH);
+        }
+
+        File fixtures = new File(TEST_PARAMS_PATH);
+        if (fixtures.exists()) {
+            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fixtures))) {
+                @SuppressWarnings("unchecked")
+                List<TestParams> params = (List<TestParams>) ois.readObject();
+                for (TestParams p : params) {
+                    viewports.add(p.raster_params);
+                    routes.add(p.route_params);
+                    points.add(new double[]{p.route_params.get("start_lon"),
+                        p.route_params.get("start_lat")});
+                    addKeystrokes(p.prefix_search_param);
+                }
+            }
+        }
+
+        Random random = new Random(seed);
+        for (int i = 0; i < randomQueries; i++) {
+            viewports.add(randomViewport(random));
+            routes.add(randomRoute(random));
+            points.add(randomPoint(random));
+        }
+
+        // Type out random location names one keystroke at a time, like the search box does
+        List<String> words = g.autoComplete.getAutoSuggestions("");
+        for (int i = 0; i < randomQueries && !words.isEmpty(); i++) {
+            addKeystrokes(words.get(random.nextInt(words.size())));
+        }
+    }
+
+    private void addKeystrokes(String word) {
+        for (int length = 1; length <= word.length(); length++) {
+            prefixes.add(word.substring(0, length));
+        }
+    }
+
+    private static Map<String, Double> randomViewport(Random random) {
+        double rootWidth = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
+        double rootHeight = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        double w = 400 + random.nextInt(1600);
+        double h = 300 + random.nextInt(900);
+        // Zoom anywhere from the whole map down to the deepest tiles
+        double width = Math.min(rootWidth * Math.pow(0.5, random.nextInt(7)),
+                rootWidth * w / MapServer.TILE_SIZE);
+        double height = width * h / w;
+        double ullon = MapServer.ROOT_ULLON + random.nextDouble() * (rootWidth - width);
+        double ullat = MapServer.ROOT_ULLAT
+                - random.nextDouble() * Math.max(0, rootHeight - height);
+
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", ullon + width);
+        params.put("lrlat", ullat - height);
+        params.put("w", w);
+        params.put("h", h);
+        return params;
+    }
+
+    private static Map<String, Double> randomRoute(Random random) {
+        double[] start = randomPoint(random);
+        double[] end = randomPoint(random);
+        Map<String, Double> params = new HashMap<>();
+        params.put("start_lon", start[0]);
+        params.put("start_lat", start[1]);
+        params.put("end_lon", end[0]);
+        params.put("end_lat", end[1]);
+        return params;
+    }
+
+    private static double[] randomPoint(Random random) {
+        double lon = MapServer.ROOT_ULLON
+                + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+        double lat = MapServer.ROOT_LRLAT
+                + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+        return new double[]{lon, lat};
+    }
+
+    @Override
+    public int rasterCount() {
+        return viewports.size();
+    }
+
+    @Override
+    public int routeCount() {
+        return routes.size();
+    }
+
+    @Override
+    public int pointCount() {
+        return points.size();
+    }
+
+    @Override
+    public int prefixCount() {
+        return prefixes.size();
+    }
+
+    @Override
+    public Object raster(int i) {
+        Client client = clients.get();
+        client.os.reset();
+        return MapServer.getMapRaster(viewports.get(i), client.os, client.sessionToken);
+    }
+
+    @Override
+    public Object route(int i) {
+        return MapServer.findAndSetRoute(routes.get(i), clients.get().sessionToken);
+    }
+
+    @Override
+    public Object nearest(int i) {
+        double[] point = points.get(i);
+        return g.getNearestNode(point[0], point[1]);
+    }
+
+    @Override
+    public Object autocomplete(int i) {
+        return MapServer.getLocationsByPrefix(prefixes.get(i));
+    }
+}
@@ -0,0 +1,80 @@
+package bearmaps.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and sampled latency of the four request hot paths: getMapRaster, the route search,
+ * KdTree nearest node lookup and Trie autocomplete.
+ * Each invocation advances through the generated inputs, so a run covers every fixture and
+ * random query rather than hammering a single cached one.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class HotPathBenchmarks {
+
+    /** Shared, read-only server state; built once per trial because it is expensive. */
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param("42")
+        long seed;
+
+        @Param("256")
+        int randomQueries;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            workload = Workload.load();
+            workload.setUp(seed, randomQueries);
+        }
+    }
+
+    /** Per-thread position in the input streams. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int count) {
+            int i = next;
+            next = i + 1 == count ? 0 : i + 1;
+            return i;
+        }
+    }
+
+    @Benchmark
+    public Object raster(Server server, Cursor cursor) {
+        return server.workload.raster(cursor.next(server.workload.rasterCount()));
+    }
+
+    @Benchmark
+    public Object route(Server server, Cursor cursor) {
+        return server.workload.route(cursor.next(server.workload.routeCount()));
+    }
+
+    @Benchmark
+    public Object nearest(Server server, Cursor cursor) {
+        return server.workload.nearest(cursor.next(server.workload.pointCount()));
+    }
+
+    @Benchmark
+    public Object autocomplete(Server server, Cursor cursor) {
+        return server.workload.autocomplete(cursor.next(server.workload.prefixCount()));
+    }
+}
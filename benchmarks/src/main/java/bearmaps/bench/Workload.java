@@ -0,0 +1,46 @@
+package bearmaps.bench;
+
+/**
+ * Bridge between the benchmarks and the BearMaps server classes.
+ * JMH only accepts benchmarks declared in a named package, while the server classes live in the
+ * default package, which named packages cannot reference. The implementation, BearMapsWorkload,
+ * is therefore declared in the default package and loaded by name.
+ * Every query method takes an index that is wrapped around the generated inputs, and may be
+ * called from several benchmark threads at once.
+ */
+public interface Workload {
+
+    /**
+     * Initialize the server and generate the inputs.
+     * @param seed seed for the random viewports, route pairs and prefix streams
+     * @param randomQueries number of random inputs to generate per kind, on top of the fixtures
+     */
+    void setUp(long seed, int randomQueries) throws Exception;
+
+    /** Number of viewports, route pairs, nearest points and prefixes respectively. */
+    int rasterCount();
+
+    int routeCount();
+
+    int pointCount();
+
+    int prefixCount();
+
+    /** Raster viewport i into a png, returning the response parameters. */
+    Object raster(int i);
+
+    /** Find the route for route pair i, including snapping both ends to the graph. */
+    Object route(int i);
+
+    /** Find the graph node nearest to point i. */
+    Object nearest(int i);
+
+    /** Autocomplete prefix i. */
+    Object autocomplete(int i);
+
+    /** Load the default-package implementation. */
+    static Workload load() throws ReflectiveOperationException {
+        return (Workload) Class.forName("BearMapsWorkload")
+                .getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Frozen, compressed-sparse-row copy of the road graph.
+ * Every OSM id is mapped to a dense index 0..size()-1 (in increasing id order), coordinates are
+ * kept in parallel primitive arrays, and the neighbors of index i are the entries
+ * targets[offsets[i]] .. targets[offsets[i + 1] - 1].
+ * Built once from the adjacency map after GraphDB.clean() and never modified afterwards.
+ */
+public class CSRGraph {
+
+    final long[] ids;
+    final double[] lon;
+    final double[] lat;
+    final int[] offsets;
+    final int[] targets;
+    // Original Node objects, so that callers working with Nodes keep getting the same instances
+    final Node[] nodes;
+
+    public CSRGraph(Map<Node, ? extends Set<Node>> adjacency) {
+        int n = adjacency.size();
+        nodes = adjacency.keySet().toArray(new Node[n]);
+        Arrays.sort(nodes, (node1, node2) -> Long.compare(node1.id, node2.id));
+
+        ids = new long[n];
+        lon = new double[n];
+        lat = new double[n];
+        offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            ids[i] = nodes[i].id;
+            lon[i] = nodes[i].longitude;
+            lat[i] = nodes[i].latitude;
+            offsets[i + 1] = offsets[i] + adjacency.get(nodes[i]).size();
+        }
+
+        targets = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            int edge = offsets[i];
+            for (Node neighbor : adjacency.get(nodes[i])) {
+                targets[edge++] = indexOf(neighbor.id);
+            }
+        }
+    }
+
+    /**
+     * Wrap arrays that are already in CSR form, ie. read back by GraphSnapshot.
+     * Node objects are recreated from the ids and coordinates.
+     */
+    CSRGraph(long[] ids, double[] lon, double[] lat, int[] offsets, int[] targets) {
+        this.ids = ids;
+        this.lon = lon;
+        this.lat = lat;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.nodes = new Node[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            nodes[i] = new Node(ids[i], lon[i], lat[i]);
+        }
+    }
+
+    /** Number of vertices in the graph. */
+    public int size() {
+        return ids.length;
+    }
+
+    /** Number of directed edges, ie. twice the number of road segments. */
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * Binary search for the dense index of an OSM id.
+     * @return the index, or -1 if the id is not a vertex of the graph
+     */
+    public int indexOf(long id) {
+        int index = Arrays.binarySearch(ids, id);
+        return index < 0 ? -1 : index;
+    }
+
+    public Node node(int index) {
+        return nodes[index];
+    }
+
+    public int degree(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /** Euclidean distance in lon/lat units between two vertices. */
+    public double distance(int from, int to) {
+        double dx = lon[to] - lon[from];
+        double dy = lat[to] - lat[from];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * View over the neighbors of a vertex as Nodes. Iterating only walks the CSR arrays.
+     */
+    public Iterable<Node> neighbors(int index) {
+        return () -> new Iterator<Node>() {
+            private int edge = offsets[index];
+
+            @Override
+            public boolean hasNext() {
+                return edge < offsets[index + 1];
+            }
+
+            @Override
+            public Node next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return nodes[targets[edge++]];
+            }
+        };
+    }
+}
@@ -0,0 +1,691 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * Contraction Hierarchies over a frozen CSRGraph.
+ * Preprocessing contracts the vertices one at a time, least important first, adding a shortcut
+ * between two neighbors of the contracted vertex whenever the route through it is the only
+ * shortest one. Every vertex then keeps only its edges to more important vertices, and a query
+ * is a bidirectional Dijkstra that only ever goes up the hierarchy, which settles a few hundred
+ * vertices even on a metro sized graph. Shortcuts remember the vertex they bypass, so routes are
+ * unpacked back into graph vertices.
+ * <p>
+ * Preprocessing is too slow for server startup on large graphs, so it runs offline through
+ * main() and the overlay is persisted next to the graph snapshot:
+ * <pre>
+ *   int magic, int version, int n, long graph checksum, int m,
+ *   int[n] rank, int[n + 1] upOffsets, int[m] upTargets, double[m] upWeights, int[m] upMiddle
+ * </pre>
+ * </p>
+ */
+public class ContractionHierarchy {
+
+    private static final int MAGIC = 0x4B4D4348;   // "KMCH"
+    static final int VERSION = 1;
+    /** Witness searches give up after settling this many vertices and add the shortcut. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+
+    private final CSRGraph graph;
+    // Contraction order of every vertex, 0 being contracted first
+    final int[] rank;
+    // The upward edges of u are upTargets[upOffsets[u]] .. [upOffsets[u + 1] - 1], to vertices of
+    // higher rank, with their weights and the vertex a shortcut bypasses, or -1 for graph edges
+    final int[] upOffsets;
+    final int[] upTargets;
+    final double[] upWeights;
+    final int[] upMiddle;
+    private final ThreadLocal<QuerySpace[]> querySpaces;
+
+    ContractionHierarchy(CSRGraph graph, int[] rank, int[] upOffsets, int[] upTargets,
+                         double[] upWeights, int[] upMiddle) {
+        this.graph = graph;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddle = upMiddle;
+        this.querySpaces = ThreadLocal.withInitial(() -> new QuerySpace[]{
+            new QuerySpace(graph.size()), new QuerySpace(graph.size())});
+    }
+
+    /** Number of upward edges, graph edges and shortcuts. */
+    public int edgeCount() {
+        return upTargets.length;
+    }
+
+    /**
+     * @return the number of vertices settled by the last query of the calling thread, counting
+     * both directions
+     */
+    public int lastExpansionCount() {
+        return querySpaces.get()[0].expansions;
+    }
+
+    /**
+     * Get the shortest route from the start vertex to the end vertex.
+     * @param start dense index of the start vertex in the CSRGraph
+     * @param end dense index of the end vertex in the CSRGraph
+     * @return the node ids of the route, beginning with the end node and walking back to the
+     * start node, or an empty list if end is unreachable
+     */
+    public LinkedList<Long> shortestPath(int start, int end) {
+        if (start < 0 || end < 0) {
+            return new LinkedList<>();
+        }
+        QuerySpace[] spaces = querySpaces.get();
+        QuerySpace forward = spaces[0];
+        QuerySpace backward = spaces[1];
+        forward.expansions = 0;
+        try {
+            forward.relax(start, 0.0, -1, -1);
+            forward.heap.insert(start, 0.0);
+            backward.relax(end, 0.0, -1, -1);
+            backward.heap.insert(end, 0.0);
+
+            double best = Double.POSITIVE_INFINITY;
+            int meet = -1;
+            while (true) {
+                // A direction is done once its smallest distance cannot improve the best route
+                boolean forwardOpen = !forward.heap.isEmpty() && forward.heap.minKey() < best;
+                boolean backwardOpen = !backward.heap.isEmpty() && backward.heap.minKey() < best;
+                if (!forwardOpen && !backwardOpen) {
+                    break;
+                }
+                boolean isForward = forwardOpen
+                        && (!backwardOpen || forward.heap.minKey() <= backward.heap.minKey());
+                QuerySpace space = isForward ? forward : backward;
+                QuerySpace other = isForward ? backward : forward;
+
+                int current = space.heap.poll();
+                forward.expansions++;
+                double distance = space.distance[current];
+                if (distance + other.distance[current] < best) {
+                    best = distance + other.distance[current];
+                    meet = current;
+                }
+
+                for (int edge = upOffsets[current]; edge < upOffsets[current + 1]; edge++) {
+                    int neighbor = upTargets[edge];
+                    double tentative = distance + upWeights[edge];
+                    if (tentative < space.distance[neighbor]) {
+                        space.relax(neighbor, tentative, current, edge);
+                        space.heap.insertOrDecrease(neighbor, tentative);
+                    }
+                }
+            }
+
+            if (meet < 0) {
+                return new LinkedList<>();
+            }
+            return unpackPath(forward, backward, meet);
+        } finally {
+            forward.reset();
+            backward.reset();
+        }
+    }
+
+    /**
+     * Road distances from every source to every target with the bucket method: one upward
+     * search from each target leaves its distance in a bucket at every vertex it reaches, then
+     * one upward search from each source combines its distance to every vertex it reaches with
+     * the buckets there. Both rounds run on the common fork join pool.
+     * @param sources dense indices of the source vertices, or -1 for none
+     * @param targets dense indices of the target vertices, or -1 for none
+     * @return matrix[i][j], the distance from sources[i] to targets[j], or infinity if there
+     * is no route
+     */
+    public double[][] distanceMatrix(int[] sources, int[] targets) {
+        int n = graph.size();
+        int[][] reachedVertex = new int[targets.length][];
+        double[][] reachedDistance = new double[targets.length][];
+        IntStream.range(0, targets.length).parallel().forEach(j -> {
+            QuerySpace space = querySpaces.get()[1];
+            try {
+                if (targets[j] >= 0) {
+                    upwardSearch(space, targets[j]);
+                }
+                reachedVertex[j] = Arrays.copyOf(space.touched, space.touchedCount);
+                reachedDistance[j] = new double[space.touchedCount];
+                for (int k = 0; k < space.touchedCount; k++) {
+                    reachedDistance[j][k] = space.distance[space.touched[k]];
+                }
+            } finally {
+                space.reset();
+            }
+        });
+
+        // Buckets in CSR form: the entries of vertex v are bucketTarget/Distance[bucketOffsets[v]]
+        // .. [bucketOffsets[v + 1] - 1]
+        int[] bucketOffsets = new int[n + 1];
+        for (int[] vertices : reachedVertex) {
+            for (int v : vertices) {
+                bucketOffsets[v + 1]++;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            bucketOffsets[v + 1] += bucketOffsets[v];
+        }
+        int[] bucketTarget = new int[bucketOffsets[n]];
+        double[] bucketDistance = new double[bucketOffsets[n]];
+        int[] cursor = Arrays.copyOf(bucketOffsets, n);
+        for (int j = 0; j < targets.length; j++) {
+            for (int k = 0; k < reachedVertex[j].length; k++) {
+                int slot = cursor[reachedVertex[j][k]]++;
+                bucketTarget[slot] = j;
+                bucketDistance[slot] = reachedDistance[j][k];
+            }
+        }
+
+        double[][] matrix = new double[sources.length][targets.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            double[] row = matrix[i];
+            Arrays.fill(row, Double.POSITIVE_INFINITY);
+            if (sources[i] < 0) {
+                return;
+            }
+            QuerySpace space = querySpaces.get()[0];
+            try {
+                upwardSearch(space, sources[i]);
+                for (int k = 0; k < space.touchedCount; k++) {
+                    int u = space.touched[k];
+                    double du = space.distance[u];
+                    for (int b = bucketOffsets[u]; b < bucketOffsets[u + 1]; b++) {
+                        double route = du + bucketDistance[b];
+                        if (route < row[bucketTarget[b]]) {
+                            row[bucketTarget[b]] = route;
+                        }
+                    }
+                }
+            } finally {
+                space.reset();
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Exhaustive Dijkstra from source over the upward edges, leaving the exact upward distance
+     * of every vertex it reaches in space.distance and the vertices in space.touched.
+     */
+    private void upwardSearch(QuerySpace space, int source) {
+        space.relax(source, 0.0, -1, -1);
+        space.heap.insert(source, 0.0);
+        while (!space.heap.isEmpty()) {
+            int current = space.heap.poll();
+            double distance = space.distance[current];
+            for (int edge = upOffsets[current]; edge < upOffsets[current + 1]; edge++) {
+                int neighbor = upTargets[edge];
+                double tentative = distance + upWeights[edge];
+                if (tentative < space.distance[neighbor]) {
+                    space.relax(neighbor, tentative, current, edge);
+                    space.heap.insertOrDecrease(neighbor, tentative);
+                }
+            }
+        }
+    }
+
+    /**
+     * Expand the up-then-down route through meet into graph vertices, in the order of the
+     * other route searches: from the end back to the start.
+     */
+    private LinkedList<Long> unpackPath(QuerySpace forward, QuerySpace backward, int meet) {
+        LinkedList<Long> path = new LinkedList<>();
+        // Forward half, meet back to the start
+        path.add(graph.ids[meet]);
+        for (int current = meet; forward.parent[current] >= 0;
+             current = forward.parent[current]) {
+            unpackEdge(current, forward.parent[current],
+                    upMiddle[forward.parentEdge[current]], path, false);
+        }
+        // Backward half, meet on to the end, put in front
+        for (int current = meet; backward.parent[current] >= 0;
+             current = backward.parent[current]) {
+            unpackEdge(current, backward.parent[current],
+                    upMiddle[backward.parentEdge[current]], path, true);
+        }
+        return path;
+    }
+
+    /**
+     * Append (or prepend) the vertices of the edge from..to after from, up to and including to,
+     * recursively replacing every shortcut by the two edges it bypasses.
+     */
+    private void unpackEdge(int from, int to, int middle, LinkedList<Long> path,
+                            boolean prepend) {
+        if (middle < 0) {
+            if (prepend) {
+                path.addFirst(graph.ids[to]);
+            } else {
+                path.add(graph.ids[to]);
+            }
+            return;
+        }
+        // The bypassed vertex was contracted first, so both halves are its upward edges
+        unpackEdge(from, middle, upMiddle[upEdge(middle, from)], path, prepend);
+        unpackEdge(middle, to, upMiddle[upEdge(middle, to)], path, prepend);
+    }
+
+    private int upEdge(int from, int to) {
+        for (int edge = upOffsets[from]; edge < upOffsets[from + 1]; edge++) {
+            if (upTargets[edge] == to) {
+                return edge;
+            }
+        }
+        throw new IllegalStateException("No upward edge " + from + " -> " + to);
+    }
+
+    /**
+     * Per-thread state of one query direction, reset after each query by walking only the
+     * vertices the query touched.
+     */
+    private static class QuerySpace {
+        final double[] distance;
+        final int[] parent;
+        final int[] parentEdge;
+        final IndexedMinHeap heap;
+        final int[] touched;
+        int touchedCount;
+        int expansions;
+
+        QuerySpace(int size) {
+            distance = new double[size];
+            parent = new int[size];
+            parentEdge = new int[size];
+            heap = new IndexedMinHeap(size);
+            touched = new int[size];
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            Arrays.fill(parent, -1);
+        }
+
+        void relax(int vertex, double d, int from, int edge) {
+            if (distance[vertex] == Double.POSITIVE_INFINITY) {
+                touched[touchedCount++] = vertex;
+            }
+            distance[vertex] = d;
+            parent[vertex] = from;
+            parentEdge[vertex] = edge;
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int vertex = touched[i];
+                distance[vertex] = Double.POSITIVE_INFINITY;
+                parent[vertex] = -1;
+            }
+            touchedCount = 0;
+            heap.clear();
+        }
+    }
+
+    /**
+     * Contract every vertex of the graph. Vertices are ordered by their edge difference (the
+     * shortcuts contracting them would add minus the edges it would remove) plus the number of
+     * their neighbors already contracted, which spreads contraction evenly over the map.
+     * Priorities are updated lazily and for the neighbors of every contracted vertex.
+     */
+    public static ContractionHierarchy build(CSRGraph graph) {
+        return new Builder(graph).build();
+    }
+
+    private static final class Builder {
+        private final CSRGraph graph;
+        private final int n;
+        // Remaining graph: edges between uncontracted vertices, with shortcut middles
+        private final int[][] to;
+        private final double[][] weight;
+        private final int[][] middle;
+        private final int[] degree;
+        private final int[] contractedNeighbors;
+        private final boolean[] contracted;
+
+        // Witness search state
+        private final double[] distance;
+        private final int[] touched;
+        private int touchedCount;
+        private final IndexedMinHeap heap;
+
+        // Shortcuts found by the last contract() call
+        private int shortcutCount;
+        private int[] shortcutFrom = new int[16];
+        private int[] shortcutTo = new int[16];
+        private double[] shortcutWeight = new double[16];
+
+        Builder(CSRGraph graph) {
+            this.graph = graph;
+            n = graph.size();
+            to = new int[n][];
+            weight = new double[n][];
+            middle = new int[n][];
+            degree = new int[n];
+            for (int u = 0; u < n; u++) {
+                int d = graph.degree(u);
+                to[u] = new int[Math.max(d, 2)];
+                weight[u] = new double[to[u].length];
+                middle[u] = new int[to[u].length];
+                for (int edge = graph.offsets[u]; edge < graph.offsets[u + 1]; edge++) {
+                    int v = graph.targets[edge];
+                    if (v != u) {
+                        addOrImprove(u, v, graph.distance(u, v), -1);
+                    }
+                }
+            }
+            contractedNeighbors = new int[n];
+            contracted = new boolean[n];
+            distance = new double[n];
+            Arrays.fill(distance, Double.POSITIVE_INFINITY);
+            touched = new int[n];
+            heap = new IndexedMinHeap(n);
+        }
+
+        ContractionHierarchy build() {
+            IndexedMinHeap order = new IndexedMinHeap(n);
+            for (int v = 0; v < n; v++) {
+                order.insert(v, priority(v));
+            }
+
+            int[] rank = new int[n];
+            int[][] upTo = new int[n][];
+            double[][] upWeight = new double[n][];
+            int[][] upMiddle = new int[n][];
+            int next = 0;
+            while (!order.isEmpty()) {
+                int v = order.poll();
+                // Lazy update: contract v only if it is still the least important vertex
+                double p = priority(v);
+                if (!order.isEmpty() && p > order.minKey()) {
+                    order.insert(v, p);
+                    continue;
+                }
+
+                rank[v] = next++;
+                upTo[v] = Arrays.copyOf(to[v], degree[v]);
+                upWeight[v] = Arrays.copyOf(weight[v], degree[v]);
+                upMiddle[v] = Arrays.copyOf(middle[v], degree[v]);
+
+                contract(v, false);
+                contracted[v] = true;
+                for (int i = 0; i < degree[v]; i++) {
+                    int u = to[v][i];
+                    remove(u, v);
+                    contractedNeighbors[u]++;
+                }
+                for (int i = 0; i < shortcutCount; i++) {
+                    addOrImprove(shortcutFrom[i], shortcutTo[i], shortcutWeight[i], v);
+                    addOrImprove(shortcutTo[i], shortcutFrom[i], shortcutWeight[i], v);
+                }
+                for (int i = 0; i < degree[v]; i++) {
+                    int u = to[v][i];
+                    order.update(u, priority(u));
+                }
+                // v keeps its edges only in the upward copy
+                to[v] = null;
+                weight[v] = null;
+                middle[v] = null;
+                degree[v] = 0;
+            }
+
+            int[] upOffsets = new int[n + 1];
+            for (int u = 0; u < n; u++) {
+                upOffsets[u + 1] = upOffsets[u] + upTo[u].length;
+            }
+            int m = upOffsets[n];
+            int[] targets = new int[m];
+            double[] weights = new double[m];
+            int[] middles = new int[m];
+            for (int u = 0; u < n; u++) {
+                System.arraycopy(upTo[u], 0, targets, upOffsets[u], upTo[u].length);
+                System.arraycopy(upWeight[u], 0, weights, upOffsets[u], upTo[u].length);
+                System.arraycopy(upMiddle[u], 0, middles, upOffsets[u], upTo[u].length);
+            }
+            return new ContractionHierarchy(graph, rank, upOffsets, targets, weights, middles);
+        }
+
+        private double priority(int v) {
+            contract(v, true);
+            return shortcutCount - degree[v] + contractedNeighbors[v];
+        }
+
+        /**
+         * Find the shortcuts needed to contract v into shortcutFrom/To/Weight: for every pair
+         * of neighbors u, w, the route u - v - w unless a witness search from u that avoids v
+         * finds one at most as long.
+         * @param simulate only count the shortcuts, ie. to compute a priority
+         */
+        private void contract(int v, boolean simulate) {
+            shortcutCount = 0;
+            int d = degree[v];
+            // The last neighbor has no pair left; routes of length 0, between duplicate
+            // vertices, still need their shortcuts
+            for (int i = 0; i < d - 1; i++) {
+                int u = to[v][i];
+                double maxRoute = 0;
+                for (int j = i + 1; j < d; j++) {
+                    maxRoute = Math.max(maxRoute, weight[v][i] + weight[v][j]);
+                }
+                witnessSearch(u, v, maxRoute);
+                for (int j = i + 1; j < d; j++) {
+                    int w = to[v][j];
+                    double route = weight[v][i] + weight[v][j];
+                    if (distance[w] > route) {
+                        addShortcut(u, w, route);
+                    }
+                }
+                resetWitnessSearch();
+            }
+        }
+
+        private void addShortcut(int u, int w, double route) {
+            if (shortcutCount == shortcutFrom.length) {
+                shortcutFrom = Arrays.copyOf(shortcutFrom, 2 * shortcutCount);
+                shortcutTo = Arrays.copyOf(shortcutTo, 2 * shortcutCount);
+                shortcutWeight = Arrays.copyOf(shortcutWeight, 2 * shortcutCount);
+            }
+            shortcutFrom[shortcutCount] = u;
+            shortcutTo[shortcutCount] = w;
+            shortcutWeight[shortcutCount] = route;
+            shortcutCount++;
+        }
+
+        /** Dijkstra from source in the remaining graph without via, up to maxDistance. */
+        private void witnessSearch(int source, int via, double maxDistance) {
+            distance[source] = 0;
+            touched[touchedCount++] = source;
+            heap.insert(source, 0);
+            int settled = 0;
+            while (!heap.isEmpty() && heap.minKey() <= maxDistance
+                    && settled < WITNESS_SETTLE_LIMIT) {
+                int current = heap.poll();
+                settled++;
+                for (int i = 0; i < degree[current]; i++) {
+                    int neighbor = to[current][i];
+                    if (neighbor == via) {
+                        continue;
+                    }
+                    double tentative = distance[current] + weight[current][i];
+                    if (tentative < distance[neighbor]) {
+                        if (distance[neighbor] == Double.POSITIVE_INFINITY) {
+                            touched[touchedCount++] = neighbor;
+                        }
+                        distance[neighbor] = tentative;
+                        heap.insertOrDecrease(neighbor, tentative);
+                    }
+                }
+            }
+        }
+
+        private void resetWitnessSearch() {
+            for (int i = 0; i < touchedCount; i++) {
+                distance[touched[i]] = Double.POSITIVE_INFINITY;
+            }
+            touchedCount = 0;
+            heap.clear();
+        }
+
+        private void addOrImprove(int u, int v, double w, int via) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (to[u][i] == v) {
+                    if (w < weight[u][i]) {
+                        weight[u][i] = w;
+                        middle[u][i] = via;
+                    }
+                    return;
+                }
+            }
+            if (degree[u] == to[u].length) {
+                int capacity = 2 * to[u].length;
+                to[u] = Arrays.copyOf(to[u], capacity);
+                weight[u] = Arrays.copyOf(weight[u], capacity);
+                middle[u] = Arrays.copyOf(middle[u], capacity);
+            }
+            to[u][degree[u]] = v;
+            weight[u][degree[u]] = w;
+            middle[u][degree[u]] = via;
+            degree[u]++;
+        }
+
+        private void remove(int u, int v) {
+            for (int i = 0; i < degree[u]; i++) {
+                if (to[u][i] == v) {
+                    int last = --degree[u];
+                    to[u][i] = to[u][last];
+                    weight[u][i] = weight[u][last];
+                    middle[u][i] = middle[u][last];
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a hierarchy through a memory-mapped FileChannel.
+     * @param file the file written by write()
+     * @param graph the graph the hierarchy must have been built over
+     * @return the hierarchy, or null if the file is missing, unreadable or for another graph
+     */
+    public static ContractionHierarchy read(File file, CSRGraph graph) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            int n = in.getInt();
+            if (n != graph.size() || in.getLong() != checksum(graph)) {
+                return null;
+            }
+            int m = in.getInt();
+            int[] rank = readInts(in, n);
+            int[] upOffsets = readInts(in, n + 1);
+            int[] upTargets = readInts(in, m);
+            double[] upWeights = new double[m];
+            in.asDoubleBuffer().get(upWeights);
+            skip(in, m * Double.BYTES);
+            int[] upMiddle = readInts(in, m);
+            return new ContractionHierarchy(graph, rank, upOffsets, upTargets, upWeights,
+                    upMiddle);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write the hierarchy, through a temporary file moved into place like GraphSnapshot.
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(graph.size());
+            out.writeLong(checksum(graph));
+            out.writeInt(upTargets.length);
+            for (int r : rank) {
+                out.writeInt(r);
+            }
+            for (int offset : upOffsets) {
+                out.writeInt(offset);
+            }
+            for (int target : upTargets) {
+                out.writeInt(target);
+            }
+            for (double w : upWeights) {
+                out.writeDouble(w);
+            }
+            for (int m : upMiddle) {
+                out.writeInt(m);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Fingerprint of the ids and edges of a graph, so a stale hierarchy is never used. */
+    private static long checksum(CSRGraph graph) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8];
+        for (long id : graph.ids) {
+            for (int i = 0; i < 8; i++) {
+                buffer[i] = (byte) (id >>> (8 * i));
+            }
+            crc.update(buffer, 0, 8);
+        }
+        for (int target : graph.targets) {
+            for (int i = 0; i < 4; i++) {
+                buffer[i] = (byte) (target >>> (8 * i));
+            }
+            crc.update(buffer, 0, 4);
+        }
+        return crc.getValue() ^ ((long) graph.edgeCount() << 32);
+    }
+
+    private static int[] readInts(MappedByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        skip(in, count * Integer.BYTES);
+        return values;
+    }
+
+    // The typed views read from a copy of the position, so advance the buffer past what they read
+    private static void skip(Buffer in, int bytes) {
+        in.position(in.position() + bytes);
+    }
+
+    /**
+     * Offline build: load the graph the way the server does and write its hierarchy.
+     * Usage: ContractionHierarchy [osm file] [hierarchy file]
+     */
+    public static void main(String[] args) throws IOException {
+        String osmPath = args.length > 0 ? args[0] : MapServer.OSM_DB_PATH;
+        String chPath = args.length > 1 ? args[1] : MapServer.CH_PATH;
+        GraphDB g = GraphSnapshot.read(new File(MapServer.GRAPH_SNAPSHOT_PATH), new File(osmPath),
+                MapServer.HIGHWAYS_ONLY);
+        if (g == null) {
+            g = new GraphDB(osmPath, MapServer.HIGHWAYS_ONLY);
+        }
+
+        long startTime = System.nanoTime();
+        ContractionHierarchy ch = build(g.graph);
+        long duration = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Contraction hierarchy build time: " + duration + "ms, "
+                + g.graph.size() + " vertices, " + g.graph.edgeCount() / 2 + " edges, "
+                + ch.edgeCount() + " upward edges");
+        ch.write(new File(chPath));
+    }
+}
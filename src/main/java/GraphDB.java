@@ -4,43 +4,94 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 /**
- * Wraps the parsing functionality of the MapDBHandler as an example.
+ * Wraps the parsing functionality of the MapDBHandler, run through the OSMIngestPipeline.
  * You may choose to add to the functionality of this class if you wish.
  * @author Alan Yao
  */
 public class GraphDB {
 
+    // Mutable adjacency and id lookup used only while parsing; released once graph is frozen
     public HashMap<Node, HashSet<Node>> mapGraph;
     public HashMap<Long, Node> idMap;
+    public CSRGraph graph;
     public HashMap<String, LinkedList<Node>> nodeNameMap;
-    private KdTree nearestKdTree;
+    KdTree nearestKdTree;
+    private SegmentIndex roadSegments;
     public Trie autoComplete;
     double minlon, minlat, maxlon, maxlat;
+    final boolean highwaysOnly;
+    /** Number of ranked completions precomputed for every prefix. */
+    static final int TOP_SUGGESTIONS = 10;
 
     /**
      * Example constructor shows how to create and start an XML parser.
      * @param db_path Path to the XML file to be parsed.
      */
     public GraphDB(String db_path) {
+        this(db_path, false);
+    }
+
+    /**
+     * @param db_path Path to the XML file to be parsed.
+     * @param highwaysOnly if true, parse the file twice: first to find the nodes on allowed
+     *                     highways, then to load only those nodes (plus named locations for
+     *                     search) and only the highway ways as edges. Peak memory no longer
+     *                     holds every building vertex in the file, but the graph then also
+     *                     excludes the non-highway ways that the default mode connects.
+     */
+    public GraphDB(String db_path, boolean highwaysOnly) {
+        this.highwaysOnly = highwaysOnly;
         mapGraph = new HashMap<>();
         idMap = new HashMap<>();
         autoComplete = new Trie();
         nodeNameMap = new HashMap<>();
         try {
             File inputFile = new File(db_path);
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            MapDBHandler maphandler = new MapDBHandler(this);
-            saxParser.parse(inputFile, maphandler);
+            LongHashSet highwayNodes = null;
+            if (highwaysOnly) {
+                highwayNodes = HighwayNodeCollector.collect(inputFile);
+            }
+            // Tokenizing, decoding and graph assembly run as separate stages on their own threads
+            OSMIngestPipeline pipeline =
+                    new OSMIngestPipeline(new MapDBHandler(this, highwayNodes));
+            pipeline.parse(inputFile);
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
         }
         clean();
-        nearestKdTree = new KdTree(mapGraph.keySet());
+        freeze();
+        rankAutoComplete();
+        nearestKdTree = new KdTree(graph.nodes);
+        roadSegments = new SegmentIndex(graph);
+    }
+
+    /**
+     * Rebuild a GraphDB from already cleaned and frozen data, ie. read back by GraphSnapshot.
+     * @param graph the frozen road graph
+     * @param nodeNameMap cleaned name to the named locations, in OSM file order
+     * @param words the cleaned names in the order they should be inserted into the Trie
+     * @param bounds {minlon, minlat, maxlon, maxlat}
+     * @param highwaysOnly whether graph was parsed in highways-only mode
+     * @param kdOrder the layout of the KdTree over graph.nodes
+     */
+    GraphDB(CSRGraph graph, HashMap<String, LinkedList<Node>> nodeNameMap,
+            Iterable<String> words, double[] bounds, boolean highwaysOnly, int[] kdOrder) {
+        this.highwaysOnly = highwaysOnly;
+        this.graph = graph;
+        this.nodeNameMap = nodeNameMap;
+        this.autoComplete = new Trie();
+        for (String word : words) {
+            autoComplete.insert(word);
+        }
+        rankAutoComplete();
+        minlon = bounds[0];
+        minlat = bounds[1];
+        maxlon = bounds[2];
+        maxlat = bounds[3];
+        nearestKdTree = new KdTree(graph.nodes, kdOrder);
+        roadSegments = new SegmentIndex(graph);
     }
 
     public void putNode(Node node) {
@@ -62,18 +113,23 @@ public class GraphDB {
         mapGraph.get(dest).add(source);
     }
 
-    public HashSet<Node> getNeighbors(Node key) {
-        return mapGraph.get(key);
+    /**
+     * @return the neighbors of a graph Node, or null if the node is not part of the road graph
+     */
+    public Iterable<Node> getNeighbors(Node key) {
+        int index = graph.indexOf(key.id);
+        return index < 0 ? null : graph.neighbors(index);
     }
 
     /**
-     * idMap function to access the HashMap
+     * Look up a graph Node by its OSM id in the frozen CSR graph
      *
      * @param id
-     * @return
+     * @return the Node, or null if the id is not part of the road graph
      */
     public Node getNodeByID(long id) {
-        return idMap.get(id);
+        int index = graph.indexOf(id);
+        return index < 0 ? null : graph.node(index);
     }
 
     /**
@@ -84,9 +140,48 @@ public class GraphDB {
      * @return
      */
     public Node getNearestNode(double lon, double lat) {
-        Node target = new Node(0, lon, lat);
-        double[] boundingBox = {minlon, minlat, maxlon, maxlat};
-        return nearestKdTree.nearest(target, boundingBox);
+        return nearestKdTree.nearest(lon, lat);
+    }
+
+    /**
+     * kdTree function to get the graph index of the nearest neighboring Node, without allocating
+     *
+     * @return the index into graph of the nearest node, or -1 if the graph is empty
+     */
+    public int getNearestIndex(double lon, double lat) {
+        return nearestKdTree.nearestIndex(lon, lat);
+    }
+
+    /**
+     * Snap a point onto the nearest point of any road segment
+     *
+     * @return the snapped point, or null if the graph has no edges or the point is not finite
+     */
+    public SegmentIndex.Snap getNearestSegment(double lon, double lat) {
+        return roadSegments.nearest(lon, lat);
+    }
+
+    /**
+     * kdTree function to get the k nearest neighboring Nodes, nearest first
+     */
+    public List<Node> getNearestNodes(double lon, double lat, int k) {
+        return nearestKdTree.kNearest(lon, lat, k);
+    }
+
+    /**
+     * kdTree function to get the Nodes within radius (in degrees) of a point, nearest first
+     */
+    public List<Node> getNodesWithinRadius(double lon, double lat, double radius) {
+        return nearestKdTree.withinRadius(lon, lat, radius);
+    }
+
+    /**
+     * kdTree function to get the graph indices of the nearest Nodes of many points at once
+     *
+     * @return for every point i, the index into graph of the node nearest to (lons[i], lats[i])
+     */
+    public int[] getNearestIndices(double[] lons, double[] lats) {
+        return nearestKdTree.nearestIndices(lons, lats);
     }
 
     /**
@@ -111,6 +206,36 @@ public class GraphDB {
         return actualNames;
     }
 
+    /**
+     * Rank names by how many locations share them, so that chains and common landmarks come
+     * first, and cache the best TOP_SUGGESTIONS completions of every prefix.
+     */
+    private void rankAutoComplete() {
+        autoComplete.rank(TOP_SUGGESTIONS, name -> {
+            LinkedList<Node> locations = nodeNameMap.get(name);
+            return locations == null ? 0 : locations.size();
+        });
+    }
+
+    /**
+     * Trie function to get the k best ranked auto-complete words, best first
+     */
+    public List<String> getTopAutoCompleteSuggestions(String query, int k) {
+        List<String> cleanNames = autoComplete.topSuggestions(cleanString(query), k);
+
+        if (cleanNames == null) return null;
+
+        List<String> actualNames = new ArrayList<>(cleanNames.size());
+        for (String name : cleanNames) {
+            LinkedList<Node> locations = nodeNameMap.get(name);
+            if (locations != null) {
+                actualNames.add(locations.getFirst().name);
+            }
+        }
+
+        return actualNames;
+    }
+
     public LinkedList<Map<String, Object>> getLocationData(String query) {
         LinkedList<Map<String, Object>> locationData = new LinkedList<>();
         LinkedList<String> matchingLocations = new LinkedList<>();
@@ -154,13 +279,34 @@ public class GraphDB {
 //        System.out.println("total nodes: " + mapGraph.keySet().size());
     }
 
+    /**
+     * Convert the cleaned adjacency map into the compact CSRGraph and drop the hash based
+     * structures, which cost well over 100 bytes per edge.
+     */
+    private void freeze() {
+        graph = new CSRGraph(mapGraph);
+        mapGraph = null;
+        idMap = null;
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        // Equivalent to s.replaceAll("[^a-zA-Z ]", "").toLowerCase() without compiling a regex
+        char[] cleaned = new char[s.length()];
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z' || c == ' ') {
+                cleaned[length++] = c;
+            } else if (c >= 'A' && c <= 'Z') {
+                cleaned[length++] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(cleaned, 0, length);
     }
 
 }
@@ -0,0 +1,275 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Versioned binary snapshot of a cleaned GraphDB, so that a server restart can skip the OSM
+ * parse. The snapshot records the length and modification time of the OSM file it was built
+ * from and is considered stale once either changes.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ *   int magic, int version, long sourceLength, long sourceLastModified, byte highwaysOnly,
+ *   double minlon, minlat, maxlon, maxlat,
+ *   int n, int m, long[n] ids, double[n] lon, double[n] lat, byte[n] isHighway,
+ *   int[n + 1] offsets, int[m] targets, int[n] KdTree order,
+ *   int wordCount, string[wordCount] trie words in insertion order,
+ *   int nameCount, { string cleanName, int count, { long id, double lon, double lat,
+ *   string name }[count] }[nameCount]
+ * </pre>
+ * where a string is an int byte length followed by its UTF-8 bytes.
+ * </p>
+ */
+public class GraphSnapshot {
+
+    private static final int MAGIC = 0x4B4D4150;   // "KMAP"
+    static final int VERSION = 3;
+
+    /**
+     * Read a snapshot through a memory-mapped FileChannel.
+     * @param snapshot the snapshot file
+     * @param source the OSM file the snapshot must have been built from
+     * @param highwaysOnly the ingest mode the snapshot must have been built with
+     * @return the loaded GraphDB, or null if the snapshot is missing, stale or unreadable
+     */
+    public static GraphDB read(File snapshot, File source, boolean highwaysOnly) {
+        if (!snapshot.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            long sourceLength = in.getLong();
+            long sourceLastModified = in.getLong();
+            // A deploy may ship only the snapshot, in which case there is nothing to compare to
+            if (source.exists() && (source.length() != sourceLength
+                    || source.lastModified() != sourceLastModified)) {
+                return null;
+            }
+            if ((in.get() != 0) != highwaysOnly) {
+                return null;
+            }
+            double[] bounds = readDoubles(in, 4);
+
+            // Every vertex takes an id, two coordinates, a flag, an offset and a KdTree slot
+            int n = readCount(in, 3 * Long.BYTES + 1 + 2 * Integer.BYTES);
+            int m = readCount(in, Integer.BYTES);
+            long[] ids = new long[n];
+            in.asLongBuffer().get(ids);
+            skip(in, n * Long.BYTES);
+            double[] lon = readDoubles(in, n);
+            double[] lat = readDoubles(in, n);
+            byte[] highway = new byte[n];
+            in.get(highway);
+            int[] offsets = readInts(in, n + 1);
+            int[] targets = readInts(in, m);
+            int[] kdOrder = readInts(in, n);
+            checkGraph(ids, lon, lat, offsets, targets, kdOrder);
+            CSRGraph graph = new CSRGraph(ids, lon, lat, offsets, targets);
+            for (int i = 0; i < n; i++) {
+                graph.nodes[i].isHighway = highway[i] != 0;
+            }
+
+            int wordCount = readCount(in, Integer.BYTES);
+            List<String> words = new ArrayList<>(wordCount);
+            for (int i = 0; i < wordCount; i++) {
+                words.add(readString(in));
+            }
+
+            int nameCount = readCount(in, 2 * Integer.BYTES);
+            HashMap<String, LinkedList<Node>> nodeNameMap = new HashMap<>();
+            for (int i = 0; i < nameCount; i++) {
+                String cleanName = readString(in);
+                int count = readCount(in, 3 * Long.BYTES + Integer.BYTES);
+                LinkedList<Node> locations = new LinkedList<>();
+                for (int j = 0; j < count; j++) {
+                    long id = in.getLong();
+                    double nodeLon = in.getDouble();
+                    double nodeLat = in.getDouble();
+                    String name = readString(in);
+                    // Named intersections are also graph vertices; keep a single Node for them
+                    int index = graph.indexOf(id);
+                    Node node = index >= 0 ? graph.node(index) : new Node(id, nodeLon, nodeLat);
+                    node.setName(name);
+                    locations.add(node);
+                }
+                nodeNameMap.put(cleanName, locations);
+            }
+
+            return new GraphDB(graph, nodeNameMap, words, bounds, highwaysOnly, kdOrder);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write a snapshot of g. The file is written next to its destination and then moved into
+     * place, so a crash part way through never leaves a truncated snapshot behind.
+     * @param g the GraphDB built from source
+     * @param snapshot the snapshot file to (re)write
+     * @param source the OSM file g was built from
+     */
+    public static void write(GraphDB g, File snapshot, File source) throws IOException {
+        File tmp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeByte(g.highwaysOnly ? 1 : 0);
+            out.writeDouble(g.minlon);
+            out.writeDouble(g.minlat);
+            out.writeDouble(g.maxlon);
+            out.writeDouble(g.maxlat);
+
+            CSRGraph graph = g.graph;
+            int n = graph.size();
+            out.writeInt(n);
+            out.writeInt(graph.edgeCount());
+            for (long id : graph.ids) {
+                out.writeLong(id);
+            }
+            for (double lon : graph.lon) {
+                out.writeDouble(lon);
+            }
+            for (double lat : graph.lat) {
+                out.writeDouble(lat);
+            }
+            for (Node node : graph.nodes) {
+                out.writeByte(node.isHighway ? 1 : 0);
+            }
+            for (int offset : graph.offsets) {
+                out.writeInt(offset);
+            }
+            for (int target : graph.targets) {
+                out.writeInt(target);
+            }
+            for (int index : g.nearestKdTree.order) {
+                out.writeInt(index);
+            }
+
+            // Depth first order re-inserts every trie node's children in their current order
+            List<String> words = g.autoComplete.getAutoSuggestions("");
+            out.writeInt(words.size());
+            for (String word : words) {
+                writeString(out, word);
+            }
+
+            out.writeInt(g.nodeNameMap.size());
+            for (Map.Entry<String, LinkedList<Node>> entry : g.nodeNameMap.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Node node : entry.getValue()) {
+                    out.writeLong(node.id);
+                    out.writeDouble(node.longitude);
+                    out.writeDouble(node.latitude);
+                    writeString(out, node.name);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read the number of elements of a section, each of which takes at least elementBytes.
+     * @throws IllegalArgumentException if the count is negative or more than the rest of the
+     * file could hold, so that a corrupt count never sizes an array
+     */
+    private static int readCount(ByteBuffer in, int elementBytes) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / elementBytes) {
+            throw new IllegalArgumentException("Corrupt snapshot: count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Check what the graph and its indexes rely on without checking again: ids are sorted for
+     * the binary search, coordinates are on the globe, and every offset, target and KdTree
+     * entry is in range.
+     * @throws IllegalArgumentException if the snapshot is corrupt
+     */
+    private static void checkGraph(long[] ids, double[] lon, double[] lat, int[] offsets,
+                                   int[] targets, int[] kdOrder) {
+        int n = ids.length;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && ids[i - 1] >= ids[i]) {
+                throw new IllegalArgumentException("Corrupt snapshot: ids out of order");
+            }
+            // Written this way round to also reject NaN
+            if (!(Math.abs(lon[i]) <= 180 && Math.abs(lat[i]) <= 90)) {
+                throw new IllegalArgumentException("Corrupt snapshot: coordinates of " + ids[i]);
+            }
+        }
+        if (offsets[0] != 0 || offsets[n] != targets.length) {
+            throw new IllegalArgumentException("Corrupt snapshot: offsets out of range");
+        }
+        for (int i = 0; i < n; i++) {
+            if (offsets[i] > offsets[i + 1]) {
+                throw new IllegalArgumentException("Corrupt snapshot: offsets out of order");
+            }
+        }
+        for (int target : targets) {
+            if (target < 0 || target >= n) {
+                throw new IllegalArgumentException("Corrupt snapshot: edge target " + target);
+            }
+        }
+        for (int index : kdOrder) {
+            if (index < 0 || index >= n) {
+                throw new IllegalArgumentException("Corrupt snapshot: KdTree entry " + index);
+            }
+        }
+    }
+
+    private static double[] readDoubles(MappedByteBuffer in, int count) {
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        skip(in, count * Double.BYTES);
+        return values;
+    }
+
+    private static int[] readInts(MappedByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        skip(in, count * Integer.BYTES);
+        return values;
+    }
+
+    // The typed views read from a copy of the position, so advance the buffer past what they read
+    private static void skip(Buffer in, int bytes) {
+        in.position(in.position() + bytes);
+    }
+
+    private static String readString(MappedByteBuffer in) {
+        byte[] bytes = new byte[readCount(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
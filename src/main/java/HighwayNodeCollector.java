@@ -0,0 +1,74 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * First pass of the highways-only ingest: scans the ways of an OSM file and collects the ids of
+ * every node referenced by a way whose highway tag is one of MapDBHandler's allowed types.
+ * Nodes are skipped entirely, so this pass holds only the id set and the refs of one way.
+ */
+public class HighwayNodeCollector extends DefaultHandler {
+
+    private final LongHashSet highwayNodes = new LongHashSet(1 << 16);
+    private long[] wayNodes = new long[64];
+    private int wayNodeCount;
+    private boolean inWay;
+    private boolean isHighway;
+
+    /**
+     * @param inputFile the OSM XML file
+     * @return ids of all nodes on allowed highways
+     */
+    public static LongHashSet collect(File inputFile)
+            throws ParserConfigurationException, SAXException, IOException {
+        HighwayNodeCollector collector = new HighwayNodeCollector();
+        SAXParserFactory.newInstance().newSAXParser().parse(inputFile, collector);
+        return collector.highwayNodes;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes)
+            throws SAXException {
+        switch (qName) {
+            case "way":
+                inWay = true;
+                isHighway = false;
+                wayNodeCount = 0;
+                break;
+            case "nd":
+                if (inWay) {
+                    if (wayNodeCount == wayNodes.length) {
+                        wayNodes = Arrays.copyOf(wayNodes, wayNodeCount * 2);
+                    }
+                    wayNodes[wayNodeCount++] = Long.parseLong(attributes.getValue("ref"));
+                }
+                break;
+            case "tag":
+                if (inWay && "highway".equals(attributes.getValue("k"))) {
+                    isHighway = MapDBHandler.ALLOWED_HIGHWAY_TYPES
+                            .contains(attributes.getValue("v"));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("way")) {
+            if (isHighway) {
+                for (int i = 0; i < wayNodeCount; i++) {
+                    highwayNodes.add(wayNodes[i]);
+                }
+            }
+            inWay = false;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap over the integers 0..capacity-1 with decrease-key.
+ * Keys live in a primitive array indexed by element, and position[] maps each element to its
+ * slot in the heap so that contains() is O(1) and decreaseKey() is O(log n). Nothing is
+ * allocated after construction, which lets a heap be reused across searches.
+ */
+public class IndexedMinHeap {
+
+    private final int[] heap;
+    private final int[] position;
+    private final double[] keys;
+    private int size;
+
+    public IndexedMinHeap(int capacity) {
+        heap = new int[capacity];
+        position = new int[capacity];
+        keys = new double[capacity];
+        Arrays.fill(position, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int element) {
+        return position[element] >= 0;
+    }
+
+    /** Key of the smallest element. The heap must not be empty. */
+    public double minKey() {
+        return keys[heap[0]];
+    }
+
+    /** Key last assigned to element, only meaningful while it is in the heap. */
+    public double key(int element) {
+        return keys[element];
+    }
+
+    public void insert(int element, double key) {
+        keys[element] = key;
+        heap[size] = element;
+        position[element] = size;
+        siftUp(size++);
+    }
+
+    /** Lower the key of an element already in the heap. */
+    public void decreaseKey(int element, double key) {
+        keys[element] = key;
+        siftUp(position[element]);
+    }
+
+    /** Insert the element, or lower its key if it is already in the heap with a larger one. */
+    public void insertOrDecrease(int element, double key) {
+        if (position[element] < 0) {
+            insert(element, key);
+        } else if (key < keys[element]) {
+            decreaseKey(element, key);
+        }
+    }
+
+    /** Insert the element, or move it to a new key, larger or smaller, if it is in the heap. */
+    public void update(int element, double key) {
+        if (position[element] < 0) {
+            insert(element, key);
+        } else if (key < keys[element]) {
+            decreaseKey(element, key);
+        } else {
+            keys[element] = key;
+            siftDown(position[element]);
+        }
+    }
+
+    /** Remove and return the element with the smallest key. */
+    public int poll() {
+        int min = heap[0];
+        position[min] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return min;
+    }
+
+    /** Empty the heap in O(size) without touching the rest of the position table. */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            position[heap[i]] = -1;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int slot) {
+        int element = heap[slot];
+        double key = keys[element];
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            int parentElement = heap[parent];
+            if (keys[parentElement] <= key) {
+                break;
+            }
+            heap[slot] = parentElement;
+            position[parentElement] = slot;
+            slot = parent;
+        }
+        heap[slot] = element;
+        position[element] = slot;
+    }
+
+    private void siftDown(int slot) {
+        int element = heap[slot];
+        double key = keys[element];
+        int half = size >>> 1;
+        while (slot < half) {
+            int child = 2 * slot + 1;
+            int right = child + 1;
+            if (right < size && keys[heap[right]] < keys[heap[child]]) {
+                child = right;
+            }
+            if (key <= keys[heap[child]]) {
+                break;
+            }
+            heap[slot] = heap[child];
+            position[heap[slot]] = slot;
+            slot = child;
+        }
+        heap[slot] = element;
+        position[element] = slot;
+    }
+}
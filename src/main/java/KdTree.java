@@ -1,164 +1,452 @@
 import java.util.*;
+import java.util.stream.IntStream;
 
+/**
+ * 2d tree over the graph nodes, stored implicitly in flat arrays: the subtree over the tree
+ * positions lo until hi has its root at mid = (lo + hi) / 2, its left subtree over lo until mid
+ * and its right subtree over mid + 1 until hi. The root splits on longitude and the axis
+ * alternates with depth. Points equal to a split on its axis may be on either side, which the
+ * search allows for.
+ */
 public class KdTree {
 
-    private KdTreeNode root;
+    private final Node[] nodes;
+    // Index into nodes of the point at every tree position
+    final int[] order;
+    // Coordinates of the point at every tree position
+    private final double[] lon;
+    private final double[] lat;
 
-    private class KdTreeNode {
-        private KdTreeNode left;
-        private KdTreeNode right;
-        private Node data;
-        private boolean isLonAxis;
+    public KdTree(Collection<Node> setNodes) {
+        this(setNodes.toArray(new Node[0]));
+    }
 
-        public KdTreeNode(KdTreeNode left, KdTreeNode right, Node data, boolean isLonAxis) {
-            this.left = left;
-            this.right = right;
-            this.data = data;
-            this.isLonAxis = isLonAxis;
-        }
+    public KdTree(Node[] nodes) {
+        this(nodes, buildOrder(nodes));
     }
 
-    private class LongitudeComparator implements Comparator<Node> {
-        @Override
-        public int compare(Node node, Node t1) {
-            if (node.longitude < t1.longitude)
-                return -1;
-            else if (node.longitude > t1.longitude)
-                return 1;
-            else
-                return 0;
+    /**
+     * Rebuild a tree from the order of an earlier tree over the same nodes, ie. a snapshot.
+     */
+    KdTree(Node[] nodes, int[] order) {
+        this.nodes = nodes;
+        this.order = order;
+        this.lon = new double[order.length];
+        this.lat = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            lon[i] = nodes[order[i]].longitude;
+            lat[i] = nodes[order[i]].latitude;
         }
     }
 
-    private class LatitudeComparator implements Comparator<Node> {
-        @Override
-        public int compare(Node node, Node t1) {
-            if (node.latitude < t1.latitude)
-                return -1;
-            if (node.latitude > t1.latitude)
-                return 1;
-            else
-                return 0;
-        }
+    public int size() {
+        return order.length;
     }
 
-    public KdTree(Set<Node> setNodes) {
-        ArrayList<Node> nodeList = new ArrayList<>();
-        nodeList.addAll(setNodes);
-        root = buildTree(nodeList, true);
+    /**
+     * Lay out the nodes by selecting the median of every subtree in place, in O(n log n) time
+     * and without allocating anything per node.
+     */
+    private static int[] buildOrder(Node[] nodes) {
+        int n = nodes.length;
+        int[] order = new int[n];
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            lon[i] = nodes[i].longitude;
+            lat[i] = nodes[i].latitude;
+        }
+        build(order, lon, lat, 0, n, true);
+        return order;
     }
 
-    public KdTreeNode buildTree(List<Node> nodeList, boolean isLonAxis) {
-        if (nodeList.size() == 1) {
-            Node lastNode = nodeList.get(0);
-            return new KdTreeNode(null, null, lastNode, isLonAxis);
+    private static void build(int[] order, double[] lon, double[] lat, int lo, int hi,
+                              boolean isLonAxis) {
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (isLonAxis) {
+                select(order, lon, lat, lo, hi, mid);
+            } else {
+                select(order, lat, lon, lo, hi, mid);
+            }
+            // Recurse into the smaller half and loop on the larger one
+            build(order, lon, lat, lo, mid, !isLonAxis);
+            lo = mid + 1;
+            isLonAxis = !isLonAxis;
         }
+    }
+
+    /**
+     * Quickselect: rearrange positions lo until hi so that position k holds the point that would
+     * be there if they were sorted by key, with no larger point before it and no smaller point
+     * after it. Points with equal keys are ordered by node index, so that the layout does not
+     * depend on the input order. other is permuted along with key and order.
+     */
+    private static void select(int[] order, double[] key, double[] other, int lo, int hi, int k) {
+        hi--;
+        while (hi > lo) {
+            // Median of three pivot, moved to hi
+            int mid = (lo + hi) >>> 1;
+            if (less(order, key, mid, lo)) {
+                swap(order, key, other, mid, lo);
+            }
+            if (less(order, key, hi, lo)) {
+                swap(order, key, other, hi, lo);
+            }
+            if (less(order, key, mid, hi)) {
+                swap(order, key, other, mid, hi);
+            }
 
-        if (nodeList.isEmpty()) return null;
+            int store = lo;
+            for (int i = lo; i < hi; i++) {
+                if (less(order, key, i, hi)) {
+                    swap(order, key, other, i, store++);
+                }
+            }
+            swap(order, key, other, store, hi);
 
-        if (isLonAxis) {
-            Collections.sort(nodeList, new LongitudeComparator());
+            if (store == k) {
+                return;
+            } else if (store < k) {
+                lo = store + 1;
+            } else {
+                hi = store - 1;
+            }
         }
-        else {
-            Collections.sort(nodeList, new LatitudeComparator());
+    }
+
+    private static boolean less(int[] order, double[] key, int i, int j) {
+        return key[i] < key[j] || (key[i] == key[j] && order[i] < order[j]);
+    }
+
+    private static void swap(int[] order, double[] key, double[] other, int i, int j) {
+        int o = order[i];
+        order[i] = order[j];
+        order[j] = o;
+        double k = key[i];
+        key[i] = key[j];
+        key[j] = k;
+        double v = other[i];
+        other[i] = other[j];
+        other[j] = v;
+    }
+
+    /**
+     * @return the node nearest to the point, or null if the tree is empty
+     * @see #nearestIndex(double, double)
+     */
+    public Node nearest(double targetLon, double targetLat) {
+        int index = nearestIndex(targetLon, targetLat);
+        return index < 0 ? null : nodes[index];
+    }
+
+    /**
+     * Find the node nearest to a point without recursing or allocating.
+     * Subtrees still to be searched are kept on an explicit per-thread stack, together with a
+     * lower bound on their distance from the point: the squared sum of how far the point is
+     * outside the subtree's region on each axis, where an axis offset is replaced whenever the
+     * search crosses a split on that axis. Subtrees whose bound exceeds the best distance found
+     * so far are skipped.
+     * @return the index into nodes of the node nearest to the point, or -1 if the tree is empty
+     * or the point is NaN. Of several nodes at the same distance, the one that comes first in
+     * nodes.
+     */
+    public int nearestIndex(double targetLon, double targetLat) {
+        if (order.length == 0) {
+            return -1;
         }
+        SearchStack stack = STACK.get();
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        stack.push(0, order.length, true, 0, 0, 0);
+        while (stack.size > 0) {
+            stack.size--;
+            int top = stack.size;
+            int lo = stack.lo[top];
+            int hi = stack.hi[top];
+            boolean isLonAxis = stack.isLonAxis[top];
+            double bound = stack.bound[top];
+            double offLon = stack.offLon[top];
+            double offLat = stack.offLat[top];
+            // Equal distances are still searched, for the tie break on node order
+            if (bound > bestDistance) {
+                continue;
+            }
 
-        int median = nodeList.size() / 2;
-        Node current = nodeList.get(median);
-        List<Node> leftList = nodeList.subList(0, median);
-        List<Node> rightList = nodeList.subList(median + 1, nodeList.size());
+            // Walk down to the leaf on the point's side, deferring the far sides
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                double dx = lon[mid] - targetLon;
+                double dy = lat[mid] - targetLat;
+                double distance = dx * dx + dy * dy;
+                // The first node may tie with the initial infinity, for an infinite point
+                if (distance < bestDistance || (distance == bestDistance
+                        && (best < 0 || order[mid] < order[best]))) {
+                    best = mid;
+                    bestDistance = distance;
+                }
 
-        return new KdTreeNode(buildTree(leftList, !isLonAxis),
-                                buildTree(rightList, !isLonAxis),
-                                    current, isLonAxis);
+                double diff = isLonAxis ? targetLon - lon[mid] : targetLat - lat[mid];
+                double farBound = isLonAxis ? diff * diff + offLat * offLat
+                        : offLon * offLon + diff * diff;
+                int farLo;
+                int farHi;
+                if (diff < 0) {
+                    farLo = mid + 1;
+                    farHi = hi;
+                    hi = mid;
+                } else {
+                    farLo = lo;
+                    farHi = mid;
+                    lo = mid + 1;
+                }
+                if (farLo < farHi && farBound <= bestDistance) {
+                    stack.push(farLo, farHi, !isLonAxis, farBound,
+                            isLonAxis ? diff : offLon, isLonAxis ? offLat : diff);
+                }
+                isLonAxis = !isLonAxis;
+            }
+        }
+        // No best if the point is NaN
+        return best < 0 ? -1 : order[best];
     }
 
-    public Node nearest(Node target, double[] box) {
-        return nearest(root, box, target, null);
+    /**
+     * @return the k nodes nearest to the point, nearest first
+     * @see #kNearestIndices(double, double, int)
+     */
+    public List<Node> kNearest(double targetLon, double targetLat, int k) {
+        return toNodes(kNearestIndices(targetLon, targetLat, k));
     }
 
     /**
-     * Inspired by: https://gist.github.com/beginor/32dce6904a556474e7ad
-     *
-     * @param kdNode
-     * @param box
-     * @param target
-     * @param candidate
-     * @return
+     * @return the indices into nodes of the min(k, size()) nodes nearest to the point, nearest
+     * first, and of nodes at the same distance the one that comes first in nodes first
      */
-    public Node nearest(KdTreeNode kdNode, double[] box, Node target, Node candidate) {
+    public int[] kNearestIndices(double targetLon, double targetLat, int k) {
+        return search(targetLon, targetLat, Math.min(k, order.length), Double.POSITIVE_INFINITY);
+    }
 
-        if (kdNode == null) return candidate;
+    /**
+     * @return the nodes at most radius from the point, nearest first
+     * @see #withinRadiusIndices(double, double, double)
+     */
+    public List<Node> withinRadius(double targetLon, double targetLat, double radius) {
+        return toNodes(withinRadiusIndices(targetLon, targetLat, radius));
+    }
 
-        double distanceBetweenTargetandNearest = 0.0;
-        double distanceBetweenTargetandBox = 0.0;
-        Node nearest = candidate;
+    /**
+     * @param radius the distance, in the same lon/lat degrees as everything else in the graph
+     * @return the indices into nodes of the nodes at most radius from the point, nearest first
+     */
+    public int[] withinRadiusIndices(double targetLon, double targetLat, double radius) {
+        return search(targetLon, targetLat, order.length, radius * radius);
+    }
 
-        if (nearest != null) {
-            distanceBetweenTargetandNearest = target.distanceSquared(nearest);
-            distanceBetweenTargetandBox = distanceSquaredPointToBox(box, target);
+    /**
+     * Answer nearestIndex for many points in one call, on the common fork join pool when there
+     * are enough points to be worth splitting up.
+     * @return for every point i, the index into nodes of the node nearest to (lons[i], lats[i])
+     */
+    public int[] nearestIndices(double[] lons, double[] lats) {
+        int[] nearest = new int[lons.length];
+        IntStream points = IntStream.range(0, lons.length);
+        if (lons.length >= PARALLEL_BATCH_SIZE) {
+            points = points.parallel();
         }
+        points.forEach(i -> nearest[i] = nearestIndex(lons[i], lats[i]));
+        return nearest;
+    }
 
-        if (nearest == null ||
-                distanceBetweenTargetandNearest > distanceBetweenTargetandBox) {
-            Node point = kdNode.data;
-            if (nearest == null ||
-                    distanceBetweenTargetandNearest > target.distanceSquared(point)) {
-                nearest = point;
-            }
+    private static final int PARALLEL_BATCH_SIZE = 1024;
 
-            if (kdNode.isLonAxis) {
-                double[] leftBox = {box[0], box[1], point.longitude, box[3]};
-                double[] rightBox = {point.longitude, box[1], box[2], box[3]};
+    /**
+     * The same search as nearestIndex, keeping the best k nodes in a bounded max heap whose
+     * largest distance, once full, is the pruning distance.
+     * @param maxDistance squared distance beyond which nodes are not wanted
+     */
+    private int[] search(double targetLon, double targetLat, int k, double maxDistance) {
+        if (k <= 0) {
+            return new int[0];
+        }
+        Neighbors neighbors = new Neighbors(k);
+        SearchStack stack = STACK.get();
+        stack.push(0, order.length, true, 0, 0, 0);
+        while (stack.size > 0) {
+            stack.size--;
+            int top = stack.size;
+            int lo = stack.lo[top];
+            int hi = stack.hi[top];
+            boolean isLonAxis = stack.isLonAxis[top];
+            double offLon = stack.offLon[top];
+            double offLat = stack.offLat[top];
+            if (stack.bound[top] > neighbors.worst(maxDistance)) {
+                continue;
+            }
 
-                if (target.longitude < point.longitude) {
-                    nearest = nearest(kdNode.left, leftBox, target, nearest);
-                    nearest = nearest(kdNode.right, rightBox, target, nearest);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                double dx = lon[mid] - targetLon;
+                double dy = lat[mid] - targetLat;
+                double distance = dx * dx + dy * dy;
+                if (distance <= maxDistance) {
+                    neighbors.offer(order[mid], distance);
                 }
-                else {
-                    nearest = nearest(kdNode.right, rightBox, target, nearest);
-                    nearest = nearest(kdNode.left, leftBox, target, nearest);
-                }
-            }
-            else {
-                double[] leftBox = {box[0], box[1], box[2], point.latitude};
-                double[] rightBox = {box[0], point.latitude, box[2], box[3]};
 
-                if (target.latitude < point.latitude) {
-                    nearest = nearest(kdNode.left, leftBox, target, nearest);
-                    nearest = nearest(kdNode.right, rightBox, target, nearest);
+                double diff = isLonAxis ? targetLon - lon[mid] : targetLat - lat[mid];
+                double farBound = isLonAxis ? diff * diff + offLat * offLat
+                        : offLon * offLon + diff * diff;
+                int farLo;
+                int farHi;
+                if (diff < 0) {
+                    farLo = mid + 1;
+                    farHi = hi;
+                    hi = mid;
+                } else {
+                    farLo = lo;
+                    farHi = mid;
+                    lo = mid + 1;
                 }
-                else {
-                    nearest = nearest(kdNode.right, rightBox, target, nearest);
-                    nearest = nearest(kdNode.left, leftBox, target, nearest);
+                if (farLo < farHi && farBound <= neighbors.worst(maxDistance)) {
+                    stack.push(farLo, farHi, !isLonAxis, farBound,
+                            isLonAxis ? diff : offLon, isLonAxis ? offLat : diff);
                 }
+                isLonAxis = !isLonAxis;
             }
         }
+        return neighbors.sorted();
+    }
 
-        return nearest;
+    private List<Node> toNodes(int[] indices) {
+        List<Node> result = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            result.add(nodes[index]);
+        }
+        return result;
     }
 
-    // Calculates the distance squared of a point to a box
-    // Distance is zero for any point contained in the box
-    public double distanceSquaredPointToBox(double[] box, Node point) {
-        double dx = 0.0;
-        double dy = 0.0;
+    /**
+     * Max heap of the best nodes found so far, ordered by distance and then node index, holding
+     * at most limit nodes. The arrays grow as needed, so a large limit costs nothing up front.
+     */
+    private static final class Neighbors {
+        private final int limit;
+        private int size;
+        private int[] node;
+        private double[] distance;
 
-        if (point.longitude < box[0]) {
-            dx = point.longitude - box[0];
+        Neighbors(int limit) {
+            this.limit = limit;
+            int capacity = Math.min(limit, 16);
+            node = new int[capacity];
+            distance = new double[capacity];
         }
-        else if (point.longitude > box[2]) {
-            dx = point.longitude - box[2];
+
+        /** @return the distance a node must not exceed to still be wanted */
+        double worst(double maxDistance) {
+            return size < limit ? maxDistance : distance[0];
         }
 
-        if (point.latitude < box[1]) {
-            dy = point.latitude - box[1];
+        void offer(int index, double d) {
+            if (size < limit) {
+                if (size == node.length) {
+                    int capacity = (int) Math.min(limit, 2L * size);
+                    node = Arrays.copyOf(node, capacity);
+                    distance = Arrays.copyOf(distance, capacity);
+                }
+                node[size] = index;
+                distance[size] = d;
+                siftUp(size++);
+            } else if (d < distance[0] || (d == distance[0] && index < node[0])) {
+                node[0] = index;
+                distance[0] = d;
+                siftDown(0, size);
+            }
         }
-        else if (point.latitude > box[3]) {
-            dy = point.latitude - box[3];
+
+        /** Empty the heap into an array, nearest first. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int end = size - 1; end >= 0; end--) {
+                result[end] = node[0];
+                swap(0, end);
+                siftDown(0, end);
+            }
+            size = 0;
+            return result;
+        }
+
+        private boolean larger(int i, int j) {
+            return distance[i] > distance[j] || (distance[i] == distance[j] && node[i] > node[j]);
         }
 
-        return dx * dx + dy * dy;
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!larger(i, parent)) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < end && larger(left, largest)) {
+                    largest = left;
+                }
+                if (right < end && larger(right, largest)) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int n = node[i];
+            node[i] = node[j];
+            node[j] = n;
+            double d = distance[i];
+            distance[i] = distance[j];
+            distance[j] = d;
+        }
+    }
+
+    private static final ThreadLocal<SearchStack> STACK = ThreadLocal.withInitial(SearchStack::new);
+
+    /**
+     * Pending subtrees of a nearest search. At most one subtree per depth is pending at a time,
+     * so the stack never grows beyond the height of the tree.
+     */
+    private static final class SearchStack {
+        private static final int CAPACITY = 64;
+        int size;
+        final int[] lo = new int[CAPACITY];
+        final int[] hi = new int[CAPACITY];
+        final boolean[] isLonAxis = new boolean[CAPACITY];
+        final double[] bound = new double[CAPACITY];
+        final double[] offLon = new double[CAPACITY];
+        final double[] offLat = new double[CAPACITY];
+
+        void push(int lo, int hi, boolean isLonAxis, double bound, double offLon,
+                  double offLat) {
+            this.lo[size] = lo;
+            this.hi[size] = hi;
+            this.isLonAxis[size] = isLonAxis;
+            this.bound[size] = bound;
+            this.offLon[size] = offLon;
+            this.offLat[size] = offLat;
+            size++;
+        }
     }
 
 }
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * Landmark distance tables for the ALT (A*, landmarks, triangle inequality) heuristic.
+ * A few landmarks are picked far apart on the graph and the road distance from each of them to
+ * every vertex is precomputed with Dijkstra. Since roads are undirected, the triangle inequality
+ * gives |d(L, t) - d(L, v)| <= d(v, t) for every landmark L, a lower bound that follows the road
+ * network around bays and hills instead of cutting straight across them.
+ * <p>
+ * Distances are kept vertex-major in one primitive array, so the bounds for a vertex are read
+ * from consecutive entries: distances[v * count() + l] is the distance from landmark l to v,
+ * or infinity if v cannot be reached from it.
+ * </p>
+ */
+public class Landmarks {
+
+    private final int[] landmarks;
+    private final double[] distances;
+
+    private Landmarks(int[] landmarks, double[] distances) {
+        this.landmarks = landmarks;
+        this.distances = distances;
+    }
+
+    /** Number of landmarks. */
+    public int count() {
+        return landmarks.length;
+    }
+
+    /** Dense index of the i-th landmark in the CSRGraph. */
+    public int landmark(int i) {
+        return landmarks[i];
+    }
+
+    /**
+     * @return a lower bound on the road distance between vertices v and t, the largest bound
+     * given by any landmark that reaches both
+     */
+    public double lowerBound(int v, int t) {
+        final int k = landmarks.length;
+        final int vBase = v * k;
+        final int tBase = t * k;
+        double bound = 0;
+        for (int l = 0; l < k; l++) {
+            double dv = distances[vBase + l];
+            double dt = distances[tBase + l];
+            // Unreached vertices give no bound for this landmark
+            if (dv == Double.POSITIVE_INFINITY || dt == Double.POSITIVE_INFINITY) continue;
+            double d = Math.abs(dt - dv);
+            if (d > bound) {
+                bound = d;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Pick landmarks by farthest selection: the first is the vertex farthest from vertex 0, and
+     * every next one is the vertex whose road distance to the closest landmark so far is
+     * largest. This puts landmarks at the edges of the map, behind the routes they bound.
+     * Costs one Dijkstra per landmark plus one.
+     * @param count number of landmarks, at most the number of vertices
+     */
+    public static Landmarks select(CSRGraph graph, int count) {
+        int n = graph.size();
+        count = Math.min(count, n);
+        int[] landmarks = new int[count];
+        double[] distances = new double[n * count];
+        if (count == 0) {
+            return new Landmarks(landmarks, distances);
+        }
+
+        double[] distance = new double[n];
+        IndexedMinHeap heap = new IndexedMinHeap(n);
+        // Road distance from each vertex to the closest landmark so far
+        double[] closest = new double[n];
+        Arrays.fill(closest, Double.POSITIVE_INFINITY);
+
+        dijkstra(graph, 0, distance, heap);
+        int next = farthest(distance);
+        for (int l = 0; l < count; l++) {
+            landmarks[l] = next;
+            dijkstra(graph, next, distance, heap);
+            for (int v = 0; v < n; v++) {
+                distances[v * count + l] = distance[v];
+                if (distance[v] < closest[v]) {
+                    closest[v] = distance[v];
+                }
+            }
+            next = farthest(closest);
+        }
+        return new Landmarks(landmarks, distances);
+    }
+
+    /** Vertex with the largest finite entry, ie. ignoring other components. */
+    private static int farthest(double[] distance) {
+        int farthest = 0;
+        double max = -1;
+        for (int v = 0; v < distance.length; v++) {
+            if (distance[v] != Double.POSITIVE_INFINITY && distance[v] > max) {
+                max = distance[v];
+                farthest = v;
+            }
+        }
+        return farthest;
+    }
+
+    private static void dijkstra(CSRGraph graph, int source, double[] distance,
+                                 IndexedMinHeap heap) {
+        final int[] offsets = graph.offsets;
+        final int[] targets = graph.targets;
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        distance[source] = 0;
+        heap.insert(source, 0);
+        while (!heap.isEmpty()) {
+            int current = heap.poll();
+            double currentDistance = distance[current];
+            for (int edge = offsets[current]; edge < offsets[current + 1]; edge++) {
+                int neighbor = targets[edge];
+                double tentative = currentDistance + graph.distance(current, neighbor);
+                if (tentative < distance[neighbor]) {
+                    distance[neighbor] = tentative;
+                    heap.insertOrDecrease(neighbor, tentative);
+                }
+            }
+        }
+    }
+}
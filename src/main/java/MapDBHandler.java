@@ -22,7 +22,7 @@ public class MapDBHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
@@ -31,9 +31,28 @@ public class MapDBHandler extends DefaultHandler {
     private ArrayList<Long> wayNodes;
     private final GraphDB g;
     private HashMap<Long, Node> idMap;
+    /**
+     * In highways-only mode, the ids of the nodes on allowed highways found by a first pass
+     * with HighwayNodeCollector. Null when every node and way is loaded.
+     */
+    private final LongHashSet highwayNodes;
+    private boolean wayIsHighway;
+    // Location of the current node while it is not (yet) known to be needed
+    private long pendingId;
+    private double pendingLon, pendingLat;
 
     public MapDBHandler(GraphDB g) {
+        this(g, null);
+    }
+
+    /**
+     * @param g the GraphDB to fill
+     * @param highwayNodes if not null, only these nodes and named nodes are materialized, and
+     *                     only ways with an allowed highway tag become edges
+     */
+    public MapDBHandler(GraphDB g, LongHashSet highwayNodes) {
         this.g = g;
+        this.highwayNodes = highwayNodes;
         wayNodes = new ArrayList<>();
         idMap = g.idMap;
     }
@@ -55,46 +74,115 @@ public class MapDBHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        /* Some example code on how you might begin to parse XML files. */
-        if (qName.equals("bounds")) {
-            g.minlon = Double.parseDouble(attributes.getValue("minlon"));
-            g.minlat = Double.parseDouble(attributes.getValue("minlat"));
-            g.maxlon = Double.parseDouble(attributes.getValue("maxlon"));
-            g.maxlat = Double.parseDouble(attributes.getValue("maxlat"));
+        switch (qName) {
+            case "bounds":
+                bounds(Double.parseDouble(attributes.getValue("minlon")),
+                        Double.parseDouble(attributes.getValue("minlat")),
+                        Double.parseDouble(attributes.getValue("maxlon")),
+                        Double.parseDouble(attributes.getValue("maxlat")));
+                break;
+            case "node":
+                node(Long.parseLong(attributes.getValue("id")),
+                        Double.parseDouble(attributes.getValue("lon")),
+                        Double.parseDouble(attributes.getValue("lat")));
+                break;
+            case "way":
+                way();
+                break;
+            case "nd":
+                wayNode(Long.parseLong(attributes.getValue("ref")));
+                break;
+            case "tag":
+                String k = attributes.getValue("k");
+                String v = attributes.getValue("v");
+                tag(k, v, k.equals("name") ? cleanString(v) : null);
+                break;
+            default:
+                break;
         }
-        else if (qName.equals("node")) {
-            activeState = "node";
-            long id = Long.parseLong(attributes.getValue("id"));
-            double lat = Double.parseDouble(attributes.getValue("lat"));
-            double lon = Double.parseDouble(attributes.getValue("lon"));
-            Node node = new Node(id, lon, lat);
-            currentNode = node;
-            g.putNode(node);
-            idMap.put(id, node);
+    }
+
+    /**
+     * Receive notification of the end of an element. You may want to take specific terminating
+     * actions here, like finalizing vertices or edges found.
+     * @param uri The Namespace URI, or the empty string if the element has no Namespace URI or
+     *            if Namespace processing is not being performed.
+     * @param localName The local name (without prefix), or the empty string if Namespace
+     *                  processing is not being performed.
+     * @param qName The qualified name (with prefix), or the empty string if qualified names are
+     *              not available.
+     * @throws SAXException  Any SAX exception, possibly wrapping another exception.
+     */
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (qName.equals("way")) {
+            endWay();
         }
-        else if (qName.equals("way")) {
-            activeState = "way";
+    }
+
+    /*
+     * The methods below apply one decoded element to the graph. They are called from the SAX
+     * callbacks above, and in file order by the assembly stage of OSMIngestPipeline.
+     */
+
+    void bounds(double minlon, double minlat, double maxlon, double maxlat) {
+        g.minlon = minlon;
+        g.minlat = minlat;
+        g.maxlon = maxlon;
+        g.maxlat = maxlat;
+    }
+
+    void node(long id, double lon, double lat) {
+        activeState = "node";
+        if (highwayNodes != null && !highwayNodes.contains(id)) {
+            // Only becomes a Node if a name tag follows; see tag()
+            currentNode = null;
+            pendingId = id;
+            pendingLon = lon;
+            pendingLat = lat;
+            return;
         }
-        // Collect a list of related nodes in each Way
-        else if (activeState.equals("way") && qName.equals("nd")) {
-            Long ref = Long.parseLong(attributes.getValue("ref"));
+        Node node = new Node(id, lon, lat);
+        currentNode = node;
+        g.putNode(node);
+        idMap.put(id, node);
+    }
+
+    void way() {
+        activeState = "way";
+        wayIsHighway = false;
+    }
+
+    // Collect a list of related nodes in each Way
+    void wayNode(long ref) {
+        if (activeState.equals("way")) {
             wayNodes.add(ref);
         }
+    }
+
+    /**
+     * @param k the tag key
+     * @param v the tag value
+     * @param cleanV cleanString(v) when k is "name", otherwise unused and may be null
+     */
+    void tag(String k, String v, String cleanV) {
         // Mark a node as a highway if the highway type is in the ALLOW_HIGHWAY_TYPES
-        else if (activeState.equals("way") && qName.equals("tag") && attributes.getValue("k")
-                .equals("highway")) {
-            if (ALLOWED_HIGHWAY_TYPES.contains(attributes.getValue("v"))) {
+        if (activeState.equals("way") && k.equals("highway")) {
+            if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
+                wayIsHighway = true;
                 for (Long ref : wayNodes) {
                     idMap.get(ref).isHighway = true;
                 }
             }
         }
-        else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
-                .equals("name")) {
-            String name = attributes.getValue("v");
-            currentNode.setName(name);
+        else if (activeState.equals("node") && k.equals("name")) {
+            if (currentNode == null) {
+                // A named location off the road network, kept only for search
+                currentNode = new Node(pendingId, pendingLon, pendingLat);
+            }
+            currentNode.setName(v);
             // Clean the Node name after setting the name and putting it in the Node-Name Map
-            String cleanName = cleanString(name);
+            String cleanName = cleanV;
 
             // Need to account for locations that have the same name, ie. multiple Chase banks
             if (!g.nodeNameMap.containsKey(cleanName)) {
@@ -108,27 +196,17 @@ public class MapDBHandler extends DefaultHandler {
         }
     }
 
-    /**
-     * Receive notification of the end of an element. You may want to take specific terminating
-     * actions here, like finalizing vertices or edges found.
-     * @param uri The Namespace URI, or the empty string if the element has no Namespace URI or
-     *            if Namespace processing is not being performed.
-     * @param localName The local name (without prefix), or the empty string if Namespace
-     *                  processing is not being performed.
-     * @param qName The qualified name (with prefix), or the empty string if qualified names are
-     *              not available.
-     * @throws SAXException  Any SAX exception, possibly wrapping another exception.
-     */
-    @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-        if (qName.equals("way")) {
-            for (int i = 0; i < wayNodes.size() - 1; i++) {
-                Node source = idMap.get(wayNodes.get(i));
-                Node dest = idMap.get(wayNodes.get(i + 1));
-                g.addEdge(source, dest);
-            }
+    void endWay() {
+        if (highwayNodes != null && !wayIsHighway) {
             wayNodes.clear();
+            return;
+        }
+        for (int i = 0; i < wayNodes.size() - 1; i++) {
+            Node source = idMap.get(wayNodes.get(i));
+            Node dest = idMap.get(wayNodes.get(i + 1));
+            g.addEdge(source, dest);
         }
+        wayNodes.clear();
     }
 
     /**
@@ -137,6 +215,6 @@ public class MapDBHandler extends DefaultHandler {
      * @return Cleaned string.
      */
     static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        return GraphDB.cleanString(s);
     }
 }
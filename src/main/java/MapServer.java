@@ -10,6 +10,7 @@ import java.util.List;
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
 import javax.imageio.ImageIO;
+import spark.Response;
 import static spark.Spark.*;
 
 /**
@@ -28,6 +29,20 @@ public class MapServer {
             ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
     /** Each tile is 256x256 pixels. */
     public static final int TILE_SIZE = 256;
+    /** Response headers of /raster.png, keyed by the matching /raster Json field. */
+    private static final Map<String, String> RASTER_HEADERS = new HashMap<>();
+    static {
+        RASTER_HEADERS.put("raster_ul_lon", "X-Raster-Ul-Lon");
+        RASTER_HEADERS.put("raster_ul_lat", "X-Raster-Ul-Lat");
+        RASTER_HEADERS.put("raster_lr_lon", "X-Raster-Lr-Lon");
+        RASTER_HEADERS.put("raster_lr_lat", "X-Raster-Lr-Lat");
+        RASTER_HEADERS.put("raster_width", "X-Raster-Width");
+        RASTER_HEADERS.put("raster_height", "X-Raster-Height");
+        RASTER_HEADERS.put("depth", "X-Raster-Depth");
+        RASTER_HEADERS.put("raster_complete", "X-Raster-Complete");
+    }
+    /** How long clients may reuse a tile from /tiles without revalidating its ETag. */
+    private static final int TILE_MAX_AGE_SECONDS = 24 * 60 * 60;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
     /** Route stroke information: typically roads are not more than 5px wide. */
@@ -35,12 +50,57 @@ public class MapServer {
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
     /** The tile images are in the IMG_ROOT folder. */
-    private static final String IMG_ROOT = "img/";
+    static final String IMG_ROOT = "img/";
+    /**
+     * All tiles of IMG_ROOT packed into one memory-mapped file, built offline by
+     * TileArchive.main. Tiles are read from IMG_ROOT while it is missing.
+     */
+    static final String TILE_ARCHIVE_PATH = "img.tiles";
+    /**
+     * Upper bound on the bytes of decoded tiles kept in memory between raster requests.
+     * Can be overridden with -Dbearmaps.tileCacheBytes=N.
+     */
+    private static final long TILE_CACHE_BYTES =
+            Long.getLong("bearmaps.tileCacheBytes", 256L * 1024 * 1024);
+    /**
+     * Worker threads shared by all raster requests for decoding and composing tiles.
+     * Can be overridden with -Dbearmaps.rasterThreads=N.
+     */
+    private static final int RASTER_THREADS = Integer.getInteger("bearmaps.rasterThreads",
+            Runtime.getRuntime().availableProcessors());
+    /**
+     * Tiles not composed within this many milliseconds of a raster request are replaced by a
+     * placeholder. Can be overridden with -Dbearmaps.rasterDeadlineMs=N.
+     */
+    private static final long RASTER_DEADLINE_MS = Long.getLong("bearmaps.rasterDeadlineMs", 2000);
+    /**
+     * Encoder for raster pngs: "imageio" for the standard ImageIO writer, or "fast" or "compact"
+     * for the parallel PngEncoder presets. Set with -Dbearmaps.pngEncoder=name.
+     */
+    private static final PngEncoder RASTER_PNG_ENCODER =
+            PngEncoder.forName(System.getProperty("bearmaps.pngEncoder", "imageio"));
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
-    private static final String OSM_DB_PATH = "berkeley.osm";
+    static final String OSM_DB_PATH = "berkeley.osm";
+    /** Binary snapshot of the graph built from OSM_DB_PATH, written after the first parse. */
+    static final String GRAPH_SNAPSHOT_PATH = "berkeley.graph";
+    /**
+     * Contraction hierarchy of the graph for algorithm=ch routes, built offline by
+     * ContractionHierarchy.main. Routes fall back to A* while it is missing or stale.
+     */
+    static final String CH_PATH = "berkeley.ch";
+    /**
+     * Landmarks picked at startup for algorithm=alt routes. Each one costs a Dijkstra over the
+     * graph and 8 bytes per vertex. Set with -Dbearmaps.landmarks=n, 0 disables ALT.
+     */
+    private static final int LANDMARK_COUNT = Integer.getInteger("bearmaps.landmarks", 16);
+    /**
+     * Load only the nodes and ways of allowed highways (plus named locations) using a two-pass
+     * ingest, which cuts peak memory on large extracts. Enable with -Dbearmaps.highwaysOnly=true.
+     */
+    static final boolean HIGHWAYS_ONLY = Boolean.getBoolean("bearmaps.highwaysOnly");
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -62,7 +122,19 @@ public class MapServer {
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
     private static QuadTree tree;
-    private static LinkedList<Long> route;
+    /** Route sessions idle for longer than this are dropped. */
+    private static final long ROUTE_SESSION_TTL_MS = 30 * 60 * 1000;
+    /** Upper bound on the number of clients with a stored route. */
+    private static final int MAX_ROUTE_SESSIONS = 10000;
+    /** Cookie (or query parameter) holding the client's route session token. */
+    private static final String SESSION_COOKIE = "bearmaps_session";
+    /** Session used by the static API when no client token is given, ie. by the tests. */
+    private static final String DEFAULT_SESSION = "";
+    private static RouteSessions routeSessions;
+    private static TileCache tileCache;
+    private static TileStore tileStore;
+    private static RasterComposer rasterComposer;
+    private static RoutingEngine router;
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -70,20 +142,68 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
+        File osmFile = new File(OSM_DB_PATH);
+        File snapshotFile = new File(GRAPH_SNAPSHOT_PATH);
         long startTime = System.nanoTime();
-        g = new GraphDB(OSM_DB_PATH);
+        g = GraphSnapshot.read(snapshotFile, osmFile, HIGHWAYS_ONLY);
         long endTime = System.nanoTime();
         long duration = (endTime - startTime) / 1000000;
-        System.out.println("Graph build time: " + duration + "ms");
+        if (g != null) {
+            System.out.println("Graph snapshot load time: " + duration + "ms");
+        } else {
+            System.out.println("Graph snapshot missing or stale (" + duration + "ms)");
+
+            startTime = System.nanoTime();
+            g = new GraphDB(OSM_DB_PATH, HIGHWAYS_ONLY);
+            endTime = System.nanoTime();
+            duration = (endTime - startTime) / 1000000;
+            System.out.println("Graph build time: " + duration + "ms");
+
+            startTime = System.nanoTime();
+            try {
+                GraphSnapshot.write(g, snapshotFile, osmFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            endTime = System.nanoTime();
+            duration = (endTime - startTime) / 1000000;
+            System.out.println("Graph snapshot write time: " + duration + "ms");
+        }
+        router = new RoutingEngine(g.graph);
+
+        startTime = System.nanoTime();
+        ContractionHierarchy ch = ContractionHierarchy.read(new File(CH_PATH), g.graph);
+        endTime = System.nanoTime();
+        duration = (endTime - startTime) / 1000000;
+        if (ch != null) {
+            router.setContractionHierarchy(ch);
+            System.out.println("Contraction hierarchy load time: " + duration + "ms");
+        }
+
+        if (LANDMARK_COUNT > 0) {
+            startTime = System.nanoTime();
+            router.setLandmarks(Landmarks.select(g.graph, LANDMARK_COUNT));
+            endTime = System.nanoTime();
+            duration = (endTime - startTime) / 1000000;
+            System.out.println("Landmark selection time: " + duration + "ms");
+        }
 
         startTime = System.nanoTime();
-        tree = new QuadTree();
-        initializeTree(tree);
+        TileArchive archive = TileArchive.open(new File(TILE_ARCHIVE_PATH));
+        if (archive != null) {
+            tree = new QuadTree(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, archive.names());
+        } else {
+            tree = QuadTree.fromDirectory(new File(IMG_ROOT), ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON,
+                    ROOT_LRLAT);
+        }
         endTime = System.nanoTime();
         duration = (endTime - startTime) / 1000000;
         System.out.println("Tree build time: " + duration + "ms");
 
-        route = new LinkedList<>();
+        routeSessions = new RouteSessions(MAX_ROUTE_SESSIONS, ROUTE_SESSION_TTL_MS);
+        tileStore = new TileStore(IMG_ROOT, archive);
+        tileCache = new TileCache(tileStore, TILE_CACHE_BYTES);
+        rasterComposer = new RasterComposer(tileCache, RASTER_THREADS, RASTER_DEADLINE_MS);
     }
 
     public static void main(String[] args) {
@@ -105,7 +225,8 @@ public class MapServer {
             /* The png image is written to the ByteArrayOutputStream */
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = getMapRaster(params, os);
+            Map<String, Object> rasteredImgParams =
+                    getMapRaster(params, os, sessionToken(req, res));
             /* On an image query success, add the image data to the response */
             if (rasteredImgParams.containsKey("query_success")
                     && (Boolean) rasteredImgParams.get("query_success")) {
@@ -117,17 +238,86 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
+        /* Define the binary raster endpoint: the png is the response body and the raster
+         * parameters are sent as headers. */
+        get("/raster.png", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            streamMapRaster(params, res, sessionToken(req, res));
+            return "";
+        });
+
+        /* Define the tile grid raster endpoint: the same query as /raster, but answered with the
+         * grid of tile urls to fetch instead of a stitched image. */
+        get("/raster_grid", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            Map<String, Object> rasterGrid = getRasterGrid(params, sessionToken(req, res));
+            Gson gson = new Gson();
+            return gson.toJson(rasterGrid);
+        });
+
+        /* Define the endpoint serving individual tiles, which clients may cache by ETag. */
+        get("/tiles/:name", (req, res) -> {
+            String name = req.params(":name");
+            if (name.endsWith(".png")) {
+                name = name.substring(0, name.length() - ".png".length());
+            }
+            String etag = TileStore.isValidName(name) ? tileStore.etag(name) : null;
+            if (etag == null) {
+                halt(404, "No such tile.");
+            }
+            res.header("ETag", etag);
+            res.header("Cache-Control", "public, max-age=" + TILE_MAX_AGE_SECONDS);
+            if (TileStore.matchesIfNoneMatch(req.headers("If-None-Match"), etag)) {
+                res.status(304);
+                return "";
+            }
+            res.type("image/png");
+            return tileStore.read(name);
+        });
+
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = findAndSetRoute(params);
+            /* With snap=true, the route runs between the nearest points on any road instead of
+             * the nearest vertices. */
+            if (Boolean.parseBoolean(req.queryParams("snap"))) {
+                return !findAndSetSnappedRoute(params, sessionToken(req, res)).isEmpty();
+            }
+            /* algorithm=bidirectional searches from both ends, algorithm=ch uses the contraction
+             * hierarchy if one is loaded, algorithm=alt uses the landmark heuristic; the default
+             * is astar. */
+            RoutingEngine.Algorithm algorithm = RoutingEngine.Algorithm.ASTAR;
+            String algorithmParam = req.queryParams("algorithm");
+            if (algorithmParam != null) {
+                try {
+                    algorithm = RoutingEngine.Algorithm.valueOf(algorithmParam.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    halt(HALT_RESPONSE, "Incorrect algorithm parameter.");
+                }
+            }
+            LinkedList<Long> route = findAndSetRoute(params, sessionToken(req, res), algorithm);
+            res.header("X-Route-Expansions", String.valueOf(router.lastExpansionCount()));
             return !route.isEmpty();
         });
 
+        /* Define the distance matrix endpoint. The points are posted as a Json body,
+         * {"sources": [[lon, lat], ...], "targets": [[lon, lat], ...]}, which would not fit in
+         * the query string of a 200x200 request. */
+        post("/matrix", (req, res) -> {
+            MatrixRequest request = MatrixRequest.parse(req.body());
+            if (request == null) {
+                halt(HALT_RESPONSE, "Incorrect matrix points.");
+            }
+            Gson gson = new Gson();
+            return gson.toJson(getDistanceMatrix(request.sources, request.targets));
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            clearRoute(sessionToken(req, res));
             return true;
         });
 
@@ -140,6 +330,19 @@ public class MapServer {
             if (reqParams.contains("full")) {
                 List<Map<String, Object>> data = getLocations(term);
                 return gson.toJson(data);
+            } else if (reqParams.contains("limit")) {
+                /* Search for the best ranked prefix matching strings. */
+                int limit = -1;
+                try {
+                    limit = Integer.parseInt(req.queryParams("limit"));
+                } catch (NumberFormatException e) {
+                    // Rejected below
+                }
+                if (limit < 0) {
+                    halt(HALT_RESPONSE, "Incorrect limit parameter.");
+                }
+                List<String> matches = getTopLocationsByPrefix(term, limit);
+                return gson.toJson(matches);
             } else {
                 /* Search for prefix matching strings. */
                 List<String> matches = getLocationsByPrefix(term);
@@ -170,7 +373,12 @@ public class MapServer {
                 halt(HALT_RESPONSE, "Request failed - parameters missing.");
             } else {
                 try {
-                    params.put(param, Double.parseDouble(req.queryParams(param)));
+                    double value = Double.parseDouble(req.queryParams(param));
+                    // parseDouble also accepts "NaN" and "Infinity", which are no coordinates
+                    if (!Double.isFinite(value)) {
+                        throw new NumberFormatException("Not a finite number: " + value);
+                    }
+                    params.put(param, value);
                 } catch (NumberFormatException e) {
                     e.printStackTrace();
                     halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
@@ -180,6 +388,33 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Return the route session token of the client making the request. Clients may pass it as
+     * a query parameter; otherwise it is kept in a cookie, which is issued on first use.
+     * @param req HTTP Request
+     * @param res HTTP Response, used to set the cookie for new clients
+     * @return the client's session token
+     */
+    private static String sessionToken(spark.Request req, spark.Response res) {
+        String token = req.queryParams(SESSION_COOKIE);
+        if (token == null) {
+            token = req.cookie(SESSION_COOKIE);
+        }
+        if (token == null) {
+            token = UUID.randomUUID().toString();
+            res.cookie(SESSION_COOKIE, token);
+        }
+        return token;
+    }
+
+    /**
+     * Rasters the query box with the route of the default session.
+     * @see #getMapRaster(Map, OutputStream, String)
+     */
+    public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os) {
+        return getMapRaster(params, os, DEFAULT_SESSION);
+    }
+
     /**
      * Handles raster API calls, queries for tiles and rasters the full image. <br>
      * <p>
@@ -193,8 +428,9 @@ public class MapServer {
      *         <li>Contains all tiles that intersect the query bounding box that fulfill the
      *         above condition.</li>
      *         <li>The tiles must be arranged in-order to reconstruct the full image.</li>
-     *         <li>If a current route exists, lines of width ROUTE_STROKE_WIDTH_PX and of color
-     *         ROUTE_STROKE_COLOR are drawn between all nodes on the route in the rastered photo.
+     *         <li>If the session has a current route, lines of width ROUTE_STROKE_WIDTH_PX and of
+     *         color ROUTE_STROKE_COLOR are drawn between all nodes on the route in the rastered
+     *         photo.
      *         </li>
      *     </ul>
      *     Additional image about the raster is returned and is to be included in the Json response.
@@ -202,6 +438,7 @@ public class MapServer {
      * @param params Map of the HTTP GET request's query parameters - the query bounding box and
      *               the user viewport width and height.
      * @param os     An OutputStream that the resulting png image should be written to.
+     * @param sessionToken The client whose route is drawn.
      * @return A map of parameters for the Json response as specified:
      * "raster_ul_lon" -> Double, the bounding upper left longitude of the rastered image <br>
      * "raster_ul_lat" -> Double, the bounding upper left latitude of the rastered image <br>
@@ -211,89 +448,212 @@ public class MapServer {
      * "raster_height" -> Double, the height of the rastered image <br>
      * "depth"         -> Double, the 1-indexed quadtree depth of the nodes of the rastered image.
      * Can also be interpreted as the length of the numbers in the image string. <br>
-     * "query_success" -> Boolean, whether an image was successfully rastered. <br>
+     * "raster_complete" -> Boolean, false if some tiles missed the RASTER_DEADLINE_MS or could
+     * not be read, and were left as placeholders in the image <br>
+     * "query_success" -> Boolean, whether an image was successfully rastered. If no tile
+     * covers the query box, this is the only entry and nothing is written to os. <br>
      * @see #REQUIRED_RASTER_REQUEST_PARAMS
      */
-    public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os) {
+    public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os,
+                                                   String sessionToken) {
         HashMap<String, Object> rasteredImageParams = new HashMap<>();
-        LinkedList<QTreeNode> rastersNodes = new LinkedList<>();
-        BufferedImage rasterImage;
+        QTreeNode[][] rastersNodes;
+        RasterComposer.ComposedRaster rasterImage;
         boolean query_success = true;
 
-        double dpp = (params.get("lrlon") - params.get("ullon")) / params.get("w");
-
-        double winUllon = params.get("ullon");
-        double winUllat = params.get("ullat");
-        double winLrlon = params.get("lrlon");
-        double winLrlat = params.get("lrlat");
-        double[] viewBox = {winUllon, winUllat, winLrlon, winLrlat};
-
-        rastersNodes = (LinkedList<QTreeNode>) tree.gatherNodesInRange(dpp, viewBox);
-        // Get rasterNodes in reverse order (largest -> smallest) latitude value
-        // so we can render the image from the top down
-        Collections.sort(rastersNodes, Collections.reverseOrder());
-        rasterImage = buildRasterImage(rastersNodes, query_success);
+        rastersNodes = getRasterTiles(params);
+        // No tiles to stitch: the query box misses the map, or the root is already too detailed
+        if (rastersNodes.length == 0) {
+            rasteredImageParams.put("query_success", false);
+            return rasteredImageParams;
+        }
+        rasterImage = buildRasterImage(rastersNodes, query_success,
+                routeSessions.get(sessionToken));
 
         try {
-            ImageIO.write(rasterImage, "png", os);
+            writePng(rasterImage.image, os);
         } catch (IOException e) {
             query_success = false;
             e.printStackTrace();
         }
 
         // Build the rasteredImageParams map
-        rasteredImageParams.put("raster_ul_lon", rastersNodes.getFirst().ullon);
-        rasteredImageParams.put("raster_ul_lat", rastersNodes.getFirst().ullat);
-        rasteredImageParams.put("raster_lr_lon", rastersNodes.getLast().lrlon);
-        rasteredImageParams.put("raster_lr_lat", rastersNodes.getLast().lrlat);
-        rasteredImageParams.put("raster_width", rasterImage.getWidth());
-        rasteredImageParams.put("raster_height", rasterImage.getHeight());
-        rasteredImageParams.put("depth", rastersNodes.getFirst().imageName.length());
+        putRasterParams(rasteredImageParams, rastersNodes, rasterImage);
         rasteredImageParams.put("query_success", query_success);
 
         return rasteredImageParams;
     }
 
-    public static BufferedImage buildRasterImage(Iterable<QTreeNode> rasterNodes, boolean query_success) {
-        BufferedImage rasteredImage;
-        HashSet<Double> latitudes = new HashSet<>();
+    /**
+     * Handles binary raster API calls. Rasters the same image as getMapRaster, but reports the
+     * raster parameters in X-Raster-* response headers and writes the png straight to the
+     * response, so that it is neither buffered nor Base64 encoded into a Json body. Fails the
+     * request if no tile covers the query box. The hit, miss and eviction counts of the
+     * TileCache are sent along in X-Tile-Cache-* headers.
+     * @param params Map of the HTTP GET request's query parameters - the query bounding box and
+     *               the user viewport width and height.
+     * @param res    The response to write the headers and png image to.
+     * @param sessionToken The client whose route is drawn.
+     * @throws IOException if the png could not be written to the response
+     */
+    public static void streamMapRaster(Map<String, Double> params, Response res,
+                                       String sessionToken) throws IOException {
+        QTreeNode[][] rastersNodes = getRasterTiles(params);
+        if (rastersNodes.length == 0) {
+            halt(HALT_RESPONSE, "Request failed - no tiles in the query box.");
+        }
+        RasterComposer.ComposedRaster rasterImage = buildRasterImage(rastersNodes, true,
+                routeSessions.get(sessionToken));
+
+        // Headers have to be set before the first byte of the body is written
+        HashMap<String, Object> rasteredImageParams = new HashMap<>();
+        putRasterParams(rasteredImageParams, rastersNodes, rasterImage);
+        StringJoiner exposed = new StringJoiner(", ");
+        for (Map.Entry<String, Object> param : rasteredImageParams.entrySet()) {
+            String header = RASTER_HEADERS.get(param.getKey());
+            res.header(header, String.valueOf(param.getValue()));
+            exposed.add(header);
+        }
+        // Counters since startup, to tell how well TILE_CACHE_BYTES fits the traffic
+        res.header("X-Tile-Cache-Hits", String.valueOf(tileCache.hitCount()));
+        res.header("X-Tile-Cache-Misses", String.valueOf(tileCache.missCount()));
+        res.header("X-Tile-Cache-Evictions", String.valueOf(tileCache.evictionCount()));
+        exposed.add("X-Tile-Cache-Hits").add("X-Tile-Cache-Misses").add("X-Tile-Cache-Evictions");
+        res.header("Access-Control-Expose-Headers", exposed.toString());
+        res.type("image/png");
+
+        OutputStream os = res.raw().getOutputStream();
+        writePng(rasterImage.image, os);
+        os.flush();
+    }
 
-        // Find the number of unique latitudes in the set of rasterNodes to determine the height of the image
-        for (QTreeNode node : rasterNodes) {
-            latitudes.add(node.ullat);
+    /**
+     * Encode a raster with the configured RASTER_PNG_ENCODER, or with ImageIO if there is none.
+     */
+    private static void writePng(BufferedImage rasterImage, OutputStream os) throws IOException {
+        if (RASTER_PNG_ENCODER != null) {
+            RASTER_PNG_ENCODER.write(rasterImage, os);
+        } else {
+            ImageIO.write(rasterImage, "png", os);
         }
+    }
 
-        int x = 0;
-        int y = 0;
-        int height = latitudes.size();
-        int width = ((LinkedList<QTreeNode>) rasterNodes).size() / height;
+    private static void putRasterParams(Map<String, Object> rasteredImageParams,
+                                        QTreeNode[][] rastersNodes,
+                                        RasterComposer.ComposedRaster rasterImage) {
+        QTreeNode upperLeft = upperLeft(rastersNodes);
+        QTreeNode lowerRight = lowerRight(rastersNodes);
+        rasteredImageParams.put("raster_ul_lon", upperLeft.ullon);
+        rasteredImageParams.put("raster_ul_lat", upperLeft.ullat);
+        rasteredImageParams.put("raster_lr_lon", lowerRight.lrlon);
+        rasteredImageParams.put("raster_lr_lat", lowerRight.lrlat);
+        rasteredImageParams.put("raster_width", rasterImage.image.getWidth());
+        rasteredImageParams.put("raster_height", rasterImage.image.getHeight());
+        rasteredImageParams.put("depth", upperLeft.imageName.length());
+        rasteredImageParams.put("raster_complete", rasterImage.isComplete());
+    }
 
-        rasteredImage = new BufferedImage(width * TILE_SIZE, height * TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphics = rasteredImage.getGraphics();
+    private static QTreeNode upperLeft(QTreeNode[][] rastersNodes) {
+        return rastersNodes[0][0];
+    }
 
-        for (QTreeNode node : rasterNodes) {
-            BufferedImage tile = null;
-            if (x >= rasteredImage.getWidth()) {
-                x = 0;
-                y += TILE_SIZE;
-            }
+    private static QTreeNode lowerRight(QTreeNode[][] rastersNodes) {
+        QTreeNode[] lastRow = rastersNodes[rastersNodes.length - 1];
+        return lastRow[lastRow.length - 1];
+    }
 
-            try {
-                tile = ImageIO.read(new File(IMG_ROOT + node.imageName + ".png"));
-            } catch (IOException e) {
-                query_success = false;
-                e.printStackTrace();
+    /**
+     * Compute the tiles covering the query box at the resolution required by the viewport.
+     * @param params the raster request parameters
+     * @return the tiles in rows from top to bottom, each row from left to right
+     */
+    public static QTreeNode[][] getRasterTiles(Map<String, Double> params) {
+        double dpp = (params.get("lrlon") - params.get("ullon")) / params.get("w");
+
+        double winUllon = params.get("ullon");
+        double winUllat = params.get("ullat");
+        double winLrlon = params.get("lrlon");
+        double winLrlat = params.get("lrlat");
+        double[] viewBox = {winUllon, winUllat, winLrlon, winLrlat};
+
+        return tree.tileGrid(dpp, viewBox);
+    }
+
+    /**
+     * Handles tile grid API calls. Selects the same tiles as getMapRaster, but instead of
+     * stitching and re-encoding them, describes the grid so that the client can fetch each tile
+     * from /tiles, cache it, and draw the route itself.
+     * @param params Map of the HTTP GET request's query parameters - the query bounding box and
+     *               the user viewport width and height.
+     * @param sessionToken The client whose route is returned.
+     * @return A map with the same raster_* bounds, depth and query_success entries as
+     * getMapRaster, plus: <br>
+     * "grid_rows", "grid_cols" -> Number, the size of the tile grid <br>
+     * "tile_size"      -> Number, the width and height of every tile in pixels <br>
+     * "tiles"          -> rows from top to bottom, each a list of tiles from left to right,
+     * each tile a map of its "name", "url" and "etag" <br>
+     * "route"          -> list of [lon, lat] points of the session's current route <br>
+     */
+    public static Map<String, Object> getRasterGrid(Map<String, Double> params,
+                                                    String sessionToken) {
+        HashMap<String, Object> rasterGrid = new HashMap<>();
+        QTreeNode[][] rastersNodes = getRasterTiles(params);
+        boolean query_success = rastersNodes.length > 0;
+
+        List<List<Map<String, Object>>> rows = new ArrayList<>();
+        for (QTreeNode[] tiles : rastersNodes) {
+            List<Map<String, Object>> row = new ArrayList<>();
+            rows.add(row);
+            for (QTreeNode node : tiles) {
+                String etag = tileStore.etag(node.imageName);
+                if (etag == null) {
+                    query_success = false;
+                }
+                Map<String, Object> tile = new HashMap<>();
+                tile.put("name", node.imageName);
+                tile.put("url", "/tiles/" + node.imageName + ".png");
+                tile.put("etag", etag);
+                row.add(tile);
             }
+        }
+
+        List<double[]> routePoints = new ArrayList<>();
+        RoutePath route = routeSessions.get(sessionToken);
+        for (int i = 0; i < route.size(); i++) {
+            routePoints.add(new double[]{route.lon(i), route.lat(i)});
+        }
 
-            graphics.drawImage(tile, x, y, null);
-            x += TILE_SIZE;
+        if (query_success) {
+            QTreeNode upperLeft = upperLeft(rastersNodes);
+            QTreeNode lowerRight = lowerRight(rastersNodes);
+            rasterGrid.put("raster_ul_lon", upperLeft.ullon);
+            rasterGrid.put("raster_ul_lat", upperLeft.ullat);
+            rasterGrid.put("raster_lr_lon", lowerRight.lrlon);
+            rasterGrid.put("raster_lr_lat", lowerRight.lrlat);
+            rasterGrid.put("depth", upperLeft.imageName.length());
+            rasterGrid.put("grid_rows", rows.size());
+            rasterGrid.put("grid_cols", rows.get(0).size());
+            rasterGrid.put("tile_size", TILE_SIZE);
+            rasterGrid.put("tiles", rows);
+            rasterGrid.put("route", routePoints);
         }
+        rasterGrid.put("query_success", query_success);
+
+        return rasterGrid;
+    }
+
+    public static RasterComposer.ComposedRaster buildRasterImage(QTreeNode[][] rasterNodes,
+                                                                boolean query_success,
+                                                                RoutePath route) {
+        // Tiles are fetched, decoded and copied into place in parallel
+        RasterComposer.ComposedRaster raster = rasterComposer.compose(rasterNodes);
 
         if (!route.isEmpty()) {
-            rasterRoute(graphics, rasteredImage, rasterNodes);
+            Graphics graphics = raster.image.getGraphics();
+            rasterRoute(graphics, raster.image, rasterNodes, route);
         }
 
-        return rasteredImage;
+        return raster;
     }
 
     /**
@@ -302,43 +662,50 @@ public class MapServer {
      * @param graphics
      * @param rasteredImage
      * @param rasterNodes
+     * @param route
      */
-    public static void rasterRoute(Graphics graphics, BufferedImage rasteredImage, Iterable<QTreeNode> rasterNodes) {
+    public static void rasterRoute(Graphics graphics, BufferedImage rasteredImage, QTreeNode[][] rasterNodes,
+                                   RoutePath route) {
         // Set the graphics for the line
         Graphics2D graphics2D = (Graphics2D) graphics;
         BasicStroke line = new BasicStroke(ROUTE_STROKE_WIDTH_PX, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
         graphics2D.setStroke(line);
         graphics2D.setPaint(ROUTE_STROKE_COLOR);
         // Get raster image bounds
-        double ullat = ((LinkedList<QTreeNode>) rasterNodes).getFirst().ullat;
-        double ullon = ((LinkedList<QTreeNode>) rasterNodes).getFirst().ullon;
-        double lrlat = ((LinkedList<QTreeNode>) rasterNodes).getLast().lrlat;
-        double lrlon = ((LinkedList<QTreeNode>) rasterNodes).getLast().lrlon;
+        double ullat = upperLeft(rasterNodes).ullat;
+        double ullon = upperLeft(rasterNodes).ullon;
+        double lrlat = lowerRight(rasterNodes).lrlat;
+        double lrlon = lowerRight(rasterNodes).lrlon;
         // Calculate scale pixel/coordinate
         double lonScale = coordinatePerPixel(ullon, ullat, lrlon, lrlat, rasteredImage, "lon");
         double latScale = coordinatePerPixel(ullon, ullat, lrlon, lrlat, rasteredImage, "lat");
         // Calculate position for each Node and draw the line
-        for (int i = 0; i < route.size() - 1; i++) {
-            Node point1 = g.getNodeByID(route.get(i));
-            Node point2 = g.getNodeByID(route.get(i + 1));
-            int point1_x = getPixelPositionOffset(point1, ullat, latScale, ullon, lonScale, "lon");
-            int point1_y = getPixelPositionOffset(point1, ullat, latScale, ullon, lonScale, "lat");
-            int point2_x = getPixelPositionOffset(point2, ullat, latScale, ullon, lonScale, "lon");
-            int point2_y = getPixelPositionOffset(point2, ullat, latScale, ullon, lonScale, "lat");
-            graphics2D.drawLine(point1_x, point1_y,
-                    point2_x, point2_y);
+        // The route arrays are walked in order, so each point is projected only once
+        int point1_x = 0;
+        int point1_y = 0;
+        for (int i = 0; i < route.size(); i++) {
+            double lon = route.lon(i);
+            double lat = route.lat(i);
+            int point2_x = getPixelPositionOffset(lon, lat, ullat, latScale, ullon, lonScale, "lon");
+            int point2_y = getPixelPositionOffset(lon, lat, ullat, latScale, ullon, lonScale, "lat");
+            if (i > 0) {
+                graphics2D.drawLine(point1_x, point1_y,
+                        point2_x, point2_y);
+            }
+            point1_x = point2_x;
+            point1_y = point2_y;
         }
     }
 
-    public static int getPixelPositionOffset(Node point, double ullat, double latScale, double ullon,
+    public static int getPixelPositionOffset(double lon, double lat, double ullat, double latScale, double ullon,
                                        double lonScale, String coord) {
         int pos = 0;
         if (coord == "lat") {
             // Need to inverse this because Y is increasing downwards for the buffer image
-            pos = (int) (- (point.latitude - ullat) * (1 / latScale) - 5);
+            pos = (int) (- (lat - ullat) * (1 / latScale) - 5);
         }
         else if (coord == "lon") {
-            pos = (int) ((point.longitude - ullon) * (1 / lonScale) - 7);
+            pos = (int) ((lon - ullon) * (1 / lonScale) - 7);
         }
         return pos;
     }
@@ -359,98 +726,6 @@ public class MapServer {
     }
 
 
-    /**
-     * Initializing function that createst the entire QuadTree with all images
-     * @param tree - takes the private static QuadTree variable in the MapServer class
-     */
-    public static void initializeTree(QuadTree tree) {
-        // Add the initial root node
-        tree.addQTreeNode(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, "root");
-        double[] root_coord = {ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT};
-        treeBuilder(tree, root_coord, "root");
-    }
-
-    /**
-     * Helper function that recursively builds the entire QuadTree.
-     * 1. Check if the png exists in /img/ folder
-     * 2. Split incoming coordinates[] of node into four quadrants
-     * 3. Build the image file name based on if the previous name is root or not
-     * 4. Build the entire level of each quadrant
-     * 5. Recursively build each quadrant
-     * @param tree - takes the private static QuadTree variable in the MapServer class
-     * @param coordinates - the coordinates of the root node
-     * @param filename - name of the file that we'll ultimately use to load the png file
-     */
-    public static void treeBuilder(QuadTree tree, double[] coordinates, String filename) {
-
-        if (!isValidFile(filename))
-            return;
-
-        String imgName1, imgName2, imgName3, imgName4;
-        imgName1 = imgName2 = imgName3 = imgName4 = filename;
-        double lonMid = (coordinates[0] + coordinates[2]) / 2;
-        double latMid = (coordinates[1] + coordinates[3]) / 2;
-
-        // Split the current node into four quadrants
-        double[] northWest = {coordinates[0], coordinates[1], lonMid, latMid};
-        double[] northEast = {lonMid, coordinates[1], coordinates[2], latMid};
-        double[] southWest = {coordinates[0], latMid, lonMid, coordinates[3]};
-        double[] southEast = {lonMid, latMid, coordinates[2], coordinates[3]};
-
-
-        if (filename == "root") {
-            imgName1 = "1";
-            tree.addQTreeNode(northWest[0], northWest[1], northWest[2], northWest[3], imgName1);
-            treeBuilder(tree, northWest, imgName1);
-
-            imgName2 = "2";
-            tree.addQTreeNode(northEast[0], northEast[1], northEast[2], northEast[3], imgName2);
-            treeBuilder(tree, northEast, imgName2);
-
-            imgName3 = "3";
-            tree.addQTreeNode(southWest[0], southWest[1], southWest[2], southWest[3], imgName3);
-            treeBuilder(tree, southWest, imgName3);
-
-            imgName4 = "4";
-            tree.addQTreeNode(southEast[0], southEast[1], southEast[2], southEast[3], imgName4);
-            treeBuilder(tree, southEast, imgName4);
-        }
-        else {
-            imgName1 = imgName1 + "1";
-            if (isValidFile(imgName1)) {
-                tree.addQTreeNode(northWest[0], northWest[1], northWest[2], northWest[3], imgName1);
-            }
-
-            imgName2 = filename;
-            imgName2 = imgName2 + "2";
-            if (isValidFile(imgName2)) {
-                tree.addQTreeNode(northEast[0], northEast[1], northEast[2], northEast[3], imgName2);
-            }
-
-            imgName3 = filename;
-            imgName3 = imgName3 + "3";
-            if (isValidFile(imgName3)) {
-                tree.addQTreeNode(southWest[0], southWest[1], southWest[2], southWest[3], imgName3);
-            }
-
-            imgName4 = filename;
-            imgName4 = imgName4 + "4";
-            if (isValidFile(imgName4)) {
-                tree.addQTreeNode(southEast[0], southEast[1], southEast[2], southEast[3], imgName4);
-            }
-
-            treeBuilder(tree, northWest, imgName1);
-            treeBuilder(tree, northEast, imgName2);
-            treeBuilder(tree, southWest, imgName3);
-            treeBuilder(tree, southEast, imgName4);
-        }
-    }
-
-    public static boolean isValidFile(String filename) {
-        File image = new File(IMG_ROOT + filename + ".png");
-        return image.exists();
-    }
-
     /**
      * Searches for the shortest route satisfying the input request parameters, sets it to be the
      * current route, and returns a <code>LinkedList</code> of the route's node ids for testing
@@ -462,6 +737,32 @@ public class MapServer {
      * @return A LinkedList of node ids from the start of the route to the end.
      */
     public static LinkedList<Long> findAndSetRoute(Map<String, Double> params) {
+        return findAndSetRoute(params, DEFAULT_SESSION);
+    }
+
+    /**
+     * Searches for the shortest route satisfying the input request parameters and sets it to be
+     * the current route of the given client session.
+     * @param params from the API call described in REQUIRED_ROUTE_REQUEST_PARAMS
+     * @param sessionToken the client the route belongs to
+     * @return A LinkedList of node ids from the start of the route to the end.
+     */
+    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params, String sessionToken) {
+        return findAndSetRoute(params, sessionToken, RoutingEngine.Algorithm.ASTAR);
+    }
+
+    /**
+     * Searches for the shortest route satisfying the input request parameters with the given
+     * search algorithm, and sets it to be the current route of the given client session.
+     * The number of vertices the search expanded is then available from
+     * router.lastExpansionCount() on the same thread.
+     * @param params from the API call described in REQUIRED_ROUTE_REQUEST_PARAMS
+     * @param sessionToken the client the route belongs to
+     * @param algorithm the search algorithm to use
+     * @return A LinkedList of node ids from the start of the route to the end.
+     */
+    public static LinkedList<Long> findAndSetRoute(Map<String, Double> params, String sessionToken,
+                                                   RoutingEngine.Algorithm algorithm) {
         LinkedList<Long> shortestRoute;
         double start_lon = params.get("start_lon");
         double start_lat = params.get("start_lat");
@@ -469,105 +770,150 @@ public class MapServer {
         double end_lat = params.get("end_lat");
 
         // Utilize the graph's kdTree to find nearest Node
-        Node startNode = g.getNearestNode(start_lon, start_lat);
-        Node endNode = g.getNearestNode(end_lon, end_lat);
+        int start = g.getNearestIndex(start_lon, start_lat);
+        int end = g.getNearestIndex(end_lon, end_lat);
 
-        shortestRoute = getShortestPath(startNode, endNode);
+        shortestRoute = router.shortestPath(start, end, algorithm);
+        routeSessions.put(sessionToken, RoutePath.of(shortestRoute, g));
 
         return shortestRoute;
     }
 
-    public static void initializeDistanceToInfinity(HashMap<Node, Double> distance,
-                                                    HashMap<Node, ? extends Set<Node>> mapGraph) {
-        double INFINITY = Double.POSITIVE_INFINITY;
-        for (Node n : mapGraph.keySet()) {
-            distance.put(n, INFINITY);
-        }
-    }
-
     /**
-     * Use A* search algorithm to get the shortest route from the start node to end node
-     * Prority associated with a node: f(n) = g(n) + h(n)
-     * g(n): shortest known path distance from s to n
-     * h(n): Euclidean distance from n to t. Distance between two points = sqrt((x1 - x0)^2 + (y1 - y0)^2))
-     * @param start
-     * @param end
-     * @return
+     * Searches for the shortest route between the points on the road network nearest to the
+     * start and end points, and sets it to be the current route of the given client session.
+     * Unlike findAndSetRoute, the ends are snapped onto the nearest road segments rather than
+     * their nearest vertices, so the route starts and ends part way along a road.
+     * @param params from the API call described in REQUIRED_ROUTE_REQUEST_PARAMS
+     * @param sessionToken the client the route belongs to
+     * @return the route from the snapped end point back to the snapped start point, or
+     * RoutePath.EMPTY if there is no route
      */
-    public static LinkedList<Long> getShortestPath(Node start, Node end) {
-        // Using cool Lambda function to create anonymous Comparator function class
-        // to sort Nodes based on calculated heuristic
-        final Queue<Node> openQueue = new PriorityQueue<>(11, (node1, node2) -> {
-            if (node1.getFScore() < node2.getFScore())
-                return -1;
-            else if (node1.getFScore() > node2.getFScore())
-                return 1;
-            else
-                return 0;
-        });
-
-        final HashMap<Long, Long> cameFrom = new HashMap<>();
-        final HashMap<Node, Double> distanceFrom = new HashMap<>();
-        initializeDistanceToInfinity(distanceFrom, g.mapGraph);
-        final HashSet<Node> closedList = new HashSet<>();
+    public static RoutePath findAndSetSnappedRoute(Map<String, Double> params,
+                                                   String sessionToken) {
+        SegmentIndex.Snap start = g.getNearestSegment(params.get("start_lon"),
+                params.get("start_lat"));
+        SegmentIndex.Snap end = g.getNearestSegment(params.get("end_lon"),
+                params.get("end_lat"));
 
-        distanceFrom.put(start, 0.0);
-        double start_fscore = start.distanceBetweenNodes(end);
-        start.setFScore(start_fscore);
-        openQueue.add(start);
+        RoutePath route = router.shortestPath(start, end);
+        routeSessions.put(sessionToken, route);
 
-         while (!openQueue.isEmpty()) {
-             // Pop node with the lowest fScore
-            Node currentNode = openQueue.poll();
+        return route;
+    }
 
-            // Goal found
-            if (currentNode.equals(end)) {
-                return reconstructPath(cameFrom, currentNode.id);
+    /**
+     * Computes the road distances between many points at once. Every point is snapped to its
+     * nearest node in one batch, and the rows are searched in parallel by the RoutingEngine.
+     * @param sources the {lon, lat} of every source point
+     * @param targets the {lon, lat} of every target point
+     * @return a map with the snapped "sources" and "targets" node ids, and the "distances"
+     * matrix whose row i, column j is the distance from source i to target j in the lon/lat
+     * units of the routes, or null if there is no route
+     */
+    public static Map<String, Object> getDistanceMatrix(double[][] sources, double[][] targets) {
+        int[] sourceIndices = nearestIndices(sources);
+        int[] targetIndices = nearestIndices(targets);
+        double[][] distances = router.distanceMatrix(sourceIndices, targetIndices);
+
+        Double[][] matrix = new Double[sources.length][targets.length];
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                double d = distances[i][j];
+                matrix[i][j] = d == Double.POSITIVE_INFINITY ? null : d;
             }
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("sources", nodeIds(sourceIndices));
+        result.put("targets", nodeIds(targetIndices));
+        result.put("distances", matrix);
+        return result;
+    }
 
-            closedList.add(currentNode);
+    private static int[] nearestIndices(double[][] points) {
+        double[] lons = new double[points.length];
+        double[] lats = new double[points.length];
+        for (int i = 0; i < points.length; i++) {
+            lons[i] = points[i][0];
+            lats[i] = points[i][1];
+        }
+        return g.getNearestIndices(lons, lats);
+    }
 
-            for (Node neighbor : g.getNeighbors(currentNode)) {
-                if (closedList.contains(neighbor)) continue;
+    private static Long[] nodeIds(int[] indices) {
+        Long[] ids = new Long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            ids[i] = indices[i] < 0 ? null : g.graph.ids[indices[i]];
+        }
+        return ids;
+    }
 
-                double distanceBetweenTwoNodes = neighbor.distanceBetweenNodes(currentNode);
-                double currentNode_GScore = distanceFrom.get(currentNode);
-                double tentative_gScore = distanceBetweenTwoNodes + currentNode_GScore;
+    /** Json body of a /matrix request. */
+    static class MatrixRequest {
+        /** Upper bound on the sources, and on the targets, of one request. */
+        static final int MAX_POINTS = 1000;
 
-                if (tentative_gScore < distanceFrom.get(neighbor)) {
-                    distanceFrom.put(neighbor, tentative_gScore);
-                    double heuristic = neighbor.distanceBetweenNodes(end);
-                    neighbor.setFScore(tentative_gScore + heuristic);
-                    cameFrom.put(neighbor.id, currentNode.id);
+        double[][] sources;
+        double[][] targets;
 
-                    if (!openQueue.contains(neighbor)) {
-                        openQueue.add(neighbor);
-                    }
-                }
+        /**
+         * @return the request in body, or null if body is not Json of the expected shape or
+         * has too many, missing or non-finite points
+         */
+        static MatrixRequest parse(String body) {
+            MatrixRequest request;
+            try {
+                request = new Gson().fromJson(body, MatrixRequest.class);
+            } catch (RuntimeException e) {
+                // Besides JsonParseException, this Gson reports a value of the wrong type with
+                // whatever its casts throw, ie. ClassCastException
+                return null;
+            }
+            if (request == null || !isValid(request.sources) || !isValid(request.targets)) {
+                return null;
             }
+            return request;
         }
 
-        return new LinkedList<Long>();
-    }
-
-    public static LinkedList<Long> reconstructPath(HashMap<Long, Long> cameFrom, long current) {
-        LinkedList<Long> path = new LinkedList<>();
-        path.add(current);
-        while (cameFrom.containsKey(current)) {
-            current = cameFrom.get(current);
-            path.add(current);
+        private static boolean isValid(double[][] points) {
+            if (points == null || points.length > MAX_POINTS) {
+                return false;
+            }
+            for (double[] point : points) {
+                if (point == null || point.length != 2 || !Double.isFinite(point[0])
+                        || !Double.isFinite(point[1])) {
+                    return false;
+                }
+            }
+            return true;
         }
+    }
 
-        return path;
+    /**
+     * Use A* search algorithm to get the shortest route from the start node to end node.
+     * The search itself runs in the RoutingEngine on per-thread state, so concurrent route
+     * requests do not interfere with each other.
+     * @param start
+     * @param end
+     * @return the node ids of the route, or an empty list if no route exists
+     */
+    public static LinkedList<Long> getShortestPath(Node start, Node end) {
+        return router.shortestPath(g.graph.indexOf(start.id), g.graph.indexOf(end.id));
     }
 
     /**
-     * Clear the current found route, if it exists.
+     * Clear the current found route of the default session, if it exists.
      */
     public static void clearRoute() {
-        if (!route.isEmpty()) {
-            route.clear();
-        }
+        clearRoute(DEFAULT_SESSION);
+    }
+
+    /**
+     * Clear the current found route of a client session, if it exists.
+     * @param sessionToken the client whose route is cleared
+     */
+    public static void clearRoute(String sessionToken) {
+        routeSessions.clear(sessionToken);
     }
 
     /**
@@ -581,6 +927,19 @@ public class MapServer {
         return g.getAutoCompleteSuggestions(prefix);
     }
 
+    /**
+     * Collect the names of the k highest ranked OSM locations that prefix-match the query
+     * string, ranked by how many locations share the name. Takes time bounded by k and the
+     * prefix length for k up to GraphDB.TOP_SUGGESTIONS.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param k The maximum number of names to return.
+     * @return A <code>List</code> of at most k full names, best ranked first.
+     */
+    public static List<String> getTopLocationsByPrefix(String prefix, int k) {
+        return g.getTopAutoCompleteSuggestions(prefix, k);
+    }
+
     /**
      * Collect all locations that match a cleaned <code>locationName</code>, and return
      * information about each node that matches.
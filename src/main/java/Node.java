@@ -5,29 +5,18 @@ public class Node {
     public double longitude;
     public String name;
     public boolean isHighway;
-    private double fScore;    // f = gScore + euclidian
-    private double INFINITY = Double.POSITIVE_INFINITY;
 
     public Node(long id, double lon, double lat) {
         this.id = id;
         this.latitude = lat;
         this.longitude = lon;
         this.isHighway = false;
-        this.fScore = INFINITY;
     }
 
     public void setName(String name) {
         this.name = name;
     }
 
-    public void setFScore(double fScore) {
-        this.fScore = fScore;
-    }
-
-    public double getFScore() {
-        return this.fScore;
-    }
-
     public double distanceBetweenNodes(Node destination) {
         return Math.sqrt(Math.pow(destination.longitude - this.longitude, 2) +
                 Math.pow(destination.latitude - this.latitude, 2));
@@ -0,0 +1,318 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Builds a GraphDB from an OSM XML file in three stages joined by a bounded queue:
+ * <ol>
+ *     <li>Tokenize: a reader thread runs the SAX parser and copies the attributes of the
+ *     elements the graph cares about into fixed size batches of raw strings.</li>
+ *     <li>Decode: a pool of worker threads parses the numbers and cleans the location names of
+ *     each batch.</li>
+ *     <li>Assemble: the calling thread applies the decoded batches to the graph in file order
+ *     through the same MapDBHandler logic used for single-threaded parsing.</li>
+ * </ol>
+ * Batches are decoded out of order but queued as Futures in file order, so the assembled
+ * GraphDB is identical to the one the plain MapDBHandler produces.
+ */
+public class OSMIngestPipeline {
+
+    /** Number of elements handed between stages at once. */
+    private static final int BATCH_SIZE = 4096;
+
+    private static final byte BOUNDS = 0, NODE = 1, WAY = 2, ND = 3, TAG = 4, END_WAY = 5;
+    /** Attribute strings stored per element; bounds needs the most. */
+    private static final int SLOTS = 4;
+
+    private final MapDBHandler handler;
+    private final int decoderThreads;
+
+    public OSMIngestPipeline(GraphDB g) {
+        this(new MapDBHandler(g));
+    }
+
+    /**
+     * @param handler the handler the decoded elements are applied to, which decides what is
+     *                kept in the GraphDB
+     */
+    public OSMIngestPipeline(MapDBHandler handler) {
+        this(handler, Math.max(1, Runtime.getRuntime().availableProcessors() - 2));
+    }
+
+    public OSMIngestPipeline(MapDBHandler handler, int decoderThreads) {
+        this.handler = handler;
+        this.decoderThreads = decoderThreads;
+    }
+
+    /**
+     * Parse the input file into the GraphDB. Returns once every element has been applied.
+     * @param inputFile the OSM XML file
+     */
+    public void parse(File inputFile)
+            throws ParserConfigurationException, SAXException, IOException {
+        SAXParser saxParser = SAXParserFactory.newInstance().newSAXParser();
+        ExecutorService decoders = Executors.newFixedThreadPool(decoderThreads, r -> {
+            Thread t = new Thread(r, "osm-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        // Bounded so that a slow assembler holds back the reader instead of buffering the file
+        BlockingQueue<Future<DecodedBatch>> queue =
+                new ArrayBlockingQueue<>(2 * decoderThreads + 2);
+        Tokenizer tokenizer = new Tokenizer(queue, decoders);
+
+        Thread reader = new Thread(() -> {
+            try {
+                saxParser.parse(inputFile, tokenizer);
+            } catch (SAXException | IOException e) {
+                tokenizer.failure = e;
+            } finally {
+                tokenizer.finish();
+            }
+        }, "osm-tokenizer");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            while (true) {
+                DecodedBatch batch = queue.take().get();
+                if (batch == null) {
+                    break;
+                }
+                assemble(batch);
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SAXException(e);
+        } catch (ExecutionException e) {
+            throw new SAXException("Failed to decode OSM element", e);
+        } finally {
+            // Tell the reader before waking it, so that it stops queueing instead of waiting for
+            // room that will never come
+            tokenizer.closed = true;
+            reader.interrupt();
+            decoders.shutdownNow();
+        }
+
+        if (tokenizer.failure instanceof IOException) {
+            throw (IOException) tokenizer.failure;
+        } else if (tokenizer.failure != null) {
+            throw (SAXException) tokenizer.failure;
+        }
+    }
+
+    private void assemble(DecodedBatch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            switch (batch.kinds[i]) {
+                case BOUNDS:
+                    int b = i * SLOTS;
+                    handler.bounds(batch.numbers[b], batch.numbers[b + 1],
+                            batch.numbers[b + 2], batch.numbers[b + 3]);
+                    break;
+                case NODE:
+                    handler.node(batch.ids[i], batch.numbers[i * SLOTS],
+                            batch.numbers[i * SLOTS + 1]);
+                    break;
+                case WAY:
+                    handler.way();
+                    break;
+                case ND:
+                    handler.wayNode(batch.ids[i]);
+                    break;
+                case TAG:
+                    handler.tag(batch.raw.values[i * SLOTS], batch.raw.values[i * SLOTS + 1],
+                            batch.cleanNames[i]);
+                    break;
+                case END_WAY:
+                    handler.endWay();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Elements as they came out of the SAX parser, with their attributes still as strings. */
+    private static class RawBatch {
+        final byte[] kinds = new byte[BATCH_SIZE];
+        final String[] values = new String[BATCH_SIZE * SLOTS];
+        int size;
+
+        boolean isFull() {
+            return size == BATCH_SIZE;
+        }
+    }
+
+    /** A RawBatch with its numbers parsed and location names cleaned. */
+    private static class DecodedBatch {
+        final RawBatch raw;
+        final byte[] kinds;
+        final int size;
+        final long[] ids;
+        final double[] numbers;
+        final String[] cleanNames;
+
+        DecodedBatch(RawBatch raw) {
+            this.raw = raw;
+            this.kinds = raw.kinds;
+            this.size = raw.size;
+            this.ids = new long[size];
+            this.numbers = new double[size * SLOTS];
+            this.cleanNames = new String[size];
+            String[] values = raw.values;
+            for (int i = 0; i < size; i++) {
+                int slot = i * SLOTS;
+                switch (kinds[i]) {
+                    case BOUNDS:
+                        for (int j = 0; j < SLOTS; j++) {
+                            numbers[slot + j] = Double.parseDouble(values[slot + j]);
+                        }
+                        break;
+                    case NODE:
+                        ids[i] = Long.parseLong(values[slot]);
+                        numbers[slot] = Double.parseDouble(values[slot + 1]);
+                        numbers[slot + 1] = Double.parseDouble(values[slot + 2]);
+                        break;
+                    case ND:
+                        ids[i] = Long.parseLong(values[slot]);
+                        break;
+                    case TAG:
+                        if ("name".equals(values[slot])) {
+                            cleanNames[i] = GraphDB.cleanString(values[slot + 1]);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * First stage: copies the relevant attributes out of the SAX callbacks and hands full
+     * batches to the decoder pool, queueing the pending results in file order.
+     */
+    private static class Tokenizer extends DefaultHandler {
+        private final BlockingQueue<Future<DecodedBatch>> queue;
+        private final ExecutorService decoders;
+        private RawBatch batch = new RawBatch();
+        volatile Exception failure;
+        /** Set once the assembler has stopped reading the queue, on success or failure. */
+        volatile boolean closed;
+
+        Tokenizer(BlockingQueue<Future<DecodedBatch>> queue, ExecutorService decoders) {
+            this.queue = queue;
+            this.decoders = decoders;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) throws SAXException {
+            switch (qName) {
+                case "bounds":
+                    add(BOUNDS, attributes.getValue("minlon"), attributes.getValue("minlat"),
+                            attributes.getValue("maxlon"), attributes.getValue("maxlat"));
+                    break;
+                case "node":
+                    add(NODE, attributes.getValue("id"), attributes.getValue("lon"),
+                            attributes.getValue("lat"), null);
+                    break;
+                case "way":
+                    add(WAY, null, null, null, null);
+                    break;
+                case "nd":
+                    add(ND, attributes.getValue("ref"), null, null, null);
+                    break;
+                case "tag":
+                    add(TAG, attributes.getValue("k"), attributes.getValue("v"), null, null);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (qName.equals("way")) {
+                add(END_WAY, null, null, null, null);
+            }
+        }
+
+        private void add(byte kind, String a, String b, String c, String d) throws SAXException {
+            int slot = batch.size * SLOTS;
+            batch.kinds[batch.size] = kind;
+            batch.values[slot] = a;
+            batch.values[slot + 1] = b;
+            batch.values[slot + 2] = c;
+            batch.values[slot + 3] = d;
+            batch.size++;
+            if (batch.isFull()) {
+                RawBatch full = batch;
+                batch = new RawBatch();
+                try {
+                    if (!enqueue(full)) {
+                        throw new SAXException("OSM ingest stopped");
+                    }
+                } catch (InterruptedException | RejectedExecutionException e) {
+                    throw new SAXException(e);
+                }
+            }
+        }
+
+        /** Flush the last partial batch and queue the end-of-input marker. */
+        void finish() {
+            try {
+                if (failure == null && batch.size > 0 && !enqueue(batch)) {
+                    return;
+                }
+                FutureTask<DecodedBatch> end = new FutureTask<>(() -> null);
+                end.run();
+                offer(end);
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // The assembler gave up and is no longer reading the queue
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Hand a batch to the decoders and queue its pending result.
+         * @return false if the assembler has stopped, in which case nothing was queued
+         */
+        private boolean enqueue(RawBatch raw) throws InterruptedException {
+            if (closed) {
+                return false;
+            }
+            return offer(decoders.submit(() -> new DecodedBatch(raw)));
+        }
+
+        /**
+         * Wait for room in the queue, but only as long as the assembler is still reading it: a
+         * plain put() on a full queue would block this thread forever once it has stopped.
+         * @return false if the assembler has stopped, in which case nothing was queued
+         */
+        private boolean offer(Future<DecodedBatch> pending) throws InterruptedException {
+            while (!closed) {
+                if (queue.offer(pending, 10, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * PNG encoder for composed map rasters, writing 8-bit RGB with a fixed per-row filter and a
+ * selectable deflate level.
+ * The rows are cut into chunks that are filtered and deflated in parallel on the common fork
+ * join pool. Every chunk but the last ends with a sync flush, so the chunks simply concatenate
+ * into one zlib stream that any PNG decoder reads. Chunks start with an empty dictionary, which
+ * costs a little size for the parallelism. Filter rows, Deflaters and output buffers are pooled
+ * per thread, so encoding allocates little beyond the returned bytes.
+ */
+public class PngEncoder {
+
+    /** Per-row filter strategies. */
+    public enum Filter {
+        NONE(0),
+        SUB(1),
+        UP(2),
+        AVERAGE(3),
+        PAETH(4),
+        /** Per row, the filter with the smallest sum of absolute differences, as in libpng. */
+        ADAPTIVE(-1);
+
+        /** Filter type byte of the PNG specification, or -1 if chosen per row. */
+        final int type;
+
+        Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * Cheapest encoding: the fastest deflate level, unfiltered. Map rasters are mostly runs of a
+     * few flat colors that deflate finds as repeats, so filtering them rarely pays off; the
+     * standard ImageIO writer also leaves them unfiltered.
+     */
+    public static final PngEncoder FAST = new PngEncoder(Deflater.BEST_SPEED, Filter.NONE);
+    /** Default deflate level, unfiltered, for output about as small as ImageIO's. */
+    public static final PngEncoder COMPACT = new PngEncoder(Deflater.DEFAULT_COMPRESSION,
+            Filter.NONE);
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int ROWS_PER_CHUNK = 64;
+    private static final Filter[] FIXED_FILTERS = {Filter.NONE, Filter.SUB, Filter.UP,
+        Filter.AVERAGE, Filter.PAETH};
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final int level;
+    private final Filter filter;
+
+    /**
+     * @param level  deflate level, 0-9 or Deflater.DEFAULT_COMPRESSION
+     * @param filter how every row is filtered before deflating
+     */
+    public PngEncoder(int level, Filter filter) {
+        if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Bad deflate level " + level);
+        }
+        this.level = level;
+        this.filter = filter;
+    }
+
+    /**
+     * The encoder named by a -Dbearmaps.pngEncoder style setting: "fast", "compact", or null
+     * for "imageio" to use the standard ImageIO writer.
+     * @throws IllegalArgumentException for any other name
+     */
+    public static PngEncoder forName(String name) {
+        switch (name) {
+            case "imageio":
+                return null;
+            case "fast":
+                return FAST;
+            case "compact":
+                return COMPACT;
+            default:
+                throw new IllegalArgumentException("Unknown png encoder " + name);
+        }
+    }
+
+    /**
+     * Write image as an RGB png. Any alpha is dropped.
+     */
+    public void write(BufferedImage image, OutputStream os) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = rgbPixels(image);
+
+        int chunks = Math.max(1, (height + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK);
+        byte[][] compressed = new byte[chunks][];
+        long[] adler = new long[chunks];
+        int[] filteredLength = new int[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            Scratch scratch = SCRATCH.get();
+            int firstRow = chunk * ROWS_PER_CHUNK;
+            int lastRow = Math.min(height, firstRow + ROWS_PER_CHUNK);
+            int length = filterRows(pixels, width, firstRow, lastRow, scratch);
+            filteredLength[chunk] = length;
+
+            Adler32 checksum = new Adler32();
+            checksum.update(scratch.filtered, 0, length);
+            adler[chunk] = checksum.getValue();
+
+            // Raw deflate: the last chunk finishes the stream, the others end on a byte
+            // boundary with a sync flush
+            boolean last = chunk == chunks - 1;
+            Deflater deflater = scratch.deflater(level);
+            deflater.setInput(scratch.filtered, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            int written = 0;
+            byte[] out = scratch.compressed;
+            while (true) {
+                written += deflater.deflate(out, written, out.length - written, flush);
+                // A flush is complete once it leaves room in the output buffer
+                if (last ? deflater.finished() : written < out.length) {
+                    break;
+                }
+                if (written == out.length) {
+                    out = Arrays.copyOf(out, 2 * out.length);
+                    scratch.compressed = out;
+                }
+            }
+            compressed[chunk] = Arrays.copyOf(out, written);
+        });
+
+        // zlib header (deflate, 32K window, no dictionary), the chunks, then the Adler-32 of
+        // all of the filtered data
+        int idatLength = 2 + 4;
+        long combined = 1;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            idatLength += compressed[chunk].length;
+            combined = combineAdler(combined, adler[chunk], filteredLength[chunk]);
+        }
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;      // bit depth
+        header[9] = 2;      // color type RGB
+        os.write(SIGNATURE);
+        writeChunk(os, "IHDR", header);
+
+        CRC32 crc = new CRC32();
+        byte[] lengthAndType = new byte[8];
+        putInt(lengthAndType, 0, idatLength);
+        System.arraycopy("IDAT".getBytes(StandardCharsets.US_ASCII), 0, lengthAndType, 4, 4);
+        os.write(lengthAndType);
+        crc.update(lengthAndType, 4, 4);
+        byte[] zlibHeader = {0x78, 0x01};
+        os.write(zlibHeader);
+        crc.update(zlibHeader, 0, 2);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            os.write(compressed[chunk]);
+            crc.update(compressed[chunk], 0, compressed[chunk].length);
+        }
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) combined);
+        os.write(trailer);
+        crc.update(trailer, 0, 4);
+        putInt(trailer, 0, (int) crc.getValue());
+        os.write(trailer);
+
+        writeChunk(os, "IEND", new byte[0]);
+    }
+
+    /**
+     * Filter rows firstRow..lastRow-1 into scratch.filtered, each row prefixed by its filter
+     * type byte. Filters look at the row above even across chunk boundaries, as a decoder does.
+     * @return the number of bytes written
+     */
+    private int filterRows(int[] pixels, int width, int firstRow, int lastRow,
+                           Scratch scratch) {
+        int rowBytes = 3 * width;
+        scratch.ensure(rowBytes, lastRow - firstRow);
+        byte[] filtered = scratch.filtered;
+        byte[] previous = scratch.previous;
+        byte[] current = scratch.current;
+        if (firstRow > 0) {
+            unpackRow(pixels, width, firstRow - 1, previous);
+        } else {
+            Arrays.fill(previous, 0, rowBytes, (byte) 0);
+        }
+
+        int offset = 0;
+        for (int row = firstRow; row < lastRow; row++) {
+            unpackRow(pixels, width, row, current);
+            Filter rowFilter = filter == Filter.ADAPTIVE
+                    ? bestFilter(current, previous, rowBytes) : filter;
+            filtered[offset++] = (byte) rowFilter.type;
+            applyFilter(rowFilter, current, previous, rowBytes, filtered, offset);
+            offset += rowBytes;
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        scratch.previous = previous;
+        scratch.current = current;
+        return offset;
+    }
+
+    private static void unpackRow(int[] pixels, int width, int row, byte[] out) {
+        int p = row * width;
+        for (int x = 0, i = 0; x < width; x++, i += 3) {
+            int rgb = pixels[p + x];
+            out[i] = (byte) (rgb >>> 16);
+            out[i + 1] = (byte) (rgb >>> 8);
+            out[i + 2] = (byte) rgb;
+        }
+    }
+
+    private static void applyFilter(Filter filter, byte[] row, byte[] above, int rowBytes,
+                                    byte[] out, int offset) {
+        switch (filter) {
+            case NONE:
+                System.arraycopy(row, 0, out, offset, rowBytes);
+                break;
+            case SUB:
+                for (int i = 0; i < rowBytes; i++) {
+                    int left = i >= 3 ? row[i - 3] : 0;
+                    out[offset + i] = (byte) (row[i] - left);
+                }
+                break;
+            case UP:
+                for (int i = 0; i < rowBytes; i++) {
+                    out[offset + i] = (byte) (row[i] - above[i]);
+                }
+                break;
+            case AVERAGE:
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= 3 ? row[i - 3] & 0xFF : 0;
+                    out[offset + i] = (byte) (row[i] - ((a + (above[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case PAETH:
+                for (int i = 0; i < rowBytes; i++) {
+                    int a = i >= 3 ? row[i - 3] & 0xFF : 0;
+                    int b = above[i] & 0xFF;
+                    int c = i >= 3 ? above[i - 3] & 0xFF : 0;
+                    out[offset + i] = (byte) (row[i] - paeth(a, b, c));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not a fixed filter: " + filter);
+        }
+    }
+
+    // Minimum sum of absolute differences over the fixed filters
+    private static Filter bestFilter(byte[] row, byte[] above, int rowBytes) {
+        Filter best = Filter.NONE;
+        long bestSum = Long.MAX_VALUE;
+        for (Filter candidate : FIXED_FILTERS) {
+            long sum = 0;
+            for (int i = 0; i < rowBytes && sum < bestSum; i++) {
+                int a = i >= 3 ? row[i - 3] & 0xFF : 0;
+                int b = above[i] & 0xFF;
+                int c = i >= 3 ? above[i - 3] & 0xFF : 0;
+                int predicted;
+                switch (candidate) {
+                    case SUB:
+                        predicted = a;
+                        break;
+                    case UP:
+                        predicted = b;
+                        break;
+                    case AVERAGE:
+                        predicted = (a + b) >>> 1;
+                        break;
+                    case PAETH:
+                        predicted = paeth(a, b, c);
+                        break;
+                    default:
+                        predicted = 0;
+                }
+                sum += Math.abs((byte) (row[i] - predicted));
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * The int[] of a TYPE_INT_RGB image as is if its rows are packed back to back from the
+     * start of the array, anything else converted row by row. A subimage shares the array of
+     * its parent, whose rows are longer or start further in.
+     */
+    private static int[] rgbPixels(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB
+                && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride()
+                == image.getWidth()) {
+            return ((DataBufferInt) raster.getDataBuffer()).getData();
+        }
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0,
+                image.getWidth());
+    }
+
+    /** Adler-32 of the concatenation of two byte runs, the second of length2 bytes. */
+    private static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return (sum2 << 16) | sum1;
+    }
+
+    private static void writeChunk(OutputStream os, String type, byte[] data)
+            throws IOException {
+        byte[] lengthAndType = new byte[8];
+        putInt(lengthAndType, 0, data.length);
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, lengthAndType, 4, 4);
+        CRC32 crc = new CRC32();
+        crc.update(lengthAndType, 4, 4);
+        crc.update(data, 0, data.length);
+        os.write(lengthAndType);
+        os.write(data);
+        byte[] checksum = new byte[4];
+        putInt(checksum, 0, (int) crc.getValue());
+        os.write(checksum);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /** Per-thread buffers and Deflater, grown as needed and reused across images. */
+    private static final class Scratch {
+        byte[] filtered = new byte[0];
+        byte[] previous = new byte[0];
+        byte[] current = new byte[0];
+        byte[] compressed = new byte[1 << 16];
+        private Deflater deflater;
+        private int deflaterLevel;
+
+        void ensure(int rowBytes, int rows) {
+            if (previous.length < rowBytes) {
+                previous = new byte[rowBytes];
+                current = new byte[rowBytes];
+            }
+            int needed = (rowBytes + 1) * rows;
+            if (filtered.length < needed) {
+                filtered = new byte[needed];
+            }
+        }
+
+        Deflater deflater(int level) {
+            if (deflater == null || deflaterLevel != level) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                deflater = new Deflater(level, true);
+                deflaterLevel = level;
+            } else {
+                deflater.reset();
+            }
+            return deflater;
+        }
+    }
+}
@@ -1,9 +1,5 @@
 public class QTreeNode implements Comparable<QTreeNode> {
 
-    public QTreeNode northWest;
-    public QTreeNode northEast;
-    public QTreeNode southWest;
-    public QTreeNode southEast;
     public double ullon, ullat, lrlon, lrlat;
     public String imageName;
 
@@ -1,106 +1,204 @@
-import java.awt.image.BufferedImage;
-import java.util.LinkedList;
-
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implicit quadtree over the tile pyramid.
+ * Tiles at depth d form a 2^d by 2^d grid, and the tile in column x, row y (counted from the
+ * upper left) lives in slot (4^d - 1) / 3 + y * 2^d + x of one array, so the parent and children
+ * of a tile are found by arithmetic instead of pointers. Tile names map to grid positions digit
+ * by digit: 1 is the north west quadrant, 2 north east, 3 south west and 4 south east.
+ * <p>
+ * The pyramid is built from a list of tile names, ie. a single listing of the tile folder,
+ * instead of probing the filesystem for every candidate tile.
+ * </p>
+ */
 public class QuadTree
 {
+    /** Tiles deeper than this are ignored, which bounds the slot array to about 1.4M entries. */
+    static final int MAX_DEPTH = 10;
+    private static final int TILE_SIZE = 256;
+
+    private final QTreeNode[] nodes;
+    private final int maxDepth;
+
+    /**
+     * @param imageNames names of the tiles that exist, without folder or extension. A tile is
+     *                   only part of the tree if all of its ancestors are too, as tiles are
+     *                   always reached from the root.
+     */
+    public QuadTree(double ullon, double ullat, double lrlon, double lrlat,
+                    Collection<String> imageNames) {
+        // Bucket the names by depth so that every parent is placed before its children
+        List<List<String>> byDepth = new ArrayList<>();
+        boolean hasRoot = false;
+        for (String name : imageNames) {
+            if (name.equals("root")) {
+                hasRoot = true;
+            } else if (TileStore.isValidName(name) && name.length() <= MAX_DEPTH) {
+                while (byDepth.size() <= name.length()) {
+                    byDepth.add(new ArrayList<>());
+                }
+                byDepth.get(name.length()).add(name);
+            }
+        }
 
-    private QTreeNode root;
-
-    public void addQTreeNode(double ullon, double ullat,
-                      double lrlon, double lrlat, String imgName) {
-
-        root = addQTreeNode(root, ullon, ullat, lrlon, lrlat, imgName);
+        int depth = hasRoot ? Math.max(0, byDepth.size() - 1) : -1;
+        nodes = new QTreeNode[slot(depth + 1, 0, 0)];
+        if (hasRoot) {
+            nodes[0] = new QTreeNode(ullon, ullat, lrlon, lrlat, "root");
+        }
+        int deepest = hasRoot ? 0 : -1;
+        for (int d = 1; d <= depth; d++) {
+            for (String name : byDepth.get(d)) {
+                int x = column(name);
+                int y = row(name);
+                QTreeNode parent = nodes[slot(d - 1, x >> 1, y >> 1)];
+                if (parent == null) {
+                    continue;
+                }
+                // Halve the parent's bounds, exactly as the tiles were cut
+                double lonMid = (parent.ullon + parent.lrlon) / 2;
+                double latMid = (parent.ullat + parent.lrlat) / 2;
+                boolean east = (x & 1) == 1;
+                boolean south = (y & 1) == 1;
+                nodes[slot(d, x, y)] = new QTreeNode(
+                        east ? lonMid : parent.ullon, south ? latMid : parent.ullat,
+                        east ? parent.lrlon : lonMid, south ? parent.lrlat : latMid, name);
+                deepest = d;
+            }
+        }
+        maxDepth = deepest;
     }
 
-    public QTreeNode addQTreeNode(QTreeNode node, double ullon, double ullat,
-                      double lrlon, double lrlat, String imgName) {
-
-        if (node == null) {
-            return new QTreeNode(ullon, ullat, lrlon, lrlat, imgName);
+    /**
+     * Build the tree from a single listing of the png files in imgRoot.
+     */
+    public static QuadTree fromDirectory(File imgRoot, double ullon, double ullat,
+                                         double lrlon, double lrlat) {
+        List<String> names = new ArrayList<>();
+        String[] files = imgRoot.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.endsWith(".png")) {
+                    names.add(file.substring(0, file.length() - ".png".length()));
+                }
+            }
         }
+        return new QuadTree(ullon, ullat, lrlon, lrlat, names);
+    }
 
-        double latMid = (node.lrlat + node.ullat) / 2;
-        double lonMid = (node.lrlon + node.ullon) / 2;
+    /** Depth of the deepest tile, 0 for a lone root, or -1 for an empty tree. */
+    public int maxDepth() {
+        return maxDepth;
+    }
 
-        if (ullon >= node.ullon && ullat <= node.ullat &&
-                lrlon <= lonMid && lrlat >= latMid) {
-            node.northWest = addQTreeNode(node.northWest, ullon, ullat, lrlon, lrlat, imgName);
+    /**
+     * @return the tile in column x and row y of depth d, or null if there is none
+     */
+    public QTreeNode node(int depth, int x, int y) {
+        if (depth < 0 || depth > maxDepth) {
+            return null;
         }
-        else if (ullon >= lonMid && ullat <= node.ullat &&
-                lrlon <= node.lrlon && lrlat >= latMid) {
-            node.northEast = addQTreeNode(node.northEast, ullon, ullat, lrlon, lrlat, imgName);
+        int side = 1 << depth;
+        if (x < 0 || y < 0 || x >= side || y >= side) {
+            return null;
         }
-        else if (ullon >= node.ullon && ullat <= latMid &&
-                lrlon <= lonMid && lrlat >= node.lrlat) {
-            node.southWest = addQTreeNode(node.southWest, ullon, ullat, lrlon, lrlat, imgName);
-        }
-        else if (ullon >= lonMid && ullat <= latMid &&
-                lrlon <= node.lrlon && lrlat >= node.lrlat) {
-            node.southEast = addQTreeNode(node.southEast, ullon, ullat, lrlon, lrlat, imgName);
-        }
-
-        return node;
+        return nodes[slot(depth, x, y)];
     }
 
-    public Iterable<QTreeNode> gatherNodesInRange(double dpp, double[] viewBox) {
-        LinkedList<QTreeNode> rasters = new LinkedList<>();
-        double root_dpp = (root.lrlon - root.ullon) / 256;
-        gatherNodesInRangeHelper(root, dpp, root_dpp, viewBox, rasters);
-        return rasters;
+    static int slot(int depth, int x, int y) {
+        return ((1 << (2 * depth)) - 1) / 3 + (y << depth) + x;
     }
 
-    public void gatherNodesInRangeHelper(QTreeNode node, double dpp, double node_dpp,
-                                         double[] viewBox, Iterable<QTreeNode> rasters) {
-
-        if (node_dpp <= dpp || node.northEast == null)
-            return;
+    // Grid column and row of a tile name, one bit per digit from the most significant
+    static int column(String name) {
+        int x = 0;
+        for (int i = 0; i < name.length(); i++) {
+            x = (x << 1) | ((name.charAt(i) - '1') & 1);
+        }
+        return x;
+    }
 
-        node_dpp = (node.northEast.lrlon - node.northEast.ullon) / 256;
-        double[] northWest = node.northWest.getCoords();
-        double[] northEast = node.northEast.getCoords();
-        double[] southWest = node.southWest.getCoords();
-        double[] southEast = node.southEast.getCoords();
+    static int row(String name) {
+        int y = 0;
+        for (int i = 0; i < name.length(); i++) {
+            y = (y << 1) | ((name.charAt(i) - '1') >> 1);
+        }
+        return y;
+    }
 
-        // Need to take into account if this is the last node in the tree
-        // Check two nodes down from current
-        if (viewBoxInBound(viewBox, northWest)) {
-            if (node_dpp <= dpp || node.northWest.northWest == null) {
-                ((LinkedList<QTreeNode>) rasters).add(node.northWest);
-            }
-            gatherNodesInRangeHelper(node.northWest, dpp, node_dpp, viewBox, rasters);
+    /**
+     * Compute the tiles covering the view box at the resolution required by dpp.
+     * The depth is the shallowest below the root whose tiles have at most dpp longitude per
+     * pixel, or the deepest there is, and the columns and rows are worked out from the view
+     * box, so nothing is searched, sorted or hashed. Assumes every level present is complete.
+     * @param dpp longitude per pixel of the viewport
+     * @param viewBox {ullon, ullat, lrlon, lrlat} of the query box
+     * @return the tiles intersecting the view box, in rows from top to bottom and each row from
+     * left to right, or an empty grid if no tile has enough resolution to be needed, ie. the
+     * root already does, or none intersects
+     */
+    public QTreeNode[][] tileGrid(double dpp, double[] viewBox) {
+        QTreeNode root = node(0, 0, 0);
+        if (root == null || (root.lrlon - root.ullon) / TILE_SIZE <= dpp || maxDepth < 1) {
+            return new QTreeNode[0][];
         }
-        if (viewBoxInBound(viewBox, northEast)) {
-            if (node_dpp <= dpp || node.northEast.northEast == null) {
-                ((LinkedList<QTreeNode>) rasters).add(node.northEast);
-            }
-            gatherNodesInRangeHelper(node.northEast, dpp, node_dpp, viewBox, rasters);
+        int depth = 1;
+        while (depth < maxDepth && tileDpp(depth) > dpp) {
+            depth++;
         }
-        if (viewBoxInBound(viewBox, southWest)) {
-            if (node_dpp <= dpp || node.southWest.southWest == null) {
-                ((LinkedList<QTreeNode>) rasters).add(node.southWest);
-            }
-            gatherNodesInRangeHelper(node.southWest, dpp, node_dpp, viewBox, rasters);
+
+        int side = 1 << depth;
+        double tileWidth = (root.lrlon - root.ullon) / side;
+        double tileHeight = (root.ullat - root.lrlat) / side;
+        // Estimate the range from the view box, then settle its ends on the actual tile bounds
+        // so that tiles touching the box are included exactly as in an intersection test
+        int minX = clamp((int) Math.floor((viewBox[0] - root.ullon) / tileWidth), side);
+        int maxX = clamp((int) Math.floor((viewBox[2] - root.ullon) / tileWidth), side);
+        int minY = clamp((int) Math.floor((root.ullat - viewBox[1]) / tileHeight), side);
+        int maxY = clamp((int) Math.floor((root.ullat - viewBox[3]) / tileHeight), side);
+        if (node(depth, 0, 0) == null) {
+            return new QTreeNode[0][];
         }
-        if (viewBoxInBound(viewBox, southEast)) {
-            if (node_dpp <= dpp || node.southEast.southEast == null) {
-                ((LinkedList<QTreeNode>) rasters).add(node.southEast);
+        while (minX > 0 && columnTile(depth, minX - 1).lrlon >= viewBox[0]) minX--;
+        while (minX < side && columnTile(depth, minX).lrlon < viewBox[0]) minX++;
+        while (maxX < side - 1 && columnTile(depth, maxX + 1).ullon <= viewBox[2]) maxX++;
+        while (maxX >= 0 && columnTile(depth, maxX).ullon > viewBox[2]) maxX--;
+        while (minY > 0 && rowTile(depth, minY - 1).lrlat <= viewBox[1]) minY--;
+        while (minY < side && rowTile(depth, minY).lrlat > viewBox[1]) minY++;
+        while (maxY < side - 1 && rowTile(depth, maxY + 1).ullat >= viewBox[3]) maxY++;
+        while (maxY >= 0 && rowTile(depth, maxY).ullat < viewBox[3]) maxY--;
+        if (minX > maxX || minY > maxY) {
+            return new QTreeNode[0][];
+        }
+
+        QTreeNode[][] grid = new QTreeNode[maxY - minY + 1][maxX - minX + 1];
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                grid[y - minY][x - minX] = nodes[slot(depth, x, y)];
             }
-            gatherNodesInRangeHelper(node.southEast, dpp, node_dpp, viewBox, rasters);
         }
+        return grid;
     }
 
-    public boolean viewBoxInBound(double[] viewBox, double[] node_coords) {
-        // If one rectangle is on the left side of the other
-        if (node_coords[0] > viewBox[2] || viewBox[0] > node_coords[2]) {
-            return false;
-        }
+    /** Longitude per pixel of the tiles at depth, measured on the north east most tile. */
+    private double tileDpp(int depth) {
+        QTreeNode tile = node(depth, (1 << depth) - 1, 0);
+        return (tile.lrlon - tile.ullon) / TILE_SIZE;
+    }
 
-        // If one rectangle is above the other
-        if (node_coords[1] < viewBox[3] || viewBox[1] < node_coords[3]) {
-            return false;
-        }
+    // Any tile of the column, or row, at depth; all of them share its longitudes, or latitudes
+    private QTreeNode columnTile(int depth, int x) {
+        return nodes[slot(depth, x, 0)];
+    }
 
-        return true;
+    private QTreeNode rowTile(int depth, int y) {
+        return nodes[slot(depth, 0, y)];
     }
 
+    private static int clamp(int i, int side) {
+        return Math.max(0, Math.min(side - 1, i));
+    }
 }
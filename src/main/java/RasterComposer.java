@@ -0,0 +1,184 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Composes a grid of tiles into one raster image on a bounded pool of worker threads.
+ * Each tile is fetched and decoded through the TileCache by a worker, which then copies its
+ * pixels straight into the tile's region of the raster's int[] buffer; tiles whose pixels
+ * cannot be copied exactly that way are drawn with Graphics instead, one at a time.
+ * <p>
+ * The request thread waits for the tiles until a per-request deadline. Tiles still missing by
+ * then are filled with a flat placeholder and abandoned: a worker that has not started on one
+ * skips it, and one that finishes decoding it late no longer touches the raster. The result
+ * reports how many tiles are missing, so that a degraded raster can be told apart.
+ * </p>
+ */
+public class RasterComposer {
+
+    /** Light gray filled in for tiles that miss the deadline. */
+    static final int PLACEHOLDER_RGB = 0xE6E6E6;
+    private static final int TILE_SIZE = MapServer.TILE_SIZE;
+
+    // Per tile state of one compose() call
+    private static final int PENDING = 0;
+    private static final int DRAWING = 1;
+    private static final int ABANDONED = 2;
+
+    private final TileCache tiles;
+    private final ExecutorService workers;
+    private final long deadlineNanos;
+    private long deadlineMisses;
+
+    /** A composed raster image, and how many of its tiles it lacks. */
+    public static final class ComposedRaster {
+        public final BufferedImage image;
+        /** Tiles replaced by a placeholder or left black because they could not be read. */
+        public final int missingTiles;
+
+        ComposedRaster(BufferedImage image, int missingTiles) {
+            this.image = image;
+            this.missingTiles = missingTiles;
+        }
+
+        /** Whether every tile was drawn. */
+        public boolean isComplete() {
+            return missingTiles == 0;
+        }
+    }
+
+    /**
+     * @param tiles      where decoded tiles come from
+     * @param threads    number of worker threads
+     * @param deadlineMs how long a request waits for its tiles before using placeholders
+     */
+    public RasterComposer(TileCache tiles, int threads, long deadlineMs) {
+        this.tiles = tiles;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "raster-composer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Compose the tiles into a new image of TILE_SIZE pixels per tile.
+     * A tile that cannot be read is logged and left black, as with drawImage(null).
+     * @param grid tiles in rows from top to bottom, each row from left to right
+     * @return the image, with the number of tiles that missed the deadline or failed
+     */
+    public ComposedRaster compose(QTreeNode[][] grid) {
+        int rows = grid.length;
+        int cols = rows == 0 ? 0 : grid[0].length;
+        BufferedImage image = new BufferedImage(cols * TILE_SIZE, rows * TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        AtomicIntegerArray state = new AtomicIntegerArray(rows * cols);
+        Future<?>[] tasks = new Future<?>[rows * cols];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                final int i = row * cols + col;
+                final String imageName = grid[row][col].imageName;
+                final int x = col * TILE_SIZE;
+                final int y = row * TILE_SIZE;
+                tasks[i] = workers.submit(() -> {
+                    if (state.get(i) == ABANDONED) {
+                        return null;
+                    }
+                    BufferedImage tile = tiles.get(imageName);
+                    if (state.compareAndSet(i, PENDING, DRAWING)) {
+                        draw(image, pixels, tile, x, y);
+                    }
+                    return null;
+                });
+            }
+        }
+
+        long deadline = System.nanoTime() + deadlineNanos;
+        int missing = 0;
+        for (int i = 0; i < tasks.length; i++) {
+            try {
+                try {
+                    tasks[i].get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (state.compareAndSet(i, PENDING, ABANDONED)) {
+                        tasks[i].cancel(false);
+                        fillPlaceholder(pixels, image.getWidth(),
+                                (i % cols) * TILE_SIZE, (i / cols) * TILE_SIZE);
+                        synchronized (this) {
+                            deadlineMisses++;
+                        }
+                        missing++;
+                        continue;
+                    }
+                    // The tile is being drawn already, which does not take long
+                    tasks[i].get();
+                }
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                missing++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while composing a raster", e);
+            }
+        }
+        return new ComposedRaster(image, missing);
+    }
+
+    /** Number of tiles replaced by placeholders since the composer was created. */
+    public synchronized long deadlineMissCount() {
+        return deadlineMisses;
+    }
+
+    /**
+     * Copy a tile into the raster at (x, y). Opaque tiles whose colors getRGB returns unchanged
+     * are copied straight into the int[] buffer, everything else is drawn with the exact
+     * compositing of drawImage under the image's lock.
+     */
+    private static void draw(BufferedImage image, int[] pixels, BufferedImage tile, int x, int y) {
+        if (isCopyable(tile)) {
+            // The alpha byte getRGB sets is outside the masks of TYPE_INT_RGB, so it is ignored
+            tile.getRGB(0, 0, TILE_SIZE, TILE_SIZE, pixels, y * image.getWidth() + x,
+                    image.getWidth());
+            return;
+        }
+        synchronized (image) {
+            Graphics graphics = image.getGraphics();
+            graphics.drawImage(tile, x, y, null);
+            graphics.dispose();
+        }
+    }
+
+    private static boolean isCopyable(BufferedImage tile) {
+        if (tile.getWidth() != TILE_SIZE || tile.getHeight() != TILE_SIZE
+                || tile.getColorModel().hasAlpha()) {
+            return false;
+        }
+        switch (tile.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void fillPlaceholder(int[] pixels, int stride, int x, int y) {
+        for (int row = y; row < y + TILE_SIZE; row++) {
+            int start = row * stride + x;
+            Arrays.fill(pixels, start, start + TILE_SIZE, PLACEHOLDER_RGB);
+        }
+    }
+}
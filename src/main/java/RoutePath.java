@@ -0,0 +1,66 @@
+import java.util.List;
+
+/**
+ * Immutable, array-backed copy of a route: the node ids in route order and their coordinates.
+ * Rasterizing walks the coordinate arrays directly instead of indexing a LinkedList and looking
+ * every id back up in the graph, and the arrays can be shared between threads without locking.
+ */
+public final class RoutePath {
+
+    public static final RoutePath EMPTY = new RoutePath(new long[0], new double[0], new double[0]);
+    /** Id of the points of a snapped route that are not graph vertices, ie. its two ends. */
+    public static final long VIRTUAL_ID = -1;
+
+    private final long[] ids;
+    private final double[] lon;
+    private final double[] lat;
+
+    RoutePath(long[] ids, double[] lon, double[] lat) {
+        this.ids = ids;
+        this.lon = lon;
+        this.lat = lat;
+    }
+
+    /**
+     * @param route node ids of a route, as returned by findAndSetRoute
+     * @param g the graph the ids belong to
+     */
+    public static RoutePath of(List<Long> route, GraphDB g) {
+        if (route.isEmpty()) {
+            return EMPTY;
+        }
+        int size = route.size();
+        long[] ids = new long[size];
+        double[] lon = new double[size];
+        double[] lat = new double[size];
+        int i = 0;
+        for (long id : route) {
+            Node node = g.getNodeByID(id);
+            ids[i] = id;
+            lon[i] = node.longitude;
+            lat[i] = node.latitude;
+            i++;
+        }
+        return new RoutePath(ids, lon, lat);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+
+    public long id(int i) {
+        return ids[i];
+    }
+
+    public double lon(int i) {
+        return lon[i];
+    }
+
+    public double lat(int i) {
+        return lat[i];
+    }
+}
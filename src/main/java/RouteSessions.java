@@ -0,0 +1,81 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The current route of each client, keyed by the client's session token.
+ * Sessions expire after ttlMillis without being read or written, and the store never holds more
+ * than maxSessions: each put drops the expired sessions and then, if still full, the least
+ * recently used ones, in time proportional to the sessions dropped. All methods are
+ * thread-safe; a route is replaced as a whole by swapping its RoutePath, so callers can use it
+ * without holding the lock.
+ */
+public class RouteSessions {
+
+    private final int maxSessions;
+    private final long ttlMillis;
+    // Access-ordered so that iteration starts at the least recently used session, which is
+    // also the one that expires first
+    private final LinkedHashMap<String, Session> sessions;
+
+    private static class Session {
+        final RoutePath route;
+        long lastAccess;
+
+        Session(RoutePath route, long now) {
+            this.route = route;
+            this.lastAccess = now;
+        }
+    }
+
+    public RouteSessions(int maxSessions, long ttlMillis) {
+        this.maxSessions = maxSessions;
+        this.ttlMillis = ttlMillis;
+        this.sessions = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the route of the session, or RoutePath.EMPTY if it has none or has expired
+     */
+    public synchronized RoutePath get(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return RoutePath.EMPTY;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastAccess > ttlMillis) {
+            sessions.remove(token);
+            return RoutePath.EMPTY;
+        }
+        session.lastAccess = now;
+        return session.route;
+    }
+
+    public synchronized void put(String token, RoutePath route) {
+        if (route.isEmpty()) {
+            sessions.remove(token);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        sessions.put(token, new Session(route, now));
+
+        // Only the head of the access order can be expired or over the limit, so this stops at
+        // the first session that is kept
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session eldest = it.next();
+            if (sessions.size() <= maxSessions && now - eldest.lastAccess <= ttlMillis) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    public synchronized void clear(String token) {
+        sessions.remove(token);
+    }
+
+    public synchronized int size() {
+        return sessions.size();
+    }
+}
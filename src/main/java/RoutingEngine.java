@@ -0,0 +1,509 @@
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.stream.IntStream;
+
+/**
+ * A* and bidirectional A* shortest path search over a frozen CSRGraph.
+ * All per-query state (g-scores, parents, the closed set and the open heap) lives in primitive
+ * arrays owned by the calling thread, so concurrent queries never share mutable state and the
+ * shared Node objects are never written to. The arrays are allocated once per thread and reset
+ * after each query by walking only the vertices that query touched.
+ */
+public class RoutingEngine {
+
+    /** Search algorithms selectable per route request. */
+    public enum Algorithm {
+        /** A* from the start towards the end. */
+        ASTAR,
+        /** A* from both ends at once, for long routes. */
+        BIDIRECTIONAL,
+        /** Contraction Hierarchies, falling back to A* if no hierarchy is loaded. */
+        CH,
+        /** A* with the landmark heuristic, falling back to A* if no landmarks are loaded. */
+        ALT
+    }
+
+    private final CSRGraph graph;
+    private final ThreadLocal<SearchSpace> searchSpaces;
+    // Backward half of bidirectional searches
+    private final ThreadLocal<SearchSpace> reverseSearchSpaces;
+    private volatile ContractionHierarchy hierarchy;
+    private volatile Landmarks landmarks;
+
+    public RoutingEngine(CSRGraph graph) {
+        this.graph = graph;
+        // Two extra slots for the virtual start and end vertices of snapped routes
+        this.searchSpaces = ThreadLocal.withInitial(() -> new SearchSpace(graph.size() + 2));
+        this.reverseSearchSpaces = ThreadLocal.withInitial(() -> new SearchSpace(graph.size()));
+    }
+
+    /**
+     * Use a hierarchy built offline over the same graph for Algorithm.CH, or none if null.
+     */
+    public void setContractionHierarchy(ContractionHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /**
+     * Use landmark distance tables over the same graph for Algorithm.ALT, or none if null.
+     */
+    public void setLandmarks(Landmarks landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    /**
+     * @return the number of vertices expanded, ie. popped from an open heap, by the last search
+     * of the calling thread. Counts both directions of a bidirectional search.
+     */
+    public int lastExpansionCount() {
+        return searchSpaces.get().expansions;
+    }
+
+    /**
+     * Get the shortest route from the start vertex to end vertex with the given algorithm.
+     * All algorithms return an optimal route in the same shape; they may differ between routes
+     * of equal length.
+     * @see #shortestPath(int, int)
+     */
+    public LinkedList<Long> shortestPath(int start, int end, Algorithm algorithm) {
+        if (algorithm == Algorithm.BIDIRECTIONAL) {
+            return bidirectionalShortestPath(start, end);
+        }
+        ContractionHierarchy ch = hierarchy;
+        if (algorithm == Algorithm.CH && ch != null) {
+            LinkedList<Long> route = ch.shortestPath(start, end);
+            searchSpaces.get().expansions = ch.lastExpansionCount();
+            return route;
+        }
+        Landmarks alt = landmarks;
+        if (algorithm == Algorithm.ALT && alt != null) {
+            return astar(start, end, alt);
+        }
+        return shortestPath(start, end);
+    }
+
+    /**
+     * Road distances from every source to every target. Uses the bucket method of the
+     * contraction hierarchy if one is loaded, and otherwise one Dijkstra per source that stops
+     * once every target is settled. Rows run in parallel on the common fork join pool, each on
+     * the per-thread state of its worker.
+     * @param sources dense indices of the source vertices, or -1 for none
+     * @param targets dense indices of the target vertices, or -1 for none
+     * @return matrix[i][j], the distance from sources[i] to targets[j], or infinity if there
+     * is no route
+     */
+    public double[][] distanceMatrix(int[] sources, int[] targets) {
+        ContractionHierarchy ch = hierarchy;
+        if (ch != null) {
+            return ch.distanceMatrix(sources, targets);
+        }
+        // Each row searches for the distinct targets, in sorted order for binary search
+        int[] distinct = Arrays.stream(targets).filter(t -> t >= 0).sorted().distinct().toArray();
+        double[][] matrix = new double[sources.length][targets.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            double[] reached = new double[distinct.length];
+            Arrays.fill(reached, Double.POSITIVE_INFINITY);
+            if (sources[i] >= 0) {
+                oneToMany(sources[i], distinct, reached);
+            }
+            for (int j = 0; j < targets.length; j++) {
+                matrix[i][j] = targets[j] < 0 ? Double.POSITIVE_INFINITY
+                        : reached[Arrays.binarySearch(distinct, targets[j])];
+            }
+        });
+        return matrix;
+    }
+
+    /**
+     * Dijkstra from source until every vertex of the sorted targets is settled, writing the
+     * distance of targets[j] to distances[j].
+     */
+    private void oneToMany(int source, int[] targets, double[] distances) {
+        final int[] offsets = graph.offsets;
+        final int[] targetsOf = graph.targets;
+        SearchSpace space = searchSpaces.get();
+        try {
+            space.relax(source, 0.0, -1);
+            space.heap.insert(source, 0.0);
+            int remaining = targets.length;
+            while (!space.heap.isEmpty() && remaining > 0) {
+                int current = space.heap.poll();
+                space.closed[current] = true;
+                double currentGScore = space.gScore[current];
+                int target = Arrays.binarySearch(targets, current);
+                if (target >= 0) {
+                    distances[target] = currentGScore;
+                    remaining--;
+                }
+
+                for (int edge = offsets[current]; edge < offsets[current + 1]; edge++) {
+                    int neighbor = targetsOf[edge];
+                    if (space.closed[neighbor]) continue;
+                    double tentativeGScore = currentGScore + graph.distance(current, neighbor);
+                    if (tentativeGScore < space.gScore[neighbor]) {
+                        space.relax(neighbor, tentativeGScore, current);
+                        space.heap.insertOrDecrease(neighbor, tentativeGScore);
+                    }
+                }
+            }
+        } finally {
+            space.reset();
+        }
+    }
+
+    /**
+     * Use A* search algorithm to get the shortest route from the start vertex to end vertex
+     * Prority associated with a vertex: f(n) = g(n) + h(n)
+     * g(n): shortest known path distance from s to n
+     * h(n): Euclidean distance from n to t
+     * @param start dense index of the start vertex in the CSRGraph
+     * @param end dense index of the end vertex in the CSRGraph
+     * @return the node ids of the route, beginning with the end node and walking back to the
+     * start node, or an empty list if end is unreachable
+     */
+    public LinkedList<Long> shortestPath(int start, int end) {
+        return astar(start, end, null);
+    }
+
+    /**
+     * A* as in shortestPath(int, int), with h(n) the larger of the Euclidean distance and the
+     * landmark lower bound from n to t if landmarks is not null. Both are admissible and
+     * consistent, and so is their maximum, so routes stay optimal.
+     */
+    private LinkedList<Long> astar(int start, int end, Landmarks landmarks) {
+        // No nearest node in an empty graph
+        if (start < 0 || end < 0) {
+            return new LinkedList<>();
+        }
+        SearchSpace space = searchSpaces.get();
+        space.expansions = 0;
+        try {
+            if (search(space, start, end, landmarks)) {
+                return reconstructPath(space, end);
+            }
+            return new LinkedList<>();
+        } finally {
+            space.reset();
+        }
+    }
+
+    private boolean search(SearchSpace space, int start, int end, Landmarks landmarks) {
+        final double[] lon = graph.lon;
+        final double[] lat = graph.lat;
+        final int[] offsets = graph.offsets;
+        final int[] targets = graph.targets;
+        final double endLon = lon[end];
+        final double endLat = lat[end];
+
+        space.relax(start, 0.0, -1);
+        double startH = heuristic(lon[start], lat[start], endLon, endLat);
+        if (landmarks != null) {
+            startH = Math.max(startH, landmarks.lowerBound(start, end));
+        }
+        space.heap.insert(start, startH);
+
+        while (!space.heap.isEmpty()) {
+            // Pop vertex with the lowest fScore
+            int current = space.heap.poll();
+            space.expansions++;
+
+            // Goal found
+            if (current == end) {
+                return true;
+            }
+
+            space.closed[current] = true;
+            double currentGScore = space.gScore[current];
+
+            for (int edge = offsets[current]; edge < offsets[current + 1]; edge++) {
+                int neighbor = targets[edge];
+                if (space.closed[neighbor]) continue;
+
+                double tentativeGScore = currentGScore + graph.distance(current, neighbor);
+                if (tentativeGScore < space.gScore[neighbor]) {
+                    space.relax(neighbor, tentativeGScore, current);
+                    double h = heuristic(lon[neighbor], lat[neighbor], endLon, endLat);
+                    if (landmarks != null) {
+                        h = Math.max(h, landmarks.lowerBound(neighbor, end));
+                    }
+                    double fScore = tentativeGScore + h;
+                    space.heap.insertOrDecrease(neighbor, fScore);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Use A* search to get the shortest route between two points snapped onto road segments.
+     * The snapped points are virtual vertices: the start is joined to both ends of its segment,
+     * the ends of the end's segment are joined to the end, and if both points are on the same
+     * segment they are also joined directly. Edge weights are the distances along the segment.
+     * @return the route from the end point back to the start point, whose first and last points
+     * are the snapped points with id RoutePath.VIRTUAL_ID, or RoutePath.EMPTY if the end is
+     * unreachable
+     */
+    public RoutePath shortestPath(SegmentIndex.Snap start, SegmentIndex.Snap end) {
+        if (start == null || end == null) {
+            return RoutePath.EMPTY;
+        }
+        SearchSpace space = searchSpaces.get();
+        space.expansions = 0;
+        try {
+            if (search(space, start, end)) {
+                return reconstructPath(space, start, end);
+            }
+            return RoutePath.EMPTY;
+        } finally {
+            space.reset();
+        }
+    }
+
+    private boolean search(SearchSpace space, SegmentIndex.Snap start, SegmentIndex.Snap end) {
+        final double[] lon = graph.lon;
+        final double[] lat = graph.lat;
+        final int[] offsets = graph.offsets;
+        final int[] targets = graph.targets;
+        final int virtualStart = graph.size();
+        final int virtualEnd = graph.size() + 1;
+        final double startLength = graph.distance(start.from, start.to);
+        final double endLength = graph.distance(end.from, end.to);
+
+        space.relax(virtualStart, 0.0, -1);
+        space.heap.insert(virtualStart, heuristic(start.lon, start.lat, end.lon, end.lat));
+
+        while (!space.heap.isEmpty()) {
+            int current = space.heap.poll();
+            space.expansions++;
+
+            if (current == virtualEnd) {
+                return true;
+            }
+
+            space.closed[current] = true;
+            double currentGScore = space.gScore[current];
+
+            if (current == virtualStart) {
+                relax(space, current, start.from, currentGScore + start.fraction * startLength,
+                        end);
+                relax(space, current, start.to,
+                        currentGScore + (1 - start.fraction) * startLength, end);
+                if (start.from == end.from && start.to == end.to) {
+                    relax(space, current, virtualEnd, currentGScore
+                            + Math.abs(end.fraction - start.fraction) * startLength, end);
+                }
+                continue;
+            }
+
+            for (int edge = offsets[current]; edge < offsets[current + 1]; edge++) {
+                int neighbor = targets[edge];
+                relax(space, current, neighbor,
+                        currentGScore + graph.distance(current, neighbor), end);
+            }
+            if (current == end.from) {
+                relax(space, current, virtualEnd, currentGScore + end.fraction * endLength, end);
+            }
+            if (current == end.to) {
+                relax(space, current, virtualEnd,
+                        currentGScore + (1 - end.fraction) * endLength, end);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Bidirectional A* with the average potential: the forward search is keyed on
+     * g(n) + p(n) and the backward search on g'(n) - p(n), where
+     * p(n) = (h_end(n) - h_start(n)) / 2 and h are Euclidean distances. Both directions see the
+     * same consistent reduced edge costs, so the searches can stop as soon as the smallest
+     * forward and backward keys add up to at least the length of the best route through any
+     * edge between the two searched sets. Each step expands the direction with the smaller key.
+     * @return the node ids of the route, beginning with the end node and walking back to the
+     * start node, or an empty list if end is unreachable
+     */
+    private LinkedList<Long> bidirectionalShortestPath(int start, int end) {
+        if (start < 0 || end < 0) {
+            return new LinkedList<>();
+        }
+        SearchSpace forward = searchSpaces.get();
+        SearchSpace backward = reverseSearchSpaces.get();
+        forward.expansions = 0;
+        try {
+            final double[] lon = graph.lon;
+            final double[] lat = graph.lat;
+            final int[] offsets = graph.offsets;
+            final int[] targets = graph.targets;
+            final double startLon = lon[start], startLat = lat[start];
+            final double endLon = lon[end], endLat = lat[end];
+
+            // Best route found so far runs start .. meetFrom, meetTo .. end
+            double best = start == end ? 0 : Double.POSITIVE_INFINITY;
+            int meetFrom = start;
+            int meetTo = start == end ? -1 : end;
+
+            forward.relax(start, 0.0, -1);
+            forward.heap.insert(start,
+                    potential(lon[start], lat[start], startLon, startLat, endLon, endLat));
+            backward.relax(end, 0.0, -1);
+            backward.heap.insert(end,
+                    -potential(lon[end], lat[end], startLon, startLat, endLon, endLat));
+
+            while (!forward.heap.isEmpty() && !backward.heap.isEmpty()
+                    && forward.heap.minKey() + backward.heap.minKey() < best) {
+                boolean isForward = forward.heap.minKey() <= backward.heap.minKey();
+                SearchSpace space = isForward ? forward : backward;
+                SearchSpace other = isForward ? backward : forward;
+                double sign = isForward ? 1 : -1;
+
+                int current = space.heap.poll();
+                forward.expansions++;
+                space.closed[current] = true;
+                double currentGScore = space.gScore[current];
+
+                for (int edge = offsets[current]; edge < offsets[current + 1]; edge++) {
+                    int neighbor = targets[edge];
+                    double tentativeGScore = currentGScore + graph.distance(current, neighbor);
+
+                    // A route through this edge joins the two searches
+                    double route = tentativeGScore + other.gScore[neighbor];
+                    if (route < best) {
+                        best = route;
+                        meetFrom = isForward ? current : neighbor;
+                        meetTo = isForward ? neighbor : current;
+                    }
+
+                    if (space.closed[neighbor]) continue;
+                    if (tentativeGScore < space.gScore[neighbor]) {
+                        space.relax(neighbor, tentativeGScore, current);
+                        space.heap.insertOrDecrease(neighbor, tentativeGScore + sign
+                                * potential(lon[neighbor], lat[neighbor],
+                                startLon, startLat, endLon, endLat));
+                    }
+                }
+            }
+
+            if (best == Double.POSITIVE_INFINITY) {
+                return new LinkedList<>();
+            }
+            // The forward half walks back from meetFrom to the start, the backward half is
+            // put in front of it walking from meetTo to the end
+            LinkedList<Long> path = new LinkedList<>();
+            for (int current = meetFrom; current >= 0; current = forward.parent[current]) {
+                path.add(graph.ids[current]);
+            }
+            for (int current = meetTo; current >= 0; current = backward.parent[current]) {
+                path.addFirst(graph.ids[current]);
+            }
+            return path;
+        } finally {
+            forward.reset();
+            backward.reset();
+        }
+    }
+
+    private static double potential(double lon, double lat, double startLon, double startLat,
+                                    double endLon, double endLat) {
+        return (heuristic(lon, lat, endLon, endLat) - heuristic(lon, lat, startLon, startLat)) / 2;
+    }
+
+    private void relax(SearchSpace space, int current, int vertex, double tentativeGScore,
+                       SegmentIndex.Snap end) {
+        if (space.closed[vertex] || tentativeGScore >= space.gScore[vertex]) {
+            return;
+        }
+        space.relax(vertex, tentativeGScore, current);
+        double h = vertex < graph.size()
+                ? heuristic(graph.lon[vertex], graph.lat[vertex], end.lon, end.lat) : 0;
+        space.heap.insertOrDecrease(vertex, tentativeGScore + h);
+    }
+
+    private RoutePath reconstructPath(SearchSpace space, SegmentIndex.Snap start,
+                                      SegmentIndex.Snap end) {
+        int size = 0;
+        for (int current = graph.size() + 1; current >= 0; current = space.parent[current]) {
+            size++;
+        }
+        long[] ids = new long[size];
+        double[] lon = new double[size];
+        double[] lat = new double[size];
+        int i = 0;
+        for (int current = graph.size() + 1; current >= 0; current = space.parent[current]) {
+            if (current == graph.size() + 1) {
+                ids[i] = RoutePath.VIRTUAL_ID;
+                lon[i] = end.lon;
+                lat[i] = end.lat;
+            } else if (current == graph.size()) {
+                ids[i] = RoutePath.VIRTUAL_ID;
+                lon[i] = start.lon;
+                lat[i] = start.lat;
+            } else {
+                ids[i] = graph.ids[current];
+                lon[i] = graph.lon[current];
+                lat[i] = graph.lat[current];
+            }
+            i++;
+        }
+        return new RoutePath(ids, lon, lat);
+    }
+
+    private static double heuristic(double lon, double lat, double endLon, double endLat) {
+        double dx = endLon - lon;
+        double dy = endLat - lat;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private LinkedList<Long> reconstructPath(SearchSpace space, int current) {
+        LinkedList<Long> path = new LinkedList<>();
+        while (current >= 0) {
+            path.add(graph.ids[current]);
+            current = space.parent[current];
+        }
+        return path;
+    }
+
+    /**
+     * Per-thread search state sized to the graph. Every vertex whose g-score is written is
+     * recorded in touched[] so that reset() only has to undo those entries.
+     */
+    private static class SearchSpace {
+        final double[] gScore;
+        final int[] parent;
+        final boolean[] closed;
+        final IndexedMinHeap heap;
+        final int[] touched;
+        int touchedCount;
+        // Vertices expanded by the last search, kept across reset()
+        int expansions;
+
+        SearchSpace(int size) {
+            gScore = new double[size];
+            parent = new int[size];
+            closed = new boolean[size];
+            heap = new IndexedMinHeap(size);
+            touched = new int[size];
+            Arrays.fill(gScore, Double.POSITIVE_INFINITY);
+            Arrays.fill(parent, -1);
+        }
+
+        void relax(int vertex, double g, int from) {
+            if (gScore[vertex] == Double.POSITIVE_INFINITY) {
+                touched[touchedCount++] = vertex;
+            }
+            gScore[vertex] = g;
+            parent[vertex] = from;
+        }
+
+        void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int vertex = touched[i];
+                gScore[vertex] = Double.POSITIVE_INFINITY;
+                parent[vertex] = -1;
+                closed[vertex] = false;
+            }
+            touchedCount = 0;
+            heap.clear();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Uniform grid over the road segments of a CSRGraph, for snapping a point onto the nearest
+ * point of any road rather than onto the nearest vertex. On long straight roads the nearest
+ * vertex can be far down the road from the point, which makes routes start with a detour.
+ * Every segment is registered in each grid cell its bounding box overlaps, and a query searches
+ * rings of cells around the point until no closer segment can remain.
+ */
+public class SegmentIndex {
+
+    private final CSRGraph graph;
+    // Segment i joins vertex from[i] to vertex to[i], with from[i] < to[i]
+    private final int[] from;
+    private final int[] to;
+    private final double minLon, minLat, maxLon, maxLat;
+    private final double cellWidth, cellHeight;
+    private final int cols, rows;
+    // The segments overlapping cell c are cellSegments[cellStart[c]] .. [cellStart[c + 1] - 1]
+    private final int[] cellStart;
+    private final int[] cellSegments;
+
+    /**
+     * The point of a segment nearest to a query point. The point lies fraction of the way from
+     * vertex from to vertex to, where from < to.
+     */
+    public static final class Snap {
+        public final int from;
+        public final int to;
+        public final double fraction;
+        public final double lon;
+        public final double lat;
+        /** Distance from the query point, in lon/lat degrees. */
+        public final double distance;
+
+        Snap(int from, int to, double fraction, double lon, double lat, double distance) {
+            this.from = from;
+            this.to = to;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+    }
+
+    public SegmentIndex(CSRGraph graph) {
+        this.graph = graph;
+        int n = graph.size();
+        // Every road segment is stored as an edge in both directions; keep one of them. Count
+        // them rather than halving the edge count, since a self-loop is stored only once
+        int m = 0;
+        for (int u = 0; u < n; u++) {
+            for (int edge = graph.offsets[u]; edge < graph.offsets[u + 1]; edge++) {
+                if (u < graph.targets[edge]) {
+                    m++;
+                }
+            }
+        }
+        from = new int[m];
+        to = new int[m];
+        int segment = 0;
+        double lonLo = Double.POSITIVE_INFINITY, latLo = Double.POSITIVE_INFINITY;
+        double lonHi = Double.NEGATIVE_INFINITY, latHi = Double.NEGATIVE_INFINITY;
+        for (int u = 0; u < n; u++) {
+            for (int edge = graph.offsets[u]; edge < graph.offsets[u + 1]; edge++) {
+                int v = graph.targets[edge];
+                if (u < v) {
+                    from[segment] = u;
+                    to[segment] = v;
+                    segment++;
+                    lonLo = Math.min(lonLo, Math.min(graph.lon[u], graph.lon[v]));
+                    latLo = Math.min(latLo, Math.min(graph.lat[u], graph.lat[v]));
+                    lonHi = Math.max(lonHi, Math.max(graph.lon[u], graph.lon[v]));
+                    latHi = Math.max(latHi, Math.max(graph.lat[u], graph.lat[v]));
+                }
+            }
+        }
+        if (m == 0) {
+            lonLo = latLo = lonHi = latHi = 0;
+        }
+
+        // Aim for about one segment per cell
+        double width = lonHi - lonLo;
+        double height = latHi - latLo;
+        double side = width * height > 0 ? Math.sqrt(width * height / Math.max(1, m))
+                : Math.max(width, height) / Math.max(1, m);
+        if (side == 0) {
+            side = 1;
+        }
+        cols = Math.max(1, (int) Math.ceil(width / side));
+        rows = Math.max(1, (int) Math.ceil(height / side));
+        cellWidth = side;
+        cellHeight = side;
+        minLon = lonLo;
+        minLat = latLo;
+        maxLon = lonLo + cols * cellWidth;
+        maxLat = latLo + rows * cellHeight;
+
+        // Count the segments of every cell, then fill them in
+        cellStart = new int[cols * rows + 1];
+        for (int s = 0; s < m; s++) {
+            forEachCell(s, cell -> cellStart[cell + 1]++);
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellSegments = new int[cellStart[cols * rows]];
+        int[] fill = new int[cols * rows];
+        for (int s = 0; s < m; s++) {
+            final int seg = s;
+            forEachCell(s, cell -> cellSegments[cellStart[cell] + fill[cell]++] = seg);
+        }
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    private void forEachCell(int segment, CellVisitor visitor) {
+        int u = from[segment];
+        int v = to[segment];
+        int col0 = col(Math.min(graph.lon[u], graph.lon[v]));
+        int col1 = col(Math.max(graph.lon[u], graph.lon[v]));
+        int row0 = row(Math.min(graph.lat[u], graph.lat[v]));
+        int row1 = row(Math.max(graph.lat[u], graph.lat[v]));
+        for (int r = row0; r <= row1; r++) {
+            for (int c = col0; c <= col1; c++) {
+                visitor.visit(r * cols + c);
+            }
+        }
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int) ((lon - minLon) / cellWidth)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) ((lat - minLat) / cellHeight)));
+    }
+
+    /** Number of road segments. */
+    public int size() {
+        return from.length;
+    }
+
+    /**
+     * @return the nearest point on any road segment, or null if the graph has no segments or
+     * the point is not finite. Of several segments at the same distance, the one listed first.
+     */
+    public Snap nearest(double lon, double lat) {
+        if (from.length == 0) {
+            return null;
+        }
+        // Rings are measured from the point clamped onto the grid. Moving the point further
+        // out only makes every segment further away, so the ring bounds still hold for it.
+        double gridLon = Math.max(minLon, Math.min(maxLon, lon));
+        double gridLat = Math.max(minLat, Math.min(maxLat, lat));
+        int col = col(gridLon);
+        int row = row(gridLat);
+        int lastRing = Math.max(Math.max(col, cols - 1 - col), Math.max(row, rows - 1 - row));
+        double step = Math.min(cellWidth, cellHeight);
+
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int ring = 0; ring <= lastRing; ring++) {
+            // Every cell of this ring is at least ring - 1 whole cells away from the point
+            double ringDistance = (ring - 1) * step;
+            if (ring > 1 && ringDistance * ringDistance > bestDistance) {
+                break;
+            }
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                // Inside the ring only the first and last columns belong to it
+                int dc = (r == row - ring || r == row + ring) ? 1 : 2 * ring;
+                for (int c = col - ring; c <= col + ring; c += Math.max(1, dc)) {
+                    if (c < 0 || c >= cols) {
+                        continue;
+                    }
+                    int cell = r * cols + c;
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        int s = cellSegments[i];
+                        double distance = distanceSquared(s, lon, lat);
+                        if (distance < bestDistance || (distance == bestDistance && s < best)) {
+                            best = s;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+
+        // No segment is ever nearer than infinity to a NaN or infinite point
+        if (best < 0) {
+            return null;
+        }
+        double fraction = fraction(best, lon, lat);
+        int u = from[best];
+        int v = to[best];
+        return new Snap(u, v, fraction,
+                graph.lon[u] + fraction * (graph.lon[v] - graph.lon[u]),
+                graph.lat[u] + fraction * (graph.lat[v] - graph.lat[u]),
+                Math.sqrt(bestDistance));
+    }
+
+    /** Fraction of the way along the segment of the point on it nearest to lon, lat. */
+    private double fraction(int segment, double lon, double lat) {
+        int u = from[segment];
+        int v = to[segment];
+        double dx = graph.lon[v] - graph.lon[u];
+        double dy = graph.lat[v] - graph.lat[u];
+        double length2 = dx * dx + dy * dy;
+        if (length2 == 0) {
+            return 0;
+        }
+        double t = ((lon - graph.lon[u]) * dx + (lat - graph.lat[u]) * dy) / length2;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    private double distanceSquared(int segment, double lon, double lat) {
+        int u = from[segment];
+        int v = to[segment];
+        double t = fraction(segment, lon, lat);
+        double dx = graph.lon[u] + t * (graph.lon[v] - graph.lon[u]) - lon;
+        double dy = graph.lat[u] + t * (graph.lat[v] - graph.lat[u]) - lat;
+        return dx * dx + dy * dy;
+    }
+}
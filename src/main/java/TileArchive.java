@@ -0,0 +1,256 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * All tile pngs packed into one file, read through a single memory mapping.
+ * The file starts with an index sorted by tile name, followed by the png bytes of every tile:
+ * <pre>
+ *   int magic, int version, int count,
+ *   count x (short nameLength, byte[nameLength] name, long offset, int length, int crc),
+ *   png data
+ * </pre>
+ * Offsets are from the start of the file. Once the index is read, fetching a tile is a binary
+ * search and a slice of the mapping, without opening a file or making any other system call.
+ * A single mapping limits archives to 2GB.
+ */
+public class TileArchive {
+
+    private static final int MAGIC = 0x4B4D5441;   // "KMTA"
+    static final int VERSION = 1;
+
+    private final MappedByteBuffer data;
+    // Parallel arrays sorted by name
+    private final String[] names;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+
+    private TileArchive(MappedByteBuffer data, String[] names, int[] offsets, int[] lengths,
+                        int[] crcs) {
+        this.data = data;
+        this.names = names;
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.crcs = crcs;
+    }
+
+    /**
+     * Map an archive written by write().
+     * @return the archive, or null if the file is missing or not a valid archive
+     */
+    public static TileArchive open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            int count = in.getInt();
+            // Every index entry takes at least a length, an offset, a length and a crc
+            int minEntryBytes = Short.BYTES + Long.BYTES + 2 * Integer.BYTES;
+            if (count < 0 || count > in.remaining() / minEntryBytes) {
+                return null;
+            }
+            String[] names = new String[count];
+            int[] offsets = new int[count];
+            int[] lengths = new int[count];
+            int[] crcs = new int[count];
+            byte[] name = new byte[Short.MAX_VALUE];
+            for (int i = 0; i < count; i++) {
+                int nameLength = in.getShort();
+                if (nameLength < 0 || nameLength > name.length) {
+                    return null;
+                }
+                in.get(name, 0, nameLength);
+                names[i] = new String(name, 0, nameLength, StandardCharsets.US_ASCII);
+                long offset = in.getLong();
+                lengths[i] = in.getInt();
+                crcs[i] = in.getInt();
+                if (offset < 0 || lengths[i] < 0 || offset + lengths[i] > in.capacity()) {
+                    return null;
+                }
+                // Lookups binary search the names
+                if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                    return null;
+                }
+                offsets[i] = (int) offset;
+            }
+            return new TileArchive(in, names, offsets, lengths, crcs);
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Names of all tiles in the archive, sorted. */
+    public List<String> names() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    public boolean contains(String imageName) {
+        return Arrays.binarySearch(names, imageName) >= 0;
+    }
+
+    /**
+     * @return a read-only view of the png bytes of the tile, or null if there is no such tile
+     */
+    public ByteBuffer slice(String imageName) {
+        int i = Arrays.binarySearch(names, imageName);
+        if (i < 0) {
+            return null;
+        }
+        ByteBuffer slice = data.duplicate();
+        slice.position(offsets[i]);
+        slice.limit(offsets[i] + lengths[i]);
+        return slice.slice();
+    }
+
+    /**
+     * @return a stream over the png bytes of the tile, or null if there is no such tile
+     */
+    public InputStream open(String imageName) {
+        ByteBuffer slice = slice(imageName);
+        return slice == null ? null : new ByteBufferInputStream(slice);
+    }
+
+    /**
+     * @return the CRC32 of the png bytes of the tile, or -1 if there is no such tile
+     */
+    public long crc(String imageName) {
+        int i = Arrays.binarySearch(names, imageName);
+        return i < 0 ? -1 : crcs[i] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Pack every valid tile png of imgRoot into file, through a temporary file moved into place.
+     * @return the number of tiles packed
+     */
+    public static int write(File imgRoot, File file) throws IOException {
+        List<String> tileNames = new ArrayList<>();
+        String[] files = imgRoot.list();
+        if (files == null) {
+            throw new IOException("Not a tile folder: " + imgRoot);
+        }
+        for (String f : files) {
+            if (f.endsWith(".png")) {
+                String name = f.substring(0, f.length() - ".png".length());
+                if (TileStore.isValidName(name)) {
+                    tileNames.add(name);
+                }
+            }
+        }
+        Collections.sort(tileNames);
+
+        // First pass for the index, so that the tiles can then be copied one at a time
+        int count = tileNames.size();
+        int[] lengths = new int[count];
+        int[] crcs = new int[count];
+        long offset = 3 * Integer.BYTES;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < count; i++) {
+            byte[] png = Files.readAllBytes(new File(imgRoot, tileNames.get(i) + ".png").toPath());
+            crc.reset();
+            crc.update(png, 0, png.length);
+            lengths[i] = png.length;
+            crcs[i] = (int) crc.getValue();
+            offset += Short.BYTES + tileNames.get(i).length() + Long.BYTES + 2 * Integer.BYTES;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = tileNames.get(i).getBytes(StandardCharsets.US_ASCII);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(offset);
+                out.writeInt(lengths[i]);
+                out.writeInt(crcs[i]);
+                offset += lengths[i];
+            }
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Tile archive over 2GB: " + offset + " bytes");
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] png = Files.readAllBytes(
+                        new File(imgRoot, tileNames.get(i) + ".png").toPath());
+                if (png.length != lengths[i]) {
+                    throw new IOException("Tile changed while packing: " + tileNames.get(i));
+                }
+                out.write(png);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    /** Reads a buffer from its position to its limit. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Offline build: pack a tile folder into an archive.
+     * Usage: TileArchive [tile folder] [archive file]
+     */
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : MapServer.IMG_ROOT;
+        String archivePath = args.length > 1 ? args[1] : MapServer.TILE_ARCHIVE_PATH;
+        long startTime = System.nanoTime();
+        int count = write(new File(imgRoot), new File(archivePath));
+        long duration = (System.nanoTime() - startTime) / 1000000;
+        System.out.println("Tile archive build time: " + duration + "ms, " + count + " tiles, "
+                + new File(archivePath).length() + " bytes");
+    }
+}
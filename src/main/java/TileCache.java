@@ -0,0 +1,129 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Shared cache of decoded tile images, keyed by the QTreeNode imageName.
+ * The cache is bounded by the number of bytes held by the decoded pixel data rather than by
+ * the number of tiles, and evicts the least recently used tiles once that budget is exceeded.
+ * All methods are thread-safe. Tiles are decoded outside of the lock so that concurrent misses
+ * on different tiles do not serialize on each other.
+ */
+public class TileCache {
+
+    private final TileStore store;
+    private final long maxBytes;
+    // Access-ordered so that iteration starts at the least recently used tile
+    private final LinkedHashMap<String, BufferedImage> tiles;
+    private long currentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param store    where the encoded tile pngs are read from
+     * @param maxBytes upper bound on the decoded bytes kept in memory
+     */
+    public TileCache(TileStore store, long maxBytes) {
+        this.store = store;
+        this.maxBytes = maxBytes;
+        this.tiles = new LinkedHashMap<>(256, 0.75f, true);
+    }
+
+    /**
+     * Return the decoded tile for imageName, reading it from the TileStore on a miss.
+     * @param imageName name of the tile without the folder or extension, ie. "1234"
+     * @return the decoded tile, which callers must treat as read-only
+     * @throws IOException if the tile could not be read
+     */
+    public BufferedImage get(String imageName) throws IOException {
+        synchronized (this) {
+            BufferedImage tile = tiles.get(imageName);
+            if (tile != null) {
+                hits++;
+                return tile;
+            }
+            misses++;
+        }
+
+        BufferedImage tile;
+        try (InputStream in = store.open(imageName)) {
+            tile = ImageIO.read(in);
+        }
+        if (tile == null) {
+            throw new IOException("Unable to decode tile " + imageName);
+        }
+        return put(imageName, tile);
+    }
+
+    private synchronized BufferedImage put(String imageName, BufferedImage tile) {
+        // Another thread may have decoded the same tile while we were reading it
+        BufferedImage existing = tiles.get(imageName);
+        if (existing != null) {
+            return existing;
+        }
+
+        long size = sizeOf(tile);
+        if (size > maxBytes) {
+            return tile;
+        }
+
+        tiles.put(imageName, tile);
+        currentBytes += size;
+
+        Iterator<Map.Entry<String, BufferedImage>> it = tiles.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, BufferedImage> eldest = it.next();
+            currentBytes -= sizeOf(eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+        return tile;
+    }
+
+    /**
+     * Drop every cached tile. The hit/miss/eviction counters are kept.
+     */
+    public synchronized void clear() {
+        tiles.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long hitCount() {
+        return hits;
+    }
+
+    public synchronized long missCount() {
+        return misses;
+    }
+
+    public synchronized long evictionCount() {
+        return evictions;
+    }
+
+    public synchronized long sizeInBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return tiles.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache[tiles=" + tiles.size() + ", bytes=" + currentBytes + "/" + maxBytes
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    // Approximate the memory held by a decoded image by the size of its backing buffer
+    private static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        long elementBytes = DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (long) buffer.getSize() * buffer.getNumBanks() * Math.max(1, elementBytes);
+    }
+}
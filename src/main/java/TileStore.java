@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Raw, still encoded tile pngs, read from a packed TileArchive if there is one or else from the
+ * tile folder. Used by clients that fetch and cache tiles individually, and by the TileCache.
+ * Each tile gets an ETag derived from its checksum in the archive, or from its size and
+ * modification time in the folder, which is remembered so that building a tile grid response
+ * does not stat every tile again.
+ */
+public class TileStore {
+
+    private final String imgRoot;
+    private final TileArchive archive;
+    private final ConcurrentHashMap<String, String> etags = new ConcurrentHashMap<>();
+
+    public TileStore(String imgRoot) {
+        this(imgRoot, null);
+    }
+
+    /**
+     * @param imgRoot folder holding the tile pngs, ie. "img/", used if archive is null
+     * @param archive packed tiles to read instead of the folder, or null
+     */
+    public TileStore(String imgRoot, TileArchive archive) {
+        this.imgRoot = imgRoot;
+        this.archive = archive;
+    }
+
+    /**
+     * Tile names are "root" or a string of quadrant digits 1-4, ie. "1234". Anything else is
+     * rejected so that a request can never name a file outside of the tile folder.
+     */
+    public static boolean isValidName(String imageName) {
+        if (imageName.equals("root")) {
+            return true;
+        }
+        if (imageName.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < imageName.length(); i++) {
+            char c = imageName.charAt(i);
+            if (c < '1' || c > '4') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the encoded png bytes of the tile
+     * @throws IOException if the tile does not exist or could not be read
+     */
+    public byte[] read(String imageName) throws IOException {
+        if (archive != null) {
+            ByteBuffer slice = archive.slice(imageName);
+            if (slice == null) {
+                throw new IOException("No tile " + imageName + " in the tile archive");
+            }
+            byte[] png = new byte[slice.remaining()];
+            slice.get(png);
+            return png;
+        }
+        return Files.readAllBytes(file(imageName).toPath());
+    }
+
+    /**
+     * @return a stream over the encoded png bytes of the tile, to be closed by the caller
+     * @throws IOException if the tile does not exist or could not be opened
+     */
+    public InputStream open(String imageName) throws IOException {
+        if (archive != null) {
+            InputStream in = archive.open(imageName);
+            if (in == null) {
+                throw new IOException("No tile " + imageName + " in the tile archive");
+            }
+            return in;
+        }
+        return new BufferedInputStream(new FileInputStream(file(imageName)));
+    }
+
+    /**
+     * @return a quoted strong ETag for the tile, or null if the tile does not exist
+     */
+    public String etag(String imageName) {
+        String etag = etags.get(imageName);
+        if (etag == null) {
+            if (archive != null) {
+                long crc = archive.crc(imageName);
+                if (crc < 0) {
+                    return null;
+                }
+                etag = "\"" + Long.toHexString(crc) + "\"";
+            } else {
+                File file = file(imageName);
+                if (!file.isFile()) {
+                    return null;
+                }
+                etag = "\"" + Long.toHexString(file.length()) + "-"
+                        + Long.toHexString(file.lastModified()) + "\"";
+            }
+            etags.put(imageName, etag);
+        }
+        return etag;
+    }
+
+    /**
+     * Whether an If-None-Match request header matches a tile's ETag, so that the tile can be
+     * answered with 304 Not Modified. The header is "*" or a comma separated list of entity
+     * tags, and is compared weakly as RFC 7232 requires: a W/ prefix on either side is ignored.
+     * @param ifNoneMatch the header value, or null if the request has none
+     * @param etag the quoted ETag of the tile
+     */
+    public static boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        int i = 0;
+        int length = ifNoneMatch.length();
+        while (i < length) {
+            char c = ifNoneMatch.charAt(i);
+            if (c == ',' || c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            if (c == '*') {
+                return true;
+            }
+            if (ifNoneMatch.startsWith("W/", i)) {
+                i += 2;
+            }
+            // An entity tag is a quoted string, which may itself contain commas
+            if (i >= length || ifNoneMatch.charAt(i) != '"') {
+                return false;
+            }
+            int end = ifNoneMatch.indexOf('"', i + 1);
+            if (end < 0) {
+                return false;
+            }
+            if (ifNoneMatch.regionMatches(i, opaque, 0, opaque.length())
+                    && end + 1 - i == opaque.length()) {
+                return true;
+            }
+            i = end + 1;
+        }
+        return false;
+    }
+
+    private File file(String imageName) {
+        return new File(imgRoot + imageName + ".png");
+    }
+}
@@ -1,16 +1,100 @@
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
 
+/**
+ * Autocomplete index over the cleaned location names.
+ * Words are inserted into a HashMap based trie of TrieNodes, which is frozen on the first query
+ * into a compact, path compressed array trie and the TrieNodes are dropped. Inserting after
+ * that rebuilds the TrieNodes from the frozen words, so ingest should insert everything first.
+ * Queries answer from the frozen arrays and are safe to run concurrently.
+ */
 public class Trie {
 
+    // Mutable build form, null while frozen
     private TrieNode root;
+    private volatile Frozen frozen;
+    // Number of ranked completions cached at every node, 0 if the trie is not ranked
+    private int rankedK;
+    private ToIntFunction<String> weight;
+
+    /**
+     * Frozen trie. Nodes are numbered breadth first from the root, 0, so the children of node n
+     * are the nodes childStart[n] until childStart[n + 1], in the iteration order of the
+     * TrieNode children they were built from. Chains of non-word nodes with a single child are
+     * merged into one node, whose edge label is labels[labelStart[n]] until
+     * labels[labelStart[n + 1]]. Words are stored in depth first order, so the words below node
+     * n are exactly words[wordLo[n]] until words[wordHi[n]], in the same order as the TrieNode
+     * traversal returned them.
+     */
+    private static final class Frozen {
+        char[] labels;
+        int[] labelStart;
+        int[] childStart;
+        int[] wordLo, wordHi;
+        String[] words;
+        // Ranked completions of node n are top[topStart[n]] until top[topStart[n + 1]]
+        int rankedK;
+        int[] topStart, top;
+        Comparator<Integer> ranking;
+
+        int size() {
+            return childStart.length - 1;
+        }
+
+        boolean isWord(int n) {
+            if (wordLo[n] == wordHi[n]) {
+                return false;
+            }
+            // A word comes before the words of its children
+            int first = childStart[n];
+            return first == childStart[n + 1] || wordLo[first] > wordLo[n];
+        }
+
+        /** @return the node whose subtree holds exactly the words with the prefix, or -1 */
+        int find(String prefix) {
+            int node = 0;
+            int i = 0;
+            while (i < prefix.length()) {
+                node = child(node, prefix.charAt(i));
+                if (node < 0) {
+                    return -1;
+                }
+                for (int j = labelStart[node]; j < labelStart[node + 1] && i < prefix.length();
+                     j++, i++) {
+                    if (labels[j] != prefix.charAt(i)) {
+                        return -1;
+                    }
+                }
+            }
+            return node;
+        }
+
+        private int child(int node, char c) {
+            for (int child = childStart[node]; child < childStart[node + 1]; child++) {
+                if (labels[labelStart[child]] == c) {
+                    return child;
+                }
+            }
+            return -1;
+        }
+    }
 
     public Trie() {
         root = new TrieNode();
     }
 
     // Inserts a word into a trie
-    public void insert(String word) {
+    public synchronized void insert(String word) {
+        if (root == null) {
+            thaw();
+        }
+        frozen = null;
         HashMap<Character, TrieNode> children = root.children;
 
         for (int i = 0; i < word.length(); i++) {
@@ -36,93 +120,215 @@ public class Trie {
 
     // Returns if there is any word in the trie that starts with the given prefix
     public boolean startsWith(String prefix) {
-        if (searchNode(prefix) == null) return false;
-
-        return true;
+        // The empty prefix never matched, as it does not reach any node below the root
+        return !prefix.isEmpty() && frozen().find(prefix) >= 0;
     }
 
-    public TrieNode searchNode(String prefix) {
-        HashMap<Character, TrieNode> children = root.children;
-        TrieNode t = null;
-        for (int i = 0; i < prefix.length(); i++) {
-            char c = prefix.charAt(i);
-            if (children.containsKey(c)) {
-                t = children.get(c);
-                children = t.children;
-            }
-            else {
-                return null;
-            }
+    // Gather auto-complete list, in the order of a depth first traversal of the trie
+    // Inspiration: https://www.geeksforgeeks.org/auto-complete-feature-using-trie/
+    public LinkedList<String> getAutoSuggestions(String query) {
+        Frozen f = frozen();
+        int node = f.find(query);
+        if (node < 0) {
+            return null;
         }
-        return t;
+        LinkedList<String> suggestions = new LinkedList<>();
+        for (int i = f.wordLo[node]; i < f.wordHi[node]; i++) {
+            suggestions.add(f.words[i]);
+        }
+        return suggestions;
     }
 
-    // Gather auto-complete list
-    // Inspiration: https://www.geeksforgeeks.org/auto-complete-feature-using-trie/
-    public LinkedList<String> getAutoSuggestions(String query) {
-        LinkedList<String> autoSuggestions = getSuggestionsHelper(root, query);
-        return autoSuggestions;
+    /**
+     * Cache the k best completions at every node, so that topSuggestions only has to find the
+     * prefix node instead of walking and sorting its whole subtree. Words are ranked by
+     * descending weight, then shorter words first, then alphabetically.
+     * The ranking is recomputed with the same weights whenever the trie is frozen again.
+     * @param k number of completions to cache per node
+     * @param weight the weight of a word, ie. how many locations have that name
+     */
+    public synchronized void rank(int k, ToIntFunction<String> weight) {
+        if (root == null) {
+            thaw();
+        }
+        this.rankedK = k;
+        this.weight = weight;
+        freeze();
     }
 
     /**
-     * Given a node and a query string, traverse the Trie until the end of the query string
-     * If at the end of the query string, the node is a leaf, then we're done and found a 1-1 match
-     * Else call subtree helper function to gather the rest of the words in the subtrees
-     * @param node
-     * @param query
-     * @return
+     * @return the k best ranked words starting with the prefix, best first, or null if no word
+     * does. Answered from the cached completions when k is within the ranked k, otherwise by
+     * ranking the whole subtree. If the trie is not ranked, the first k words in traversal order.
      */
-    private LinkedList<String> getSuggestionsHelper(TrieNode node, String query) {
-        LinkedList<String> suggestions = new LinkedList<>();
-        TrieNode current = node;
-
-        // Check if prefix is present and find the node (of last level) with
-        // last character of given string
-        for (int i = 0; i < query.length(); i++) {
-            char c = query.charAt(i);
-            if (!current.children.containsKey(c)) {
-                return null;
+    public List<String> topSuggestions(String prefix, int k) {
+        Frozen f = frozen();
+        int node = f.find(prefix);
+        if (node < 0) {
+            return null;
+        }
+        List<String> suggestions = new ArrayList<>();
+        if (f.top == null) {
+            for (int i = f.wordLo[node]; i < f.wordHi[node] && suggestions.size() < k; i++) {
+                suggestions.add(f.words[i]);
+            }
+            return suggestions;
+        }
+        int cached = f.topStart[node + 1] - f.topStart[node];
+        // Fewer than rankedK cached completions means the node has no other words
+        if (k <= cached || cached < f.rankedK) {
+            for (int i = f.topStart[node]; i < f.topStart[node] + Math.min(k, cached); i++) {
+                suggestions.add(f.words[f.top[i]]);
             }
+            return suggestions;
+        }
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = f.wordLo[node]; i < f.wordHi[node]; i++) {
+            candidates.add(i);
+        }
+        candidates.sort(f.ranking);
+        for (int i = 0; i < k && i < candidates.size(); i++) {
+            suggestions.add(f.words[candidates.get(i)]);
+        }
+        return suggestions;
+    }
+
+    private Frozen frozen() {
+        Frozen f = frozen;
+        return f != null ? f : freeze();
+    }
 
-            current = current.children.get(c);
+    private synchronized Frozen freeze() {
+        if (frozen != null) {
+            return frozen;
         }
+        Frozen f = new Frozen();
 
-        // If prefix is present as a word and there are no subtrees
-        if (current.isLeaf && isLastNode(current)) {
-            suggestions.add(query);
-            return suggestions;
+        // Number the words depth first, remembering the range of words below every TrieNode
+        List<String> words = new ArrayList<>();
+        IdentityHashMap<TrieNode, int[]> ranges = new IdentityHashMap<>();
+        collectWords(root, new StringBuilder(), words, ranges);
+        f.words = words.toArray(new String[0]);
+
+        // Number the merged nodes breadth first
+        List<TrieNode> ends = new ArrayList<>();
+        StringBuilder labels = new StringBuilder();
+        List<Integer> labelStart = new ArrayList<>();
+        List<Integer> childStart = new ArrayList<>();
+        ends.add(root);
+        labelStart.add(0);
+        for (int n = 0; n < ends.size(); n++) {
+            childStart.add(ends.size());
+            for (Map.Entry<Character, TrieNode> child : ends.get(n).children.entrySet()) {
+                labelStart.add(labels.length());
+                labels.append(child.getKey());
+                TrieNode end = child.getValue();
+                while (!end.isLeaf && end.children.size() == 1) {
+                    Map.Entry<Character, TrieNode> only =
+                            end.children.entrySet().iterator().next();
+                    labels.append(only.getKey());
+                    end = only.getValue();
+                }
+                ends.add(end);
+            }
         }
+        childStart.add(ends.size());
+        labelStart.add(labels.length());
 
-        if (!isLastNode(current)) {
-            String prefix = query;
-            getSubtreeSuggestions(suggestions, current, prefix);
+        int size = ends.size();
+        f.labels = labels.toString().toCharArray();
+        f.labelStart = toArray(labelStart);
+        f.childStart = toArray(childStart);
+        f.wordLo = new int[size];
+        f.wordHi = new int[size];
+        for (int n = 0; n < size; n++) {
+            int[] range = ranges.get(ends.get(n));
+            f.wordLo[n] = range[0];
+            f.wordHi[n] = range[1];
         }
 
-        return suggestions;
+        if (rankedK > 0) {
+            rankFrozen(f);
+        }
+        root = null;
+        frozen = f;
+        return f;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
     }
 
     /**
-     * Traverse a subtree to gather the rest of the complete words
-     * @param suggestions
-     * @param node
-     * @param currPrefix
+     * Traverse a subtree to gather the complete words, a node's own word before its children's.
      */
-    private void getSubtreeSuggestions(LinkedList<String> suggestions, TrieNode node, String currPrefix) {
+    private static void collectWords(TrieNode node, StringBuilder prefix, List<String> words,
+                                     IdentityHashMap<TrieNode, int[]> ranges) {
+        int lo = words.size();
         if (node.isLeaf) {
-            suggestions.add(currPrefix);
+            words.add(prefix.toString());
+        }
+        for (Map.Entry<Character, TrieNode> child : node.children.entrySet()) {
+            prefix.append(child.getKey());
+            collectWords(child.getValue(), prefix, words, ranges);
+            prefix.setLength(prefix.length() - 1);
+        }
+        ranges.put(node, new int[]{lo, words.size()});
+    }
+
+    private void rankFrozen(Frozen f) {
+        f.rankedK = rankedK;
+        int[] weights = new int[f.words.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weight.applyAsInt(f.words[i]);
         }
+        String[] words = f.words;
+        f.ranking = Comparator.comparingInt((Integer w) -> -weights[w])
+                .thenComparingInt(w -> words[w].length())
+                .thenComparing(w -> words[w]);
 
-        if (isLastNode(node)) return;
+        // Children are numbered after their parents, so walk the nodes backwards
+        int size = f.size();
+        int[][] tops = new int[size][];
+        int total = 0;
+        for (int n = size - 1; n >= 0; n--) {
+            List<Integer> candidates = new ArrayList<>();
+            if (f.isWord(n)) {
+                candidates.add(f.wordLo[n]);
+            }
+            for (int child = f.childStart[n]; child < f.childStart[n + 1]; child++) {
+                for (int w : tops[child]) {
+                    candidates.add(w);
+                }
+            }
+            candidates.sort(f.ranking);
+            tops[n] = toArray(candidates.subList(0, Math.min(f.rankedK, candidates.size())));
+            total += tops[n].length;
+        }
 
-        for (Character c : node.children.keySet()) {
-            // Recursively go through the rest
-            // Passing in "currPrefix + c.toString" as an argument will keep the currPrefix in sync
-            // with the current level/node
-            getSubtreeSuggestions(suggestions, node.children.get(c), currPrefix + c.toString());
+        f.topStart = new int[size + 1];
+        f.top = new int[total];
+        for (int n = 0; n < size; n++) {
+            f.topStart[n + 1] = f.topStart[n] + tops[n].length;
+            System.arraycopy(tops[n], 0, f.top, f.topStart[n], tops[n].length);
         }
     }
 
-    private boolean isLastNode(TrieNode node) {
-        return node.children.isEmpty();
+    /**
+     * Rebuild the TrieNodes from the frozen words so that more words can be inserted.
+     * Inserting the words in traversal order gives every children map the same iteration
+     * order it had before freezing.
+     */
+    private void thaw() {
+        Frozen f = frozen;
+        root = new TrieNode();
+        frozen = null;
+        for (String word : f.words) {
+            insert(word);
+        }
     }
 }
@@ -0,0 +1,135 @@
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+
+public class ContractionHierarchyTest {
+    static final double doubleThreshhold = 0.0000000001;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Compare every route of the hierarchy against plain A*, on a graph with duplicate
+     * vertices joined by zero length edges and a component the rest cannot reach.
+     */
+    @Test
+    public void testShortestPathMatchesAStar() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        checkAgainstAStar(graph, ContractionHierarchy.build(graph));
+    }
+
+    @Test
+    public void testShortestPathOnGrid() {
+        CSRGraph graph = TestGraphs.grid(12, 7);
+        checkAgainstAStar(graph, ContractionHierarchy.build(graph));
+    }
+
+    /**
+     * Contracting the middle of three duplicates must keep the route through it.
+     */
+    @Test
+    public void testZeroLengthChain() {
+        double[][] coordinates = {{0, 0}, {0, 0}, {0, 0}};
+        CSRGraph graph = TestGraphs.graph(coordinates, new int[][]{{0, 1}, {1, 2}});
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        checkAgainstAStar(graph, ch);
+        assertEquals(3, ch.shortestPath(0, 2).size());
+    }
+
+    @Test
+    public void testStartEqualsEnd() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        for (int v = 0; v < graph.size(); v++) {
+            LinkedList<Long> route = ch.shortestPath(v, v);
+            assertEquals(1, route.size());
+            assertEquals(TestGraphs.id(v), (long) route.getFirst());
+        }
+    }
+
+    @Test
+    public void testUnreachable() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        assertTrue(ch.shortestPath(0, 30).isEmpty());
+        assertTrue(ch.shortestPath(31, 28).isEmpty());
+        assertTrue(ch.shortestPath(-1, 3).isEmpty());
+        double[][] matrix = ch.distanceMatrix(new int[]{0, 29}, new int[]{30, 28});
+        assertEquals(Double.POSITIVE_INFINITY, matrix[0][0], 0);
+        assertEquals(Double.POSITIVE_INFINITY, matrix[1][1], 0);
+    }
+
+    @Test
+    public void testWriteReadRoundTrip() throws Exception {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        ContractionHierarchy ch = ContractionHierarchy.build(graph);
+        File file = new File(folder.getRoot(), "test.ch");
+        ch.write(file);
+
+        ContractionHierarchy read = ContractionHierarchy.read(file, graph);
+        assertNotNull(read);
+        assertArrayEquals(ch.rank, read.rank);
+        assertArrayEquals(ch.upOffsets, read.upOffsets);
+        assertArrayEquals(ch.upTargets, read.upTargets);
+        assertArrayEquals(ch.upWeights, read.upWeights, 0);
+        assertArrayEquals(ch.upMiddle, read.upMiddle);
+        checkAgainstAStar(graph, read);
+    }
+
+    /**
+     * A hierarchy is only read back over the graph it was built for, and never from a broken
+     * file.
+     */
+    @Test
+    public void testReadRejects() throws Exception {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        File file = new File(folder.getRoot(), "test.ch");
+        ContractionHierarchy.build(graph).write(file);
+
+        // Same vertices, one edge less: the graph checksum differs
+        double[][] coordinates = new double[graph.size()][];
+        for (int i = 0; i < graph.size(); i++) {
+            coordinates[i] = new double[]{graph.lon[i], graph.lat[i]};
+        }
+        CSRGraph other = TestGraphs.graph(coordinates, new int[][]{{0, 1}, {1, 2}});
+        assertNull(ContractionHierarchy.read(file, other));
+        assertNull(ContractionHierarchy.read(file, TestGraphs.grid(3, 1)));
+        assertNull(ContractionHierarchy.read(new File(folder.getRoot(), "missing.ch"), graph));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        assertNull(ContractionHierarchy.read(file, graph));
+    }
+
+    private static void checkAgainstAStar(CSRGraph graph, ContractionHierarchy ch) {
+        RoutingEngine engine = new RoutingEngine(graph);
+        int n = graph.size();
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        double[][] matrix = ch.distanceMatrix(all, all);
+        for (int start = 0; start < n; start++) {
+            for (int end = 0; end < n; end++) {
+                String pair = start + " -> " + end;
+                double expected = TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end), start, end);
+                double actual = TestGraphs.routeLength(graph,
+                        ch.shortestPath(start, end), start, end);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertEquals(pair, expected, actual, 0);
+                    assertEquals(pair, expected, matrix[start][end], 0);
+                } else {
+                    assertEquals(pair, expected, actual, doubleThreshhold);
+                    assertEquals(pair, expected, matrix[start][end], doubleThreshhold);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class GraphDBTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGetNeighbors() {
+        CSRGraph graph = TestGraphs.grid(3, 21);
+        GraphDB g = new GraphDB(graph, new HashMap<>(), Collections.emptyList(),
+                new double[]{-122.3, 37.8, -122.2, 37.9}, false, new KdTree(graph.nodes).order);
+
+        // The center of the grid touches the four vertices around it
+        Set<Long> neighbors = new HashSet<>();
+        for (Node node : g.getNeighbors(graph.node(4))) {
+            neighbors.add(node.id);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(TestGraphs.id(1), TestGraphs.id(3),
+                TestGraphs.id(5), TestGraphs.id(7))), neighbors);
+
+        // Nodes that are not part of the road graph, as before the graph was frozen
+        assertNull(g.getNeighbors(new Node(1, -122.25, 37.85)));
+        assertNull(g.getNeighbors(new Node(Long.MAX_VALUE, -122.25, 37.85)));
+        assertNull(g.getNodeByID(1));
+    }
+
+    /**
+     * The two pass highways-only ingest must keep only nodes on allowed highways as graph
+     * vertices, and give the graph a one pass ingest gives once the other ways are removed
+     * from the file. Named locations are kept for search either way.
+     */
+    @Test
+    public void testHighwaysOnly() throws Exception {
+        File full = folder.newFile("full.osm");
+        TestOSMFiles.write(full, 30, true);
+        File highways = folder.newFile("highways.osm");
+        TestOSMFiles.write(highways, 30, false);
+
+        GraphDB twoPass = new GraphDB(full.getPath(), true);
+        GraphDB onePass = new GraphDB(highways.getPath(), false);
+        assertTrue(twoPass.highwaysOnly);
+        CSRGraph expected = onePass.graph;
+        CSRGraph actual = twoPass.graph;
+        assertTrue(actual.size() > 0);
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.lon, actual.lon, 0);
+        assertArrayEquals(expected.lat, actual.lat, 0);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(neighborIds(expected, i), neighborIds(actual, i));
+            assertTrue(actual.node(i).isHighway);
+        }
+
+        // Only grid nodes on residential rows or secondary columns, never the building
+        // corners, orphans or named locations
+        LongHashSet highwayNodes = HighwayNodeCollector.collect(full);
+        for (int i = 0; i < actual.size(); i++) {
+            long id = actual.ids[i];
+            assertTrue(highwayNodes.contains(id));
+            assertTrue(id < TestOSMFiles.BUILDING_IDS);
+            long x = (id - 1) % 30;
+            long y = (id - 1) / 30;
+            assertTrue(id + " is on no highway", y % 3 != 2 || x % 2 == 0);
+        }
+        assertEquals(OSMIngestPipelineTest.locations(onePass),
+                OSMIngestPipelineTest.locations(twoPass));
+        assertEquals(onePass.autoComplete.getAutoSuggestions(""),
+                twoPass.autoComplete.getAutoSuggestions(""));
+
+        // The one pass ingest of the full file also connects the other ways
+        GraphDB everything = new GraphDB(full.getPath(), false);
+        assertFalse(everything.highwaysOnly);
+        assertTrue(everything.graph.size() > actual.size());
+        assertTrue(everything.graph.indexOf(TestOSMFiles.BUILDING_IDS) >= 0);
+        assertTrue(actual.indexOf(TestOSMFiles.BUILDING_IDS) < 0);
+        assertTrue(actual.indexOf(TestOSMFiles.ORPHAN_IDS) < 0);
+    }
+
+    private static Set<Long> neighborIds(CSRGraph graph, int index) {
+        Set<Long> ids = new TreeSet<>();
+        for (Node node : graph.neighbors(index)) {
+            ids.add(node.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,188 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class GraphSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDB g;
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void writeSnapshot() throws Exception {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        for (int i = 0; i < graph.size(); i += 3) {
+            graph.nodes[i].isHighway = true;
+        }
+        HashMap<String, LinkedList<Node>> nodeNameMap = new HashMap<>();
+        // A named intersection, two locations sharing a name, and one off the road graph
+        addLocation(nodeNameMap, graph.node(4), "Telegraph & Bancroft");
+        addLocation(nodeNameMap, new Node(1, -122.26, 37.87), "Cafe Strada");
+        addLocation(nodeNameMap, new Node(2, -122.27, 37.86), "CAFE STRADA.");
+        addLocation(nodeNameMap, new Node(3, -122.25, 37.88), "Berkeley Bowl");
+        List<String> words = Arrays.asList("telegraph  bancroft", "cafe strada", "berkeley bowl");
+        g = new GraphDB(graph, nodeNameMap, words, new double[]{-122.3, 37.8, -122.2, 37.9},
+                false, new KdTree(graph.nodes).order);
+
+        source = folder.newFile("berkeley.osm");
+        Files.write(source.toPath(), new byte[]{1, 2, 3});
+        snapshot = new File(folder.getRoot(), "berkeley.graph");
+        GraphSnapshot.write(g, snapshot, source);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        GraphDB read = GraphSnapshot.read(snapshot, source, false);
+        assertNotNull(read);
+        assertFalse(new File(snapshot.getPath() + ".tmp").exists());
+
+        CSRGraph expected = g.graph;
+        CSRGraph actual = read.graph;
+        assertArrayEquals(expected.ids, actual.ids);
+        assertArrayEquals(expected.lon, actual.lon, 0);
+        assertArrayEquals(expected.lat, actual.lat, 0);
+        assertArrayEquals(expected.offsets, actual.offsets);
+        assertArrayEquals(expected.targets, actual.targets);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.node(i).isHighway, actual.node(i).isHighway);
+        }
+        assertArrayEquals(g.nearestKdTree.order, read.nearestKdTree.order);
+        assertEquals(g.minlon, read.minlon, 0);
+        assertEquals(g.minlat, read.minlat, 0);
+        assertEquals(g.maxlon, read.maxlon, 0);
+        assertEquals(g.maxlat, read.maxlat, 0);
+
+        assertEquals(g.autoComplete.getAutoSuggestions(""),
+                read.autoComplete.getAutoSuggestions(""));
+        assertEquals(g.nodeNameMap.keySet(), read.nodeNameMap.keySet());
+        for (Map.Entry<String, LinkedList<Node>> entry : g.nodeNameMap.entrySet()) {
+            LinkedList<Node> locations = read.nodeNameMap.get(entry.getKey());
+            assertEquals(entry.getValue().size(), locations.size());
+            for (int i = 0; i < locations.size(); i++) {
+                Node node = entry.getValue().get(i);
+                assertEquals(node.id, locations.get(i).id);
+                assertEquals(node.longitude, locations.get(i).longitude, 0);
+                assertEquals(node.latitude, locations.get(i).latitude, 0);
+                assertEquals(node.name, locations.get(i).name);
+            }
+        }
+        // A named intersection is the same Node as the graph vertex
+        assertSame(read.graph.node(4), read.nodeNameMap.get("telegraph  bancroft").getFirst());
+        assertEquals(g.getTopAutoCompleteSuggestions("cafe", 5),
+                read.getTopAutoCompleteSuggestions("cafe", 5));
+    }
+
+    @Test
+    public void testRejectsStaleOrMissing() throws Exception {
+        assertNull(GraphSnapshot.read(new File(folder.getRoot(), "missing.graph"), source,
+                false));
+        // Once the OSM file changes, the snapshot is stale
+        Files.write(source.toPath(), new byte[]{1, 2, 3, 4});
+        assertNull(GraphSnapshot.read(snapshot, source, false));
+        // Without the OSM file, there is nothing to compare to
+        assertTrue(source.delete());
+        assertNotNull(GraphSnapshot.read(snapshot, source, false));
+    }
+
+    /** A snapshot is only loaded in the ingest mode it was built with. */
+    @Test
+    public void testRejectsOtherMode() throws Exception {
+        assertNull(GraphSnapshot.read(snapshot, source, true));
+
+        File osm = folder.newFile("grid.osm");
+        TestOSMFiles.write(osm, 20, true);
+        GraphDB highways = new GraphDB(osm.getPath(), true);
+        File highwaySnapshot = new File(folder.getRoot(), "highways.graph");
+        GraphSnapshot.write(highways, highwaySnapshot, osm);
+        assertNull(GraphSnapshot.read(highwaySnapshot, osm, false));
+        GraphDB read = GraphSnapshot.read(highwaySnapshot, osm, true);
+        assertNotNull(read);
+        assertTrue(read.highwaysOnly);
+        assertArrayEquals(highways.graph.ids, read.graph.ids);
+    }
+
+    /**
+     * A truncated or corrupt snapshot must never escape read() as an exception or an
+     * OutOfMemoryError, so that the server falls back to parsing the OSM file.
+     */
+    @Test
+    public void testRejectsTruncated() throws Exception {
+        byte[] original = Files.readAllBytes(snapshot.toPath());
+        for (int length = 0; length < original.length; length += 1 + length / 16) {
+            Files.write(snapshot.toPath(), Arrays.copyOf(original, length));
+            assertNull("Truncated to " + length, GraphSnapshot.read(snapshot, source, false));
+        }
+    }
+
+    @Test
+    public void testRejectsCorrupt() throws Exception {
+        byte[] original = Files.readAllBytes(snapshot.toPath());
+        // Header: magic, version, source length and time, mode and bounds
+        int n = 4 + 4 + 8 + 8 + 1 + 4 * 8;
+        int size = g.graph.size();
+        int m = g.graph.edgeCount();
+        int offsets = n + 8 + size * (8 + 8 + 8 + 1);
+        int targets = offsets + (size + 1) * 4;
+        int kdOrder = targets + m * 4;
+        int wordCount = kdOrder + size * 4;
+
+        byte[] negative = {(byte) 0x80, 0, 0, 0};
+        byte[] huge = {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF};
+        checkCorrupt(original, n, negative);
+        checkCorrupt(original, n, huge);
+        checkCorrupt(original, n + 4, negative);
+        checkCorrupt(original, n + 4, huge);
+        checkCorrupt(original, wordCount, negative);
+        checkCorrupt(original, wordCount, huge);
+        // Length of the first word
+        checkCorrupt(original, wordCount + 4, huge);
+        // An edge to a vertex that does not exist, and the first offset
+        checkCorrupt(original, targets, huge);
+        checkCorrupt(original, offsets, new byte[]{0, 0, 0, 1});
+        checkCorrupt(original, kdOrder, negative);
+        // Ids out of order: the first id becomes the largest
+        checkCorrupt(original, n + 8, new byte[]{0x7F});
+
+        // Random damage may happen to leave a valid snapshot, but must not throw
+        Random random = new Random(31);
+        for (int i = 0; i < 2000; i++) {
+            byte[] damaged = original.clone();
+            for (int j = 0; j < 1 + random.nextInt(3); j++) {
+                damaged[n + random.nextInt(damaged.length - n)] = (byte) random.nextInt();
+            }
+            Files.write(snapshot.toPath(), damaged);
+            GraphSnapshot.read(snapshot, source, false);
+        }
+    }
+
+    private void checkCorrupt(byte[] original, int position, byte[] bytes) throws Exception {
+        Files.write(snapshot.toPath(), original);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.seek(position);
+            raf.write(bytes);
+        }
+        assertNull("Corrupted at " + position, GraphSnapshot.read(snapshot, source, false));
+    }
+
+    private static void addLocation(HashMap<String, LinkedList<Node>> nodeNameMap, Node node,
+                                    String name) {
+        node.setName(name);
+        nodeNameMap.computeIfAbsent(GraphDB.cleanString(name), k -> new LinkedList<>())
+                .add(node);
+    }
+}
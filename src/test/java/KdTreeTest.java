@@ -0,0 +1,174 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+public class KdTreeTest {
+
+    /**
+     * Nearest must agree with a scan of all nodes, including the tie break on node order, on
+     * points with many duplicate coordinates.
+     */
+    @Test
+    public void testNearestMatchesScan() {
+        Node[] nodes = randomNodes(500, 1, true);
+        KdTree tree = new KdTree(nodes);
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            double lon = -122.3 + 0.12 * random.nextDouble();
+            double lat = 37.8 + 0.12 * random.nextDouble();
+            assertEquals(lon + ", " + lat, scanNearest(nodes, lon, lat),
+                    tree.nearestIndex(lon, lat));
+        }
+        // Exactly on nodes, where several are at distance 0
+        for (Node node : nodes) {
+            assertEquals(scanNearest(nodes, node.longitude, node.latitude),
+                    tree.nearestIndex(node.longitude, node.latitude));
+        }
+    }
+
+    @Test
+    public void testNonFinitePoints() {
+        KdTree tree = new KdTree(randomNodes(100, 3, false));
+        assertEquals(-1, tree.nearestIndex(Double.NaN, 37.85));
+        assertEquals(-1, tree.nearestIndex(-122.25, Double.NaN));
+        assertNull(tree.nearest(Double.NaN, Double.NaN));
+        // Every node is infinitely far, so any node will do, as long as there is no exception
+        assertTrue(tree.nearestIndex(Double.POSITIVE_INFINITY, 37.85) >= 0);
+        assertTrue(tree.nearestIndex(-122.25, Double.NEGATIVE_INFINITY) >= 0);
+        assertTrue(tree.nearestIndex(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY) >= 0);
+    }
+
+    /**
+     * kNearest must return the k first nodes of a scan sorted by distance and then node index.
+     */
+    @Test
+    public void testKNearestMatchesScan() {
+        Node[] nodes = randomNodes(400, 4, true);
+        KdTree tree = new KdTree(nodes);
+        Random random = new Random(5);
+        for (int i = 0; i < 300; i++) {
+            double lon = -122.3 + 0.1 * random.nextDouble();
+            double lat = 37.8 + 0.1 * random.nextDouble();
+            if (i % 10 == 0) {
+                // On a lattice point, where duplicates tie
+                lon = -122.3 + 0.01 * random.nextInt(10);
+                lat = 37.8 + 0.01 * random.nextInt(10);
+            }
+            int[] sorted = scanSorted(nodes, lon, lat);
+            for (int k : new int[]{0, 1, 2, 7, 50, 400, 1000}) {
+                int[] expected = Arrays.copyOf(sorted, Math.min(k, nodes.length));
+                assertArrayEquals(lon + ", " + lat + ", k = " + k, expected,
+                        tree.kNearestIndices(lon, lat, k));
+            }
+        }
+        List<Node> nearest = tree.kNearest(-122.25, 37.85, 3);
+        int[] expected = scanSorted(nodes, -122.25, 37.85);
+        for (int i = 0; i < 3; i++) {
+            assertSame(nodes[expected[i]], nearest.get(i));
+        }
+    }
+
+    @Test
+    public void testWithinRadiusMatchesScan() {
+        Node[] nodes = randomNodes(400, 6, true);
+        KdTree tree = new KdTree(nodes);
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            double lon = -122.3 + 0.1 * random.nextDouble();
+            double lat = 37.8 + 0.1 * random.nextDouble();
+            for (double radius : new double[]{0, 0.001, 0.01, 0.03, 1}) {
+                int[] expected = Arrays.stream(scanSorted(nodes, lon, lat))
+                        .filter(j -> distanceSquared(nodes[j], lon, lat) <= radius * radius)
+                        .toArray();
+                assertArrayEquals(lon + ", " + lat + ", radius = " + radius, expected,
+                        tree.withinRadiusIndices(lon, lat, radius));
+            }
+        }
+        // A node exactly on the circle is included
+        Node node = nodes[10];
+        double radius = Math.sqrt(distanceSquared(node, -122.25, 37.85));
+        assertTrue(tree.withinRadius(-122.25, 37.85, radius).contains(node));
+    }
+
+    /**
+     * Batches of at least 1024 points run in parallel, smaller ones sequentially; both must
+     * agree with nearestIndex point by point.
+     */
+    @Test
+    public void testNearestIndicesMatchesNearest() {
+        Node[] nodes = randomNodes(1000, 8, true);
+        KdTree tree = new KdTree(nodes);
+        Random random = new Random(9);
+        for (int count : new int[]{0, 1, 1023, 1024, 5000}) {
+            double[] lons = new double[count];
+            double[] lats = new double[count];
+            for (int i = 0; i < count; i++) {
+                lons[i] = -122.3 + 0.1 * random.nextDouble();
+                lats[i] = 37.8 + 0.1 * random.nextDouble();
+            }
+            int[] batch = tree.nearestIndices(lons, lats);
+            assertEquals(count, batch.length);
+            for (int i = 0; i < count; i++) {
+                assertEquals(scanNearest(nodes, lons[i], lats[i]), batch[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        KdTree tree = new KdTree(new Node[0]);
+        assertEquals(-1, tree.nearestIndex(-122.25, 37.85));
+        assertNull(tree.nearest(-122.25, 37.85));
+        assertEquals(0, tree.kNearestIndices(-122.25, 37.85, 5).length);
+        assertEquals(0, tree.withinRadiusIndices(-122.25, 37.85, 1).length);
+    }
+
+    /**
+     * @param duplicates put a third of the nodes on a coarse lattice, so that many of them
+     *                   share coordinates
+     */
+    static Node[] randomNodes(int n, long seed, boolean duplicates) {
+        Random random = new Random(seed);
+        Node[] nodes = new Node[n];
+        for (int i = 0; i < n; i++) {
+            double lon = -122.3 + 0.1 * random.nextDouble();
+            double lat = 37.8 + 0.1 * random.nextDouble();
+            if (duplicates && i % 3 == 0) {
+                lon = -122.3 + 0.01 * random.nextInt(10);
+                lat = 37.8 + 0.01 * random.nextInt(10);
+            }
+            nodes[i] = new Node(i, lon, lat);
+        }
+        return nodes;
+    }
+
+    static double distanceSquared(Node node, double lon, double lat) {
+        double dx = node.longitude - lon;
+        double dy = node.latitude - lat;
+        return dx * dx + dy * dy;
+    }
+
+    /** All node indices, by distance from the point and then by index. */
+    private static int[] scanSorted(Node[] nodes, double lon, double lat) {
+        return IntStream.range(0, nodes.length).boxed()
+                .sorted(Comparator.<Integer>comparingDouble(
+                        i -> distanceSquared(nodes[i], lon, lat)).thenComparingInt(i -> i))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int scanNearest(Node[] nodes, double lon, double lat) {
+        int best = -1;
+        for (int i = 0; i < nodes.length; i++) {
+            if (best < 0 || distanceSquared(nodes[i], lon, lat)
+                    < distanceSquared(nodes[best], lon, lat)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
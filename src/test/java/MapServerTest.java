@@ -0,0 +1,60 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class MapServerTest {
+
+    @Test
+    public void testMatrixRequest() {
+        MapServer.MatrixRequest request = MapServer.MatrixRequest.parse(
+                "{\"sources\": [[-122.25, 37.85], [-122.26, 37.86]],"
+                + " \"targets\": [[-122.24, 37.87]]}");
+        assertNotNull(request);
+        assertEquals(2, request.sources.length);
+        assertArrayEquals(new double[]{-122.26, 37.86}, request.sources[1], 0);
+        assertArrayEquals(new double[]{-122.24, 37.87}, request.targets[0], 0);
+
+        // Empty lists are answered with an empty matrix
+        assertNotNull(MapServer.MatrixRequest.parse("{\"sources\": [], \"targets\": []}"));
+    }
+
+    @Test
+    public void testMatrixRequestRejectsMalformed() {
+        String[] bodies = {
+            "",
+            "not json",
+            "{\"sources\": [[-122.25, 37.85]]",
+            "{\"sources\": [[-122.25, 37.85]]}",
+            "{\"targets\": [[-122.25, 37.85]]}",
+            "{\"sources\": \"-122.25, 37.85\", \"targets\": []}",
+            "{\"sources\": [[-122.25]], \"targets\": []}",
+            "{\"sources\": [[-122.25, 37.85, 0]], \"targets\": []}",
+            "{\"sources\": [null], \"targets\": []}",
+            "{\"sources\": [[\"west\", \"north\"]], \"targets\": []}",
+            "[[-122.25, 37.85]]",
+        };
+        for (String body : bodies) {
+            assertNull(body, MapServer.MatrixRequest.parse(body));
+        }
+    }
+
+    @Test
+    public void testMatrixRequestPointLimit() {
+        int max = MapServer.MatrixRequest.MAX_POINTS;
+        assertNotNull(MapServer.MatrixRequest.parse(body(max, max)));
+        assertNull(MapServer.MatrixRequest.parse(body(max + 1, 1)));
+        assertNull(MapServer.MatrixRequest.parse(body(1, max + 1)));
+    }
+
+    private static String body(int sources, int targets) {
+        return "{\"sources\": " + points(sources) + ", \"targets\": " + points(targets) + "}";
+    }
+
+    private static String points(int count) {
+        StringBuilder points = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            points.append(i == 0 ? "" : ", ").append("[-122.25, ").append(37.8 + i * 1e-5)
+                    .append("]");
+        }
+        return points.append("]").toString();
+    }
+}
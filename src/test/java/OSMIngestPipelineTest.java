@@ -0,0 +1,183 @@
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.xml.parsers.SAXParserFactory;
+
+public class OSMIngestPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Decoding out of order on several threads must leave the GraphDB exactly as a plain
+     * MapDBHandler SAX parse does, in both ingest modes.
+     */
+    @Test
+    public void testMatchesSaxParse() throws Exception {
+        // 100 by 100 nodes and their way refs span several batches and fill the queue
+        File osm = folder.newFile("grid.osm");
+        TestOSMFiles.write(osm, 100, true);
+
+        GraphDB expected = parseTarget();
+        SAXParserFactory.newInstance().newSAXParser().parse(osm, new MapDBHandler(expected));
+        for (int decoderThreads : new int[]{1, 3}) {
+            GraphDB actual = parseTarget();
+            new OSMIngestPipeline(new MapDBHandler(actual), decoderThreads).parse(osm);
+            assertSameParse(expected, actual);
+        }
+
+        LongHashSet highwayNodes = HighwayNodeCollector.collect(osm);
+        expected = parseTarget();
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(osm, new MapDBHandler(expected, highwayNodes));
+        GraphDB actual = parseTarget();
+        new OSMIngestPipeline(new MapDBHandler(actual, highwayNodes), 2).parse(osm);
+        assertSameParse(expected, actual);
+    }
+
+    /** A batch that fails to decode fails the parse, and the reader stops. */
+    @Test
+    public void testDecodeFailure() throws Exception {
+        File osm = folder.newFile("bad.osm");
+        writeNodes(osm, 100000, 5000);
+        try {
+            new OSMIngestPipeline(new MapDBHandler(parseTarget()), 1).parse(osm);
+            fail("Parsed a node without a longitude");
+        } catch (SAXException e) {
+            assertTrue(e.getCause().getCause() instanceof NumberFormatException);
+        }
+        assertReaderStopped();
+    }
+
+    /**
+     * When the assembler fails while the reader is blocked on a full queue, the reader must
+     * still stop instead of waiting forever for room to queue the end of the input.
+     */
+    @Test
+    public void testAssemblerFailureStopsReader() throws Exception {
+        File osm = folder.newFile("nodes.osm");
+        writeNodes(osm, 100000, -1);
+        // Holding up the first batch lets the reader fill the queue before the failure
+        MapDBHandler failingHandler = new MapDBHandler(parseTarget()) {
+            @Override
+            void node(long id, double lon, double lat) {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("Assembly failed");
+            }
+        };
+        try {
+            new OSMIngestPipeline(failingHandler, 1).parse(osm);
+            fail("Parsed with a failing handler");
+        } catch (IllegalStateException expected) {
+            // Thrown by the handler on the calling thread
+        }
+        assertReaderStopped();
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        try {
+            new OSMIngestPipeline(new MapDBHandler(parseTarget()), 2)
+                    .parse(new File(folder.getRoot(), "missing.osm"));
+            fail("Parsed a missing file");
+        } catch (IOException expected) {
+            // The reader's failure is rethrown on the calling thread
+        }
+    }
+
+    /** count nodes, of which the one with id badNode has no valid longitude. */
+    private static void writeNodes(File osm, int count, int badNode) throws IOException {
+        try (PrintWriter out = new PrintWriter(osm, "UTF-8")) {
+            out.println("<osm version=\"0.6\">");
+            for (int i = 1; i <= count; i++) {
+                String lon = i == badNode ? "not a number" : "-122.25";
+                out.println(" <node id=\"" + i + "\" lat=\"37.85\" lon=\"" + lon + "\"/>");
+            }
+            out.println("</osm>");
+        }
+    }
+
+    private static void assertReaderStopped() throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("osm-tokenizer")) {
+                thread.join(5000);
+                assertFalse("The tokenizer thread is still running", thread.isAlive());
+            }
+        }
+    }
+
+    /** A GraphDB with the empty parse structures a MapDBHandler fills in. */
+    private static GraphDB parseTarget() {
+        CSRGraph empty = new CSRGraph(new long[0], new double[0], new double[0], new int[1],
+                new int[0]);
+        GraphDB g = new GraphDB(empty, new HashMap<>(), Collections.emptyList(),
+                new double[4], false, new int[0]);
+        g.mapGraph = new HashMap<>();
+        g.idMap = new HashMap<>();
+        g.autoComplete = new Trie();
+        return g;
+    }
+
+    private static void assertSameParse(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.minlon, actual.minlon, 0);
+        assertEquals(expected.minlat, actual.minlat, 0);
+        assertEquals(expected.maxlon, actual.maxlon, 0);
+        assertEquals(expected.maxlat, actual.maxlat, 0);
+        assertEquals(expected.idMap.keySet(), actual.idMap.keySet());
+        assertEquals(adjacency(expected), adjacency(actual));
+        for (Map.Entry<Long, Node> entry : expected.idMap.entrySet()) {
+            Node node = actual.idMap.get(entry.getKey());
+            assertEquals(entry.getValue().longitude, node.longitude, 0);
+            assertEquals(entry.getValue().latitude, node.latitude, 0);
+            assertEquals(entry.getValue().isHighway, node.isHighway);
+        }
+        assertEquals(locations(expected), locations(actual));
+        assertEquals(expected.autoComplete.getAutoSuggestions(""),
+                actual.autoComplete.getAutoSuggestions(""));
+    }
+
+    private static Map<Long, Set<Long>> adjacency(GraphDB g) {
+        Map<Long, Set<Long>> adjacency = new TreeMap<>();
+        for (Map.Entry<Node, HashSet<Node>> entry : g.mapGraph.entrySet()) {
+            Set<Long> neighbors = new TreeSet<>();
+            for (Node neighbor : entry.getValue()) {
+                neighbors.add(neighbor.id);
+            }
+            adjacency.put(entry.getKey().id, neighbors);
+        }
+        return adjacency;
+    }
+
+    /** Every clean name with the ids and names of its locations, in file order. */
+    static Map<String, List<String>> locations(GraphDB g) {
+        Map<String, List<String>> locations = new TreeMap<>();
+        for (Map.Entry<String, LinkedList<Node>> entry : g.nodeNameMap.entrySet()) {
+            List<String> nodes = new ArrayList<>();
+            for (Node node : entry.getValue()) {
+                nodes.add(node.id + " " + node.name);
+            }
+            locations.put(entry.getKey(), nodes);
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,153 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class PngEncoderTest {
+
+    // Heights around the 64 row chunks, so that one, exactly one, and several chunks are joined
+    private static final int[] HEIGHTS = {1, 63, 64, 65, 200};
+
+    @Test
+    public void testPresetsRoundTrip() throws Exception {
+        for (PngEncoder encoder : new PngEncoder[]{PngEncoder.FAST, PngEncoder.COMPACT}) {
+            for (int height : HEIGHTS) {
+                checkRoundTrip(encoder, randomImage(37, height, BufferedImage.TYPE_INT_RGB, 1));
+                checkRoundTrip(encoder, gradientImage(256, height, BufferedImage.TYPE_INT_RGB));
+            }
+        }
+    }
+
+    /** Every filter type and the adaptive choice must undo exactly in a standard decoder. */
+    @Test
+    public void testFiltersRoundTrip() throws Exception {
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            PngEncoder encoder = new PngEncoder(Deflater.DEFAULT_COMPRESSION, filter);
+            for (int height : HEIGHTS) {
+                checkRoundTrip(encoder, randomImage(19, height, BufferedImage.TYPE_INT_RGB, 2));
+                checkRoundTrip(encoder, gradientImage(70, height, BufferedImage.TYPE_INT_RGB));
+            }
+        }
+    }
+
+    @Test
+    public void testOtherImageTypes() throws Exception {
+        checkRoundTrip(PngEncoder.FAST, randomImage(50, 90, BufferedImage.TYPE_3BYTE_BGR, 3));
+        checkRoundTrip(PngEncoder.FAST, randomImage(50, 90, BufferedImage.TYPE_INT_ARGB, 4));
+        checkRoundTrip(new PngEncoder(0, PngEncoder.Filter.PAETH),
+                gradientImage(31, 130, BufferedImage.TYPE_INT_RGB));
+    }
+
+    /**
+     * Subimages share the pixel array of their parent, so their rows are not back to back in
+     * it even when they start at the origin.
+     */
+    @Test
+    public void testSubimages() throws Exception {
+        BufferedImage parent = randomImage(120, 80, BufferedImage.TYPE_INT_RGB, 5);
+        checkRoundTrip(PngEncoder.FAST, parent.getSubimage(0, 0, 70, 80));
+        checkRoundTrip(PngEncoder.FAST, parent.getSubimage(0, 0, 120, 30));
+        checkRoundTrip(PngEncoder.FAST, parent.getSubimage(0, 10, 120, 70));
+        checkRoundTrip(PngEncoder.COMPACT, parent.getSubimage(25, 7, 64, 65));
+    }
+
+    @Test
+    public void testForName() {
+        assertNull(PngEncoder.forName("imageio"));
+        assertSame(PngEncoder.FAST, PngEncoder.forName("fast"));
+        assertSame(PngEncoder.COMPACT, PngEncoder.forName("compact"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownName() {
+        PngEncoder.forName("gif");
+    }
+
+    private static void checkRoundTrip(PngEncoder encoder, BufferedImage image)
+            throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encoder.write(image, os);
+        checkZlibStream(os.toByteArray(), image.getWidth(), image.getHeight());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        String err = image.getWidth() + "x" + image.getHeight() + " image of type "
+                + image.getType();
+        assertNotNull(err, decoded);
+        assertEquals(err, image.getWidth(), decoded.getWidth());
+        assertEquals(err, image.getHeight(), decoded.getHeight());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                // Alpha is dropped by the encoder
+                assertEquals(err + " at " + x + ", " + y, image.getRGB(x, y) & 0xFFFFFF,
+                        decoded.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Inflate the joined IDAT chunks, which fails on a wrong Adler-32 of the whole stream, and
+     * check that they hold exactly one filter byte and width RGB triples per row.
+     */
+    private static void checkZlibStream(byte[] png, int width, int height) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        in.skipBytes(8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        while (true) {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            byte[] data = new byte[length];
+            in.readFully(data);
+            in.readInt();
+            String name = new String(type, "US-ASCII");
+            if (name.equals("IDAT")) {
+                idat.write(data);
+            } else if (name.equals("IEND")) {
+                break;
+            }
+        }
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        byte[] raw = new byte[height * (1 + 3 * width) + 1];
+        int inflated = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(raw, inflated, raw.length - inflated);
+            assertTrue("Truncated zlib stream", n > 0 || !inflater.needsInput());
+            inflated += n;
+        }
+        assertEquals(raw.length - 1, inflated);
+        assertEquals(0, inflater.getRemaining());
+        inflater.end();
+    }
+
+    private static BufferedImage randomImage(int width, int height, int type, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage gradientImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255) / Math.max(1, width - 1);
+                int g = (y * 255) / Math.max(1, height - 1);
+                int b = (x + y) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,201 @@
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class QuadTreeTest {
+    // Bounds of the root tile, as in MapServer
+    static final double ULLAT = 37.892195547244356, ULLON = -122.2998046875,
+            LRLAT = 37.82280243352756, LRLON = -122.2119140625;
+    static final double ROOT_DPP = (LRLON - ULLON) / 256;
+
+    // A complete pyramid down to MAX_DEPTH, plus tiles below it that must be ignored
+    private static QuadTree deepest;
+
+    @BeforeClass
+    public static void buildDeepest() {
+        List<String> names = pyramid(QuadTree.MAX_DEPTH);
+        names.add(names.get(names.size() - 1) + "1");
+        names.add("12341234123");
+        deepest = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, names);
+    }
+
+    /**
+     * Only the root, at depth 0, never makes a grid: it is not split any further, and when it
+     * has enough resolution there is nothing to raster at a finer depth either.
+     */
+    @Test
+    public void testDepthZero() {
+        QuadTree root = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, pyramid(0));
+        assertEquals(0, root.maxDepth());
+        assertEquals(0, root.tileGrid(ROOT_DPP / 4, rootBox()).length);
+
+        QuadTree tree = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, pyramid(3));
+        assertEquals(0, tree.tileGrid(ROOT_DPP, rootBox()).length);
+        assertEquals(0, tree.tileGrid(ROOT_DPP * 2, rootBox()).length);
+
+        QuadTree empty = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, Collections.emptyList());
+        assertEquals(-1, empty.maxDepth());
+        assertEquals(0, empty.tileGrid(ROOT_DPP / 4, rootBox()).length);
+    }
+
+    @Test
+    public void testDepthOne() {
+        QuadTree tree = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, pyramid(1));
+        assertEquals(1, tree.maxDepth());
+        QTreeNode[][] grid = tree.tileGrid(ROOT_DPP / 2, rootBox());
+        assertEquals(2, grid.length);
+        assertEquals("1", grid[0][0].imageName);
+        assertEquals("2", grid[0][1].imageName);
+        assertEquals("3", grid[1][0].imageName);
+        assertEquals("4", grid[1][1].imageName);
+        assertEquals(ULLON, grid[0][0].ullon, 0);
+        assertEquals(ULLAT, grid[0][0].ullat, 0);
+        assertEquals(LRLON, grid[1][1].lrlon, 0);
+        assertEquals(LRLAT, grid[1][1].lrlat, 0);
+
+        // Deeper resolution than there is uses the deepest tiles
+        assertEquals(2, tree.tileGrid(ROOT_DPP / 100, rootBox()).length);
+        checkAgainstRecursive(tree, 200, 1);
+    }
+
+    @Test
+    public void testMiddleDepths() {
+        QuadTree tree = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, pyramid(5));
+        assertEquals(5, tree.maxDepth());
+        checkAgainstRecursive(tree, 3000, 2);
+    }
+
+    @Test
+    public void testMaxDepth() {
+        assertEquals(QuadTree.MAX_DEPTH, deepest.maxDepth());
+        double dpp = ROOT_DPP / (1 << QuadTree.MAX_DEPTH);
+        double width = (LRLON - ULLON) / (1 << QuadTree.MAX_DEPTH);
+        double height = (ULLAT - LRLAT) / (1 << QuadTree.MAX_DEPTH);
+        // A box of 2.5 by 1.7 tiles in the south east corner, which touches 3 by 2 tiles
+        double[] box = {LRLON - 3 * width + width / 2, LRLAT + 2 * height - height / 3,
+            LRLON, LRLAT};
+        QTreeNode[][] grid = deepest.tileGrid(dpp / 2, box);
+        assertEquals(2, grid.length);
+        assertEquals(3, grid[0].length);
+        QTreeNode corner = grid[1][2];
+        assertEquals(QuadTree.MAX_DEPTH, corner.imageName.length());
+        assertEquals("4444444444", corner.imageName);
+        assertEquals(LRLON, corner.lrlon, 1e-12);
+        assertEquals(LRLAT, corner.lrlat, 1e-12);
+        checkAgainstRecursive(deepest, 300, 3);
+    }
+
+    /** Boxes entirely outside the root give an empty grid. */
+    @Test
+    public void testOutsideRoot() {
+        QuadTree tree = new QuadTree(ULLON, ULLAT, LRLON, LRLAT, pyramid(3));
+        double w = LRLON - ULLON;
+        double h = ULLAT - LRLAT;
+        assertEquals(0, tree.tileGrid(ROOT_DPP / 8,
+                new double[]{LRLON + w, ULLAT, LRLON + 2 * w, LRLAT}).length);
+        assertEquals(0, tree.tileGrid(ROOT_DPP / 8,
+                new double[]{ULLON, LRLAT - h, LRLON, LRLAT - 2 * h}).length);
+        assertEquals(0, tree.tileGrid(ROOT_DPP / 8,
+                new double[]{ULLON - 2 * w, ULLAT + 2 * h, ULLON - w, ULLAT + h}).length);
+        checkAgainstRecursive(tree, 1000, 4);
+    }
+
+    /**
+     * Compare tileGrid with the recursive intersection search the tree used to do, on random
+     * boxes and resolutions, including boxes reaching outside the root.
+     */
+    private static void checkAgainstRecursive(QuadTree tree, int queries, long seed) {
+        Random random = new Random(seed);
+        double w = LRLON - ULLON;
+        double h = ULLAT - LRLAT;
+        for (int i = 0; i < queries; i++) {
+            double lon1 = ULLON - w / 4 + random.nextDouble() * w * 1.5;
+            double lon2 = ULLON - w / 4 + random.nextDouble() * w * 1.5;
+            double lat1 = LRLAT - h / 4 + random.nextDouble() * h * 1.5;
+            double lat2 = LRLAT - h / 4 + random.nextDouble() * h * 1.5;
+            double[] box = {Math.min(lon1, lon2), Math.max(lat1, lat2),
+                Math.max(lon1, lon2), Math.min(lat1, lat2)};
+            if (i % 7 == 0) {
+                // Exactly on tile edges
+                int side = 1 << (1 + random.nextInt(Math.max(1, tree.maxDepth())));
+                box[0] = ULLON + w * random.nextInt(side) / side;
+                box[1] = ULLAT - h * random.nextInt(side) / side;
+            }
+            double dpp = ROOT_DPP / Math.pow(2, random.nextDouble() * (tree.maxDepth() + 2));
+
+            List<QTreeNode> expected = new ArrayList<>();
+            recursive(tree, 0, 0, 0, dpp, box, expected);
+            // Top to bottom, then left to right
+            expected.sort((a, b) -> a.ullat != b.ullat ? Double.compare(b.ullat, a.ullat)
+                    : Double.compare(a.ullon, b.ullon));
+
+            List<QTreeNode> actual = new ArrayList<>();
+            QTreeNode[][] grid = tree.tileGrid(dpp, box);
+            for (QTreeNode[] row : grid) {
+                assertEquals(grid[0].length, row.length);
+                actual.addAll(Arrays.asList(row));
+            }
+            assertEquals(Arrays.toString(box) + " at dpp " + dpp, names(expected),
+                    names(actual));
+        }
+    }
+
+    /** The search of the pointer tree: children that intersect, down to enough resolution. */
+    private static void recursive(QuadTree tree, int depth, int x, int y, double dpp,
+                                  double[] box, List<QTreeNode> tiles) {
+        QTreeNode node = tree.node(depth, x, y);
+        if ((node.lrlon - node.ullon) / 256 <= dpp
+                || tree.node(depth + 1, 2 * x, 2 * y) == null) {
+            return;
+        }
+        for (int child = 0; child < 4; child++) {
+            int cx = 2 * x + (child & 1);
+            int cy = 2 * y + (child >> 1);
+            QTreeNode c = tree.node(depth + 1, cx, cy);
+            if (c.ullon > box[2] || box[0] > c.lrlon || c.ullat < box[3] || box[1] < c.lrlat) {
+                continue;
+            }
+            if ((c.lrlon - c.ullon) / 256 <= dpp
+                    || tree.node(depth + 2, 2 * cx, 2 * cy) == null) {
+                tiles.add(c);
+            }
+            recursive(tree, depth + 1, cx, cy, dpp, box, tiles);
+        }
+    }
+
+    private static List<String> names(List<QTreeNode> tiles) {
+        List<String> names = new ArrayList<>();
+        for (QTreeNode tile : tiles) {
+            names.add(tile.imageName);
+        }
+        return names;
+    }
+
+    private static double[] rootBox() {
+        return new double[]{ULLON, ULLAT, LRLON, LRLAT};
+    }
+
+    /** Names of every tile of a complete pyramid down to depth, parents first. */
+    static List<String> pyramid(int depth) {
+        List<String> names = new ArrayList<>();
+        names.add("root");
+        List<String> level = Collections.singletonList("");
+        for (int d = 1; d <= depth; d++) {
+            List<String> next = new ArrayList<>(level.size() * 4);
+            for (String parent : level) {
+                for (char quadrant = '1'; quadrant <= '4'; quadrant++) {
+                    next.add(parent + quadrant);
+                }
+            }
+            names.addAll(next);
+            level = next;
+        }
+        return names;
+    }
+}
@@ -0,0 +1,151 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+public class RasterComposerTest {
+    private static final int TILE_SIZE = MapServer.TILE_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File imgRoot;
+    private TileStore store;
+
+    // Tiles that decode to every image type the composer copies, and to types it draws
+    private static final int[] TILE_TYPES = {BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY,
+        BufferedImage.TYPE_4BYTE_ABGR};
+
+    @Before
+    public void writeTiles() throws Exception {
+        imgRoot = folder.newFolder("img");
+        Random random = new Random(24);
+        for (int i = 0; i < TILE_TYPES.length; i++) {
+            BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, TILE_TYPES[i]);
+            for (int y = 0; y < TILE_SIZE; y++) {
+                for (int x = 0; x < TILE_SIZE; x++) {
+                    // Translucent pixels in the tiles with alpha
+                    tile.setRGB(x, y, random.nextInt());
+                }
+            }
+            assertTrue(ImageIO.write(tile, "png", new File(imgRoot, name(i) + ".png")));
+        }
+        store = new TileStore(imgRoot.getPath() + "/");
+    }
+
+    /**
+     * Copying tiles straight into the buffer on several threads must give exactly the image
+     * that drawing every tile one after the other does.
+     */
+    @Test
+    public void testMatchesSequentialDraw() throws Exception {
+        QTreeNode[][] grid = new QTreeNode[3][4];
+        for (int row = 0; row < grid.length; row++) {
+            for (int col = 0; col < grid[row].length; col++) {
+                grid[row][col] = tile(name((row * 5 + col) % TILE_TYPES.length));
+            }
+        }
+        RasterComposer composer = new RasterComposer(new TileCache(store, 1 << 24), 3, 60000);
+        RasterComposer.ComposedRaster raster = composer.compose(grid);
+        assertTrue(raster.isComplete());
+        assertEquals(0, composer.deadlineMissCount());
+
+        BufferedImage expected = new BufferedImage(4 * TILE_SIZE, 3 * TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = expected.getGraphics();
+        for (int row = 0; row < grid.length; row++) {
+            for (int col = 0; col < grid[row].length; col++) {
+                BufferedImage tile = ImageIO.read(new File(imgRoot,
+                        grid[row][col].imageName + ".png"));
+                graphics.drawImage(tile, col * TILE_SIZE, row * TILE_SIZE, null);
+            }
+        }
+        graphics.dispose();
+        assertSamePixels(expected, raster.image);
+
+        // Again from the cache
+        assertSamePixels(expected, composer.compose(grid).image);
+    }
+
+    /** A tile that cannot be read is left black, and the raster is reported incomplete. */
+    @Test
+    public void testUnreadableTile() {
+        QTreeNode[][] grid = {{tile(name(0)), tile("4444")}};
+        RasterComposer composer = new RasterComposer(new TileCache(store, 1 << 24), 2, 60000);
+        RasterComposer.ComposedRaster raster = composer.compose(grid);
+        assertEquals(1, raster.missingTiles);
+        assertFalse(raster.isComplete());
+        assertEquals(0, raster.image.getRGB(TILE_SIZE + 7, 9) & 0xFFFFFF);
+        assertEquals(0, composer.deadlineMissCount());
+    }
+
+    /**
+     * With no time at all, every tile still being fetched becomes a placeholder, and the
+     * workers that finish afterwards leave the raster alone.
+     */
+    @Test
+    public void testZeroDeadline() throws Exception {
+        TileCache slowTiles = new TileCache(store, 1 << 24) {
+            @Override
+            public BufferedImage get(String imageName) throws IOException {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.get(imageName);
+            }
+        };
+        QTreeNode[][] grid = new QTreeNode[2][3];
+        for (int row = 0; row < grid.length; row++) {
+            for (int col = 0; col < grid[row].length; col++) {
+                grid[row][col] = tile(name(row * 3 + col));
+            }
+        }
+        RasterComposer composer = new RasterComposer(slowTiles, 2, 0);
+        RasterComposer.ComposedRaster raster = composer.compose(grid);
+        assertEquals(6, raster.missingTiles);
+        assertEquals(6, composer.deadlineMissCount());
+        int[] pixels = raster.image.getRGB(0, 0, 3 * TILE_SIZE, 2 * TILE_SIZE, null, 0,
+                3 * TILE_SIZE);
+        Thread.sleep(500);
+        int[] later = raster.image.getRGB(0, 0, 3 * TILE_SIZE, 2 * TILE_SIZE, null, 0,
+                3 * TILE_SIZE);
+        assertArrayEquals(pixels, later);
+        for (int pixel : later) {
+            assertEquals(RasterComposer.PLACEHOLDER_RGB, pixel & 0xFFFFFF);
+        }
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+                    fail("Pixel (" + x + ", " + y + ") is " + Integer.toHexString(
+                            actual.getRGB(x, y)) + ", not "
+                            + Integer.toHexString(expected.getRGB(x, y)));
+                }
+            }
+        }
+    }
+
+    private static String name(int i) {
+        return String.valueOf(i + 1);
+    }
+
+    private static QTreeNode tile(String imageName) {
+        return new QTreeNode(0, 0, 0, 0, imageName);
+    }
+}
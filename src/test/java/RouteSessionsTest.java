@@ -0,0 +1,56 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class RouteSessionsTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        RouteSessions sessions = new RouteSessions(3, Long.MAX_VALUE / 2);
+        RoutePath a = route(1);
+        sessions.put("a", a);
+        sessions.put("b", route(2));
+        sessions.put("c", route(3));
+        // Reading a makes b the least recently used
+        assertSame(a, sessions.get("a"));
+        sessions.put("d", route(4));
+        assertEquals(3, sessions.size());
+        assertSame(RoutePath.EMPTY, sessions.get("b"));
+        assertSame(a, sessions.get("a"));
+
+        // Replacing a route counts as a use too
+        sessions.put("c", route(5));
+        sessions.put("e", route(6));
+        assertSame(RoutePath.EMPTY, sessions.get("d"));
+        assertEquals(5, sessions.get("c").id(0));
+        assertEquals(6, sessions.get("e").id(0));
+        assertEquals(3, sessions.size());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        RouteSessions sessions = new RouteSessions(100, 20);
+        sessions.put("a", route(1));
+        sessions.put("b", route(2));
+        Thread.sleep(50);
+        assertSame(RoutePath.EMPTY, sessions.get("a"));
+        // Expired sessions are dropped as soon as another one is added
+        sessions.put("c", route(3));
+        assertEquals(1, sessions.size());
+        assertEquals(3, sessions.get("c").id(0));
+    }
+
+    @Test
+    public void testClear() {
+        RouteSessions sessions = new RouteSessions(10, 60000);
+        sessions.put("a", route(1));
+        sessions.put("b", route(2));
+        sessions.clear("a");
+        sessions.put("b", RoutePath.EMPTY);
+        assertEquals(0, sessions.size());
+        assertSame(RoutePath.EMPTY, sessions.get("a"));
+    }
+
+    private static RoutePath route(long id) {
+        return new RoutePath(new long[]{id}, new double[]{-122.25}, new double[]{37.85});
+    }
+}
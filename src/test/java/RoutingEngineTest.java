@@ -0,0 +1,202 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+public class RoutingEngineTest {
+    static final double doubleThreshhold = 0.0000000001;
+
+    /**
+     * Bidirectional A* must find routes exactly as long as A*, for every pair of a grid.
+     */
+    @Test
+    public void testBidirectionalMatchesAStar() {
+        checkBidirectional(TestGraphs.grid(10, 3));
+        checkBidirectional(TestGraphs.gridWithDuplicatesAndIsland());
+    }
+
+    @Test
+    public void testBidirectionalStartEqualsEnd() {
+        CSRGraph graph = TestGraphs.grid(4, 5);
+        RoutingEngine engine = new RoutingEngine(graph);
+        for (int v = 0; v < graph.size(); v++) {
+            LinkedList<Long> route = engine.shortestPath(v, v,
+                    RoutingEngine.Algorithm.BIDIRECTIONAL);
+            assertEquals(1, route.size());
+            assertEquals(TestGraphs.id(v), (long) route.getFirst());
+        }
+    }
+
+    @Test
+    public void testBidirectionalUnreachable() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        RoutingEngine engine = new RoutingEngine(graph);
+        assertTrue(engine.shortestPath(0, 30, RoutingEngine.Algorithm.BIDIRECTIONAL).isEmpty());
+        assertTrue(engine.shortestPath(29, 28, RoutingEngine.Algorithm.BIDIRECTIONAL).isEmpty());
+        assertTrue(engine.shortestPath(-1, 3, RoutingEngine.Algorithm.BIDIRECTIONAL).isEmpty());
+        // A route found afterwards is not affected by the state of the failed searches
+        assertFalse(engine.shortestPath(0, 28, RoutingEngine.Algorithm.BIDIRECTIONAL).isEmpty());
+    }
+
+    /**
+     * The stopping rule should leave the bidirectional search expanding fewer vertices than
+     * A* on a long route, and both report how many they expanded.
+     */
+    @Test
+    public void testExpansionCount() {
+        CSRGraph graph = TestGraphs.grid(30, 11);
+        RoutingEngine engine = new RoutingEngine(graph);
+        int start = 0;
+        int end = graph.size() - 1;
+
+        engine.shortestPath(start, end, RoutingEngine.Algorithm.ASTAR);
+        int astar = engine.lastExpansionCount();
+        engine.shortestPath(start, end, RoutingEngine.Algorithm.BIDIRECTIONAL);
+        int bidirectional = engine.lastExpansionCount();
+        assertTrue(astar > 0);
+        assertTrue(bidirectional > 0);
+        assertTrue("Expanded " + bidirectional + " of " + graph.size() + " vertices",
+                bidirectional < graph.size());
+
+        engine.shortestPath(start, start, RoutingEngine.Algorithm.BIDIRECTIONAL);
+        assertTrue(engine.lastExpansionCount() < bidirectional);
+    }
+
+    /**
+     * ALT must find routes exactly as long as A*, for every pair, with any number of
+     * landmarks, including more landmarks than vertices. The island of the second graph is
+     * reached by no landmark, so every bound between the island and the rest is skipped.
+     */
+    @Test
+    public void testAltMatchesAStar() {
+        for (CSRGraph graph : new CSRGraph[]{TestGraphs.grid(10, 7),
+            TestGraphs.gridWithDuplicatesAndIsland()}) {
+            for (int count : new int[]{1, 4, 200}) {
+                Landmarks landmarks = Landmarks.select(graph, count);
+                assertEquals(Math.min(count, graph.size()), landmarks.count());
+                checkAlt(graph, landmarks);
+            }
+        }
+    }
+
+    /** Landmark bounds never exceed the road distance, or routes would not be optimal. */
+    @Test
+    public void testLandmarkBoundsAreAdmissible() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        Landmarks landmarks = Landmarks.select(graph, 6);
+        RoutingEngine engine = new RoutingEngine(graph);
+        for (int v = 0; v < graph.size(); v++) {
+            for (int t = 0; t < graph.size(); t++) {
+                double distance = TestGraphs.routeLength(graph, engine.shortestPath(v, t), v, t);
+                double bound = landmarks.lowerBound(v, t);
+                assertTrue(v + " -> " + t, bound <= distance + doubleThreshhold);
+                if (distance == Double.POSITIVE_INFINITY) {
+                    assertEquals(0, bound, 0);
+                }
+            }
+        }
+    }
+
+    /** The landmark bound only tightens the Euclidean one, so ALT expands no more than A*. */
+    @Test
+    public void testAltExpandsLess() {
+        CSRGraph graph = TestGraphs.grid(30, 13);
+        RoutingEngine engine = new RoutingEngine(graph);
+        engine.setLandmarks(Landmarks.select(graph, 8));
+        int start = 0;
+        int end = graph.size() - 1;
+        engine.shortestPath(start, end, RoutingEngine.Algorithm.ASTAR);
+        int astar = engine.lastExpansionCount();
+        engine.shortestPath(start, end, RoutingEngine.Algorithm.ALT);
+        assertTrue(engine.lastExpansionCount() <= astar);
+
+        // Without landmarks, ALT falls back to A*
+        engine.setLandmarks(null);
+        engine.shortestPath(start, end, RoutingEngine.Algorithm.ALT);
+        assertEquals(astar, engine.lastExpansionCount());
+    }
+
+    /**
+     * Without a hierarchy, every row of the matrix is a Dijkstra that stops at its last
+     * target, and must give the A* distance of every pair, for repeated and unreachable
+     * targets, and sources or targets of -1, too.
+     */
+    @Test
+    public void testDistanceMatrixMatchesAStar() {
+        CSRGraph graph = TestGraphs.gridWithDuplicatesAndIsland();
+        RoutingEngine engine = new RoutingEngine(graph);
+        int[] sources = {0, 12, 27, 30, -1, 12, 25};
+        int[] targets = {24, 0, 24, 31, 29, 28, -1, 0, 26, 12};
+        double[][] matrix = engine.distanceMatrix(sources, targets);
+        assertEquals(sources.length, matrix.length);
+        for (int i = 0; i < sources.length; i++) {
+            assertEquals(targets.length, matrix[i].length);
+            for (int j = 0; j < targets.length; j++) {
+                double expected = sources[i] < 0 || targets[j] < 0 ? Double.POSITIVE_INFINITY
+                        : TestGraphs.routeLength(graph,
+                        engine.shortestPath(sources[i], targets[j]), sources[i], targets[j]);
+                assertEquals(sources[i] + " -> " + targets[j], expected, matrix[i][j],
+                        expected == Double.POSITIVE_INFINITY ? 0 : doubleThreshhold);
+            }
+        }
+
+        // Every pair of a larger grid, with the rows searched in parallel
+        graph = TestGraphs.grid(12, 9);
+        engine = new RoutingEngine(graph);
+        int[] all = new int[graph.size()];
+        for (int v = 0; v < all.length; v++) {
+            all[v] = v;
+        }
+        matrix = engine.distanceMatrix(all, all);
+        for (int start = 0; start < all.length; start++) {
+            for (int end = 0; end < all.length; end++) {
+                assertEquals(start + " -> " + end, TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end), start, end), matrix[start][end],
+                        doubleThreshhold);
+            }
+        }
+
+        assertEquals(0, engine.distanceMatrix(new int[0], all).length);
+        assertEquals(0, engine.distanceMatrix(all, new int[0])[0].length);
+    }
+
+    private static void checkAlt(CSRGraph graph, Landmarks landmarks) {
+        RoutingEngine engine = new RoutingEngine(graph);
+        engine.setLandmarks(landmarks);
+        for (int start = 0; start < graph.size(); start++) {
+            for (int end = 0; end < graph.size(); end++) {
+                String pair = start + " -> " + end + " with " + landmarks.count() + " landmarks";
+                double expected = TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end, RoutingEngine.Algorithm.ASTAR),
+                        start, end);
+                double actual = TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end, RoutingEngine.Algorithm.ALT),
+                        start, end);
+                assertEquals(pair, expected, actual,
+                        expected == Double.POSITIVE_INFINITY ? 0 : doubleThreshhold);
+            }
+        }
+    }
+
+    private static void checkBidirectional(CSRGraph graph) {
+        RoutingEngine engine = new RoutingEngine(graph);
+        for (int start = 0; start < graph.size(); start++) {
+            for (int end = 0; end < graph.size(); end++) {
+                String pair = start + " -> " + end;
+                double expected = TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end, RoutingEngine.Algorithm.ASTAR),
+                        start, end);
+                double actual = TestGraphs.routeLength(graph,
+                        engine.shortestPath(start, end, RoutingEngine.Algorithm.BIDIRECTIONAL),
+                        start, end);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertEquals(pair, expected, actual, 0);
+                } else {
+                    assertEquals(pair, expected, actual, doubleThreshhold);
+                    // A route from a vertex to itself is known before anything is expanded
+                    assertTrue(pair, start == end || engine.lastExpansionCount() > 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SegmentIndexTest {
+    static final double doubleThreshhold = 0.0000000001;
+
+    @Test
+    public void testNearestMatchesScan() {
+        CSRGraph graph = TestGraphs.grid(8, 13);
+        SegmentIndex index = new SegmentIndex(graph);
+        Random random = new Random(14);
+        for (int i = 0; i < 2000; i++) {
+            // Also points well outside the grid
+            double lon = -122.35 + 0.2 * random.nextDouble();
+            double lat = 37.75 + 0.2 * random.nextDouble();
+            SegmentIndex.Snap snap = index.nearest(lon, lat);
+            assertNotNull(snap);
+            assertEquals(lon + ", " + lat, scanDistance(graph, lon, lat), snap.distance,
+                    doubleThreshhold);
+            assertTrue(TestGraphs.adjacent(graph, snap.from, snap.to));
+        }
+    }
+
+    @Test
+    public void testNonFinitePoints() {
+        SegmentIndex index = new SegmentIndex(TestGraphs.grid(4, 15));
+        assertNull(index.nearest(Double.NaN, 37.85));
+        assertNull(index.nearest(-122.25, Double.NaN));
+        assertNull(index.nearest(Double.POSITIVE_INFINITY, 37.85));
+        assertNull(index.nearest(-122.25, Double.NEGATIVE_INFINITY));
+    }
+
+    @Test
+    public void testNoSegments() {
+        CSRGraph graph = TestGraphs.graph(new double[][]{{0, 0}}, new int[0][]);
+        assertNull(new SegmentIndex(graph).nearest(0, 0));
+    }
+
+    /**
+     * A self-loop is stored as a single edge and has no length, so it is not a segment. Two of
+     * them on vertex 0 make the edge count even, as if they were one segment stored twice.
+     */
+    @Test
+    public void testSelfLoops() {
+        CSRGraph graph = new CSRGraph(new long[]{TestGraphs.id(0), TestGraphs.id(1),
+            TestGraphs.id(2)}, new double[]{-122.3, -122.2, -122.19},
+                new double[]{37.9, 37.8, 37.8}, new int[]{0, 2, 3, 4}, new int[]{0, 0, 2, 1});
+        SegmentIndex index = new SegmentIndex(graph);
+        SegmentIndex.Snap snap = index.nearest(-122.3, 37.9);
+        assertEquals(1, snap.from);
+        assertEquals(2, snap.to);
+        assertEquals(Math.hypot(0.1, 0.1), snap.distance, doubleThreshhold);
+    }
+
+    /**
+     * A point beside the middle of a long road snaps onto the middle rather than onto either
+     * end, and the route leaves the snapped point towards the end of the road that leads on.
+     * 0 ---------------- 1 -- 2 -- 3
+     */
+    @Test
+    public void testRouteFromMiddleOfLongSegment() {
+        double[][] coordinates = {{0, 0}, {1, 0}, {1.1, 0}, {1.2, 0}};
+        CSRGraph graph = TestGraphs.graph(coordinates, new int[][]{{0, 1}, {1, 2}, {2, 3}});
+        SegmentIndex index = new SegmentIndex(graph);
+        RoutingEngine engine = new RoutingEngine(graph);
+
+        SegmentIndex.Snap start = index.nearest(0.4, 0.05);
+        assertEquals(0, start.from);
+        assertEquals(1, start.to);
+        assertEquals(0.4, start.fraction, doubleThreshhold);
+        assertEquals(0.05, start.distance, doubleThreshhold);
+        SegmentIndex.Snap end = index.nearest(1.15, -0.01);
+        assertEquals(2, end.from);
+        assertEquals(3, end.to);
+
+        // From the end back to the start: virtual end, 2, 1, virtual start
+        RoutePath route = engine.shortestPath(start, end);
+        assertEquals(4, route.size());
+        assertEquals(RoutePath.VIRTUAL_ID, route.id(0));
+        assertEquals(TestGraphs.id(2), route.id(1));
+        assertEquals(TestGraphs.id(1), route.id(2));
+        assertEquals(RoutePath.VIRTUAL_ID, route.id(3));
+        assertEquals(1.15, route.lon(0), doubleThreshhold);
+        assertEquals(0.4, route.lon(3), doubleThreshhold);
+        assertEquals(0, route.lat(3), doubleThreshhold);
+        assertEquals(0.75, length(route), doubleThreshhold);
+
+        // Both ends on the same segment are joined directly
+        RoutePath same = engine.shortestPath(start, index.nearest(0.9, 0.2));
+        assertEquals(2, same.size());
+        assertEquals(RoutePath.VIRTUAL_ID, same.id(0));
+        assertEquals(RoutePath.VIRTUAL_ID, same.id(1));
+        assertEquals(0.5, length(same), doubleThreshhold);
+
+        assertTrue(engine.shortestPath(start, null).isEmpty());
+    }
+
+    private static double length(RoutePath route) {
+        double length = 0;
+        for (int i = 1; i < route.size(); i++) {
+            length += Math.hypot(route.lon(i) - route.lon(i - 1), route.lat(i) - route.lat(i - 1));
+        }
+        return length;
+    }
+
+    private static double scanDistance(CSRGraph graph, double lon, double lat) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int u = 0; u < graph.size(); u++) {
+            for (int edge = graph.offsets[u]; edge < graph.offsets[u + 1]; edge++) {
+                int v = graph.targets[edge];
+                double dx = graph.lon[v] - graph.lon[u];
+                double dy = graph.lat[v] - graph.lat[u];
+                double t = ((lon - graph.lon[u]) * dx + (lat - graph.lat[u]) * dy)
+                        / (dx * dx + dy * dy);
+                t = Math.max(0, Math.min(1, t));
+                best = Math.min(best, Math.hypot(graph.lon[u] + t * dx - lon,
+                        graph.lat[u] + t * dy - lat));
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Small hand-built CSRGraphs for the routing tests, and helpers to check routes on them.
+ * Vertex i gets id 1000 + 7 * i, so ids and dense indices are never confused.
+ */
+final class TestGraphs {
+
+    private TestGraphs() {
+    }
+
+    static long id(int index) {
+        return 1000 + 7 * index;
+    }
+
+    /**
+     * @param coordinates {lon, lat} of every vertex
+     * @param edges undirected edges as {u, v} pairs of vertex indices
+     */
+    static CSRGraph graph(double[][] coordinates, int[][] edges) {
+        int n = coordinates.length;
+        List<List<Integer>> adjacency = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int[] edge : edges) {
+            adjacency.get(edge[0]).add(edge[1]);
+            adjacency.get(edge[1]).add(edge[0]);
+        }
+        long[] ids = new long[n];
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            ids[i] = id(i);
+            lon[i] = coordinates[i][0];
+            lat[i] = coordinates[i][1];
+            offsets[i + 1] = offsets[i] + adjacency.get(i).size();
+        }
+        int[] targets = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < adjacency.get(i).size(); k++) {
+                targets[offsets[i] + k] = adjacency.get(i).get(k);
+            }
+        }
+        return new CSRGraph(ids, lon, lat, offsets, targets);
+    }
+
+    /**
+     * A side by side grid with jittered coordinates, so that shortest routes are unique, and
+     * every grid edge present.
+     */
+    static CSRGraph grid(int side, long seed) {
+        Random random = new Random(seed);
+        double[][] coordinates = new double[side * side][];
+        List<int[]> edges = new ArrayList<>();
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                coordinates[y * side + x] = new double[]{
+                    -122.3 + 0.01 * x + 0.003 * random.nextDouble(),
+                    37.9 - 0.01 * y + 0.003 * random.nextDouble()};
+                if (x > 0) {
+                    edges.add(new int[]{y * side + x - 1, y * side + x});
+                }
+                if (y > 0) {
+                    edges.add(new int[]{(y - 1) * side + x, y * side + x});
+                }
+            }
+        }
+        return graph(coordinates, edges.toArray(new int[0][]));
+    }
+
+    /**
+     * A 5 by 5 jittered grid (vertices 0-24) with a tail 24 - 25 - 26 - 27 - 28 whose middle
+     * vertices 25, 26 and 27 are duplicates at the same coordinates, ie. joined by zero length
+     * edges, and a separate triangle 29 - 30 - 31 that no other vertex can reach.
+     */
+    static CSRGraph gridWithDuplicatesAndIsland() {
+        CSRGraph grid = grid(5, 42);
+        double[][] coordinates = new double[32][];
+        for (int i = 0; i < 25; i++) {
+            coordinates[i] = new double[]{grid.lon[i], grid.lat[i]};
+        }
+        double[] duplicate = {grid.lon[24] + 0.004, grid.lat[24] - 0.004};
+        coordinates[25] = duplicate.clone();
+        coordinates[26] = duplicate.clone();
+        coordinates[27] = duplicate.clone();
+        coordinates[28] = new double[]{duplicate[0] + 0.01, duplicate[1] - 0.002};
+        coordinates[29] = new double[]{-122.0, 37.0};
+        coordinates[30] = new double[]{-122.01, 37.0};
+        coordinates[31] = new double[]{-122.0, 37.01};
+
+        List<int[]> edges = new ArrayList<>();
+        for (int u = 0; u < 25; u++) {
+            for (int edge = grid.offsets[u]; edge < grid.offsets[u + 1]; edge++) {
+                if (grid.targets[edge] > u) {
+                    edges.add(new int[]{u, grid.targets[edge]});
+                }
+            }
+        }
+        edges.addAll(Arrays.asList(new int[]{24, 25}, new int[]{25, 26}, new int[]{26, 27},
+                new int[]{27, 28}, new int[]{29, 30}, new int[]{30, 31}, new int[]{31, 29}));
+        return graph(coordinates, edges.toArray(new int[0][]));
+    }
+
+    /**
+     * Check that route is a walk along graph edges from the end vertex back to the start
+     * vertex, as the routing engines return it, and get its length.
+     * @return the length of the route, or infinity for an empty route
+     */
+    static double routeLength(CSRGraph graph, LinkedList<Long> route, int start, int end) {
+        if (route.isEmpty()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (route.getFirst() != id(end) || route.getLast() != id(start)) {
+            throw new AssertionError("Route " + route + " does not run from " + id(end)
+                    + " back to " + id(start));
+        }
+        double length = 0;
+        int previous = -1;
+        for (long id : route) {
+            int current = graph.indexOf(id);
+            if (previous >= 0) {
+                if (!adjacent(graph, previous, current)) {
+                    throw new AssertionError("Route " + route + " uses a missing edge "
+                            + graph.ids[previous] + " - " + id);
+                }
+                length += graph.distance(previous, current);
+            }
+            previous = current;
+        }
+        return length;
+    }
+
+    static boolean adjacent(CSRGraph graph, int u, int v) {
+        for (int edge = graph.offsets[u]; edge < graph.offsets[u + 1]; edge++) {
+            if (graph.targets[edge] == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Generated OSM XML files for the ingest tests, large enough to span several pipeline batches.
+ * The road network is a side by side grid of nodes: rows are residential roads except every
+ * third row, which is a service road, and columns cycle through a secondary road, a footway,
+ * another secondary road and a way that is not a highway at all. Besides the grid there are
+ * buildings whose corners are nodes of their own, named locations off the roads (two of them
+ * sharing a name), named grid intersections, and nodes no way references.
+ */
+final class TestOSMFiles {
+
+    private TestOSMFiles() {
+    }
+
+    static final long BUILDING_IDS = 1000000, LOCATION_IDS = 2000000, ORPHAN_IDS = 3000000;
+    static final String[] LOCATIONS = {"Cafe Strada", "CAFE STRADA.", "Berkeley Bowl",
+        "Sather Gate", "Top Dog", "Sather Tower"};
+
+    static long id(int x, int y, int side) {
+        return 1 + (long) y * side + x;
+    }
+
+    /**
+     * @param otherWays whether to include the ways that are not allowed highways: the service
+     *                  rows, footway columns, untagged columns and buildings
+     */
+    static void write(File file, int side, boolean otherWays) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            out.println(" <bounds minlat=\"37.8\" minlon=\"-122.3\" maxlat=\"37.9\""
+                    + " maxlon=\"-122.2\"/>");
+            for (int y = 0; y < side; y++) {
+                for (int x = 0; x < side; x++) {
+                    String name = x == y && x % 7 == 0 ? "Corner &amp; " + x : null;
+                    node(out, id(x, y, side), -122.3 + 0.001 * x, 37.9 - 0.001 * y, name);
+                }
+            }
+            int buildings = side / 4;
+            for (int i = 0; i < 4 * buildings; i++) {
+                node(out, BUILDING_IDS + i, -122.25 + 0.0001 * i, 37.85, null);
+            }
+            for (int i = 0; i < LOCATIONS.length; i++) {
+                node(out, LOCATION_IDS + i, -122.26 + 0.001 * i, 37.87, LOCATIONS[i]);
+            }
+            for (int i = 0; i < 10; i++) {
+                node(out, ORPHAN_IDS + i, -122.24, 37.86 + 0.001 * i, null);
+            }
+
+            long way = 1;
+            for (int y = 0; y < side; y++) {
+                boolean service = y % 3 == 2;
+                if (service && !otherWays) {
+                    continue;
+                }
+                out.println(" <way id=\"" + way++ + "\">");
+                for (int x = 0; x < side; x++) {
+                    out.println("  <nd ref=\"" + id(x, y, side) + "\"/>");
+                }
+                tag(out, "highway", service ? "service" : "residential");
+                tag(out, "name", "Row " + y);
+                out.println(" </way>");
+            }
+            for (int x = 0; x < side; x++) {
+                boolean secondary = x % 2 == 0;
+                if (!secondary && !otherWays) {
+                    continue;
+                }
+                out.println(" <way id=\"" + way++ + "\">");
+                for (int y = 0; y < side; y++) {
+                    out.println("  <nd ref=\"" + id(x, y, side) + "\"/>");
+                }
+                if (secondary) {
+                    tag(out, "highway", "secondary");
+                } else if (x % 4 == 1) {
+                    tag(out, "highway", "footway");
+                } else {
+                    tag(out, "barrier", "wall");
+                }
+                out.println(" </way>");
+            }
+            for (int b = 0; otherWays && b < buildings; b++) {
+                out.println(" <way id=\"" + way++ + "\">");
+                for (int corner = 0; corner <= 4; corner++) {
+                    out.println("  <nd ref=\"" + (BUILDING_IDS + 4 * b + corner % 4) + "\"/>");
+                }
+                tag(out, "building", "yes");
+                out.println(" </way>");
+            }
+            out.println("</osm>");
+        }
+    }
+
+    private static void node(PrintWriter out, long id, double lon, double lat, String name) {
+        out.print(" <node id=\"" + id + "\" lat=\"" + lat + "\" lon=\"" + lon + "\"");
+        if (name == null) {
+            out.println("/>");
+        } else {
+            out.println(">");
+            tag(out, "name", name);
+            out.println(" </node>");
+        }
+    }
+
+    private static void tag(PrintWriter out, String k, String v) {
+        out.println("  <tag k=\"" + k + "\" v=\"" + v + "\"/>");
+    }
+}
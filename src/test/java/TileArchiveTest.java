@@ -0,0 +1,151 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class TileArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File imgRoot;
+    private File archiveFile;
+    private static final String[] TILES = {"root", "1", "2", "3", "4", "11", "12", "44"};
+
+    @Before
+    public void writeTiles() throws Exception {
+        imgRoot = folder.newFolder("img");
+        Random random = new Random(23);
+        for (String name : TILES) {
+            BufferedImage tile = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 16; y++) {
+                for (int x = 0; x < 16; x++) {
+                    tile.setRGB(x, y, random.nextInt());
+                }
+            }
+            ImageIO.write(tile, "png", new File(imgRoot, name + ".png"));
+        }
+        // Not tiles: skipped when packing
+        Files.write(new File(imgRoot, "notes.txt").toPath(), new byte[]{1, 2, 3});
+        Files.write(new File(imgRoot, "5.png").toPath(), new byte[]{1, 2, 3});
+        archiveFile = new File(folder.getRoot(), "img.tiles");
+        assertEquals(TILES.length, TileArchive.write(imgRoot, archiveFile));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TileArchive archive = TileArchive.open(archiveFile);
+        assertNotNull(archive);
+        String[] sorted = TILES.clone();
+        Arrays.sort(sorted);
+        assertEquals(Arrays.asList(sorted), archive.names());
+
+        for (String name : TILES) {
+            byte[] png = Files.readAllBytes(new File(imgRoot, name + ".png").toPath());
+            ByteBuffer slice = archive.slice(name);
+            byte[] packed = new byte[slice.remaining()];
+            slice.get(packed);
+            assertArrayEquals(name, png, packed);
+
+            CRC32 crc = new CRC32();
+            crc.update(png, 0, png.length);
+            assertEquals(name, crc.getValue(), archive.crc(name));
+
+            try (InputStream in = archive.open(name)) {
+                BufferedImage expected = ImageIO.read(new File(imgRoot, name + ".png"));
+                BufferedImage actual = ImageIO.read(in);
+                assertEquals(expected.getRGB(5, 7), actual.getRGB(5, 7));
+            }
+        }
+        assertTrue(archive.contains("44"));
+        assertFalse(archive.contains("5"));
+        assertNull(archive.slice("43"));
+        assertNull(archive.open("43"));
+        assertEquals(-1, archive.crc("43"));
+    }
+
+    @Test
+    public void testTileStoreReadsArchive() throws Exception {
+        TileStore store = new TileStore(imgRoot.getPath() + "/", TileArchive.open(archiveFile));
+        TileStore folderStore = new TileStore(imgRoot.getPath() + "/");
+        for (String name : TILES) {
+            assertArrayEquals(folderStore.read(name), store.read(name));
+            assertNotNull(store.etag(name));
+        }
+        assertNull(store.etag("43"));
+    }
+
+    /** A missing file, or one that is not an archive, is rejected. */
+    @Test
+    public void testRejectsOtherFiles() throws Exception {
+        assertNull(TileArchive.open(new File(folder.getRoot(), "missing.tiles")));
+        assertNull(TileArchive.open(new File(imgRoot, "1.png")));
+        assertNull(TileArchive.open(imgRoot));
+        File empty = folder.newFile("empty.tiles");
+        assertNull(TileArchive.open(empty));
+    }
+
+    /**
+     * A corrupt index must never escape open() as an exception, so that the server falls back
+     * to the tile folder instead of failing to start.
+     */
+    @Test
+    public void testRejectsCorruptIndex() throws Exception {
+        byte[] original = Files.readAllBytes(archiveFile.toPath());
+
+        // Negative tile count
+        checkCorrupt(original, 8, new byte[]{(byte) 0x80, 0, 0, 0});
+        // More tiles than the file could index
+        checkCorrupt(original, 8, new byte[]{0x7F, 0, 0, 0});
+        // Negative name length of the first entry
+        checkCorrupt(original, 12, new byte[]{(byte) 0xFF, (byte) 0xFF});
+        // Name length beyond the end of the file
+        checkCorrupt(original, 12, new byte[]{0x7F, (byte) 0xFF});
+        // Out of order names: the first name "1" becomes "z"
+        checkCorrupt(original, 14, new byte[]{'z'});
+        // Negative tile length of the first entry, after its 1 character name and offset
+        checkCorrupt(original, 12 + 2 + 1 + 8, new byte[]{(byte) 0x80, 0, 0, 0});
+
+        for (int length : new int[]{4, 10, 13, 20, 40, original.length / 3}) {
+            Files.write(archiveFile.toPath(), Arrays.copyOf(original, length));
+            assertNull("Truncated to " + length, TileArchive.open(archiveFile));
+        }
+
+        // Random damage to the index may happen to leave a valid archive, but must not throw
+        Random random = new Random(29);
+        for (int i = 0; i < 2000; i++) {
+            byte[] damaged = original.clone();
+            for (int j = 0; j < 1 + random.nextInt(3); j++) {
+                damaged[8 + random.nextInt(150)] = (byte) random.nextInt();
+            }
+            Files.write(archiveFile.toPath(), damaged);
+            TileArchive archive = TileArchive.open(archiveFile);
+            if (archive != null) {
+                for (String name : archive.names()) {
+                    assertNotNull(archive.slice(name));
+                }
+            }
+        }
+    }
+
+    private void checkCorrupt(byte[] original, int position, byte[] bytes) throws Exception {
+        Files.write(archiveFile.toPath(), original);
+        try (RandomAccessFile raf = new RandomAccessFile(archiveFile, "rw")) {
+            raf.seek(position);
+            raf.write(bytes);
+        }
+        assertNull("Corrupted at " + position, TileArchive.open(archiveFile));
+    }
+}
@@ -0,0 +1,113 @@
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+public class TileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TileStore store;
+    // Decoded size of every tile, which are all alike
+    private long tileBytes;
+
+    @Before
+    public void writeTiles() throws Exception {
+        File imgRoot = folder.newFolder("img");
+        Random random = new Random(1);
+        for (String name : new String[]{"1", "2", "3", "4", "11"}) {
+            BufferedImage tile = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 32; y++) {
+                for (int x = 0; x < 32; x++) {
+                    tile.setRGB(x, y, random.nextInt());
+                }
+            }
+            ImageIO.write(tile, "png", new File(imgRoot, name + ".png"));
+        }
+        store = new TileStore(imgRoot.getPath() + "/");
+        TileCache probe = new TileCache(store, Long.MAX_VALUE);
+        probe.get("1");
+        tileBytes = probe.sizeInBytes();
+        assertTrue(tileBytes >= 32 * 32 * 3);
+    }
+
+    @Test
+    public void testHitsReturnTheCachedTile() throws Exception {
+        TileCache cache = new TileCache(store, 10 * tileBytes);
+        BufferedImage tile = cache.get("2");
+        assertSame(tile, cache.get("2"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.size());
+        assertEquals(tileBytes, cache.sizeInBytes());
+
+        // Clearing drops the tiles but keeps the counters
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+        assertNotSame(tile, cache.get("2"));
+        assertEquals(2, cache.missCount());
+    }
+
+    /** Once full, the least recently used tile is evicted, where a hit counts as a use. */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        TileCache cache = new TileCache(store, 3 * tileBytes);
+        BufferedImage one = cache.get("1");
+        cache.get("2");
+        cache.get("3");
+        assertEquals(0, cache.evictionCount());
+        // Reading 1 makes 2 the least recently used
+        assertSame(one, cache.get("1"));
+        cache.get("4");
+        assertEquals(1, cache.evictionCount());
+        assertEquals(3, cache.size());
+        assertEquals(3 * tileBytes, cache.sizeInBytes());
+
+        long misses = cache.missCount();
+        assertSame(one, cache.get("1"));
+        cache.get("3");
+        cache.get("4");
+        assertEquals(misses, cache.missCount());
+        // 2 was evicted, and reading it again evicts 1
+        cache.get("2");
+        assertEquals(misses + 1, cache.missCount());
+        assertEquals(2, cache.evictionCount());
+        assertNotSame(one, cache.get("1"));
+        assertTrue(cache.sizeInBytes() <= 3 * tileBytes);
+    }
+
+    /** A tile larger than the whole budget is returned, but never cached. */
+    @Test
+    public void testOversizedTile() throws Exception {
+        TileCache cache = new TileCache(store, tileBytes - 1);
+        BufferedImage tile = cache.get("11");
+        assertNotNull(tile);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.sizeInBytes());
+        assertNotSame(tile, cache.get("11"));
+        assertEquals(2, cache.missCount());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testMissingTile() throws Exception {
+        TileCache cache = new TileCache(store, 10 * tileBytes);
+        try {
+            cache.get("44");
+            fail("Read a tile that does not exist");
+        } catch (IOException expected) {
+            // The TileStore cannot open it
+        }
+        assertEquals(1, cache.missCount());
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,45 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TileStoreTest {
+
+    private static final String ETAG = "\"1f3a-15e2c\"";
+
+    @Test
+    public void testIfNoneMatch() {
+        assertTrue(TileStore.matchesIfNoneMatch(ETAG, ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch("*", ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch("\"a\", " + ETAG, ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch(ETAG + ",\"b\"", ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch("\"a\",\t \"b\" , " + ETAG + " ", ETAG));
+        // Weak comparison, on either side
+        assertTrue(TileStore.matchesIfNoneMatch("W/" + ETAG, ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch("\"a\", W/" + ETAG, ETAG));
+        assertTrue(TileStore.matchesIfNoneMatch(ETAG, "W/" + ETAG));
+        // Commas inside a tag do not split it
+        assertTrue(TileStore.matchesIfNoneMatch("\"a,b\", " + ETAG, ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("\"1f3a,-15e2c\"", ETAG));
+    }
+
+    @Test
+    public void testIfNoneMatchMisses() {
+        assertFalse(TileStore.matchesIfNoneMatch(null, ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("", ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("\"a\", \"b\"", ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("\"1f3a-15e2\"", ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("\"1f3a-15e2c", ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("1f3a-15e2c", ETAG));
+        assertFalse(TileStore.matchesIfNoneMatch("\"1f3a-15e2cc\"", ETAG));
+    }
+
+    @Test
+    public void testIsValidName() {
+        assertTrue(TileStore.isValidName("root"));
+        assertTrue(TileStore.isValidName("1"));
+        assertTrue(TileStore.isValidName("1234"));
+        assertFalse(TileStore.isValidName(""));
+        assertFalse(TileStore.isValidName("5"));
+        assertFalse(TileStore.isValidName("12/../root"));
+        assertFalse(TileStore.isValidName("root.png"));
+    }
+}
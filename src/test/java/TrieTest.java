@@ -0,0 +1,185 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+public class TrieTest {
+
+    // Shared prefixes, words that are prefixes of other words, and single child chains
+    private static final List<String> WORDS = Arrays.asList(
+            "a", "an", "and", "ant", "anthem", "anthology", "b", "berkeley", "berkeley bowl",
+            "berkeley marina", "berkeley way", "bart", "barton", "cafe", "cafe strada", "caffe",
+            "cal", "california", "california hall", "zzz");
+    private static final ToIntFunction<String> WEIGHT = word -> word.length() % 4;
+
+    @Test
+    public void testAutoSuggestionsMatchFilter() {
+        Trie trie = trie(words());
+        checkAutoSuggestions(trie, words());
+    }
+
+    @Test
+    public void testTopSuggestionsMatchSort() {
+        Trie trie = trie(words());
+        trie.rank(3, WEIGHT);
+        checkTopSuggestions(trie, words());
+    }
+
+    /**
+     * Without ranking, topSuggestions is the first k words of getAutoSuggestions.
+     */
+    @Test
+    public void testUnrankedTopSuggestions() {
+        Trie trie = trie(words());
+        for (String prefix : prefixes(words())) {
+            List<String> all = trie.getAutoSuggestions(prefix);
+            for (int k : new int[]{0, 1, 2, 1000}) {
+                List<String> top = trie.topSuggestions(prefix, k);
+                if (all == null) {
+                    assertNull(prefix, top);
+                } else {
+                    assertEquals(prefix, all.subList(0, Math.min(k, all.size())), top);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserting after a query has frozen the trie thaws it, and the next query sees every word,
+     * still ranked with the same weights.
+     */
+    @Test
+    public void testInsertAfterFreeze() {
+        List<String> first = words().subList(0, words().size() / 2);
+        List<String> all = words();
+        Trie trie = trie(first);
+        trie.rank(2, WEIGHT);
+        checkAutoSuggestions(trie, first);
+        checkTopSuggestions(trie, first);
+
+        for (String word : all.subList(first.size(), all.size())) {
+            trie.insert(word);
+        }
+        checkAutoSuggestions(trie, all);
+        checkTopSuggestions(trie, all);
+
+        // Words inserted again do not show up twice
+        trie.insert("berkeley");
+        trie.insert("a");
+        checkAutoSuggestions(trie, all);
+    }
+
+    @Test
+    public void testEmptyPrefix() {
+        Trie trie = trie(words());
+        assertFalse(trie.startsWith(""));
+        List<String> everything = new ArrayList<>(trie.getAutoSuggestions(""));
+        Collections.sort(everything);
+        assertEquals(sorted(new LinkedHashSet<>(words())), everything);
+
+        Trie empty = new Trie();
+        assertEquals(Collections.emptyList(), empty.getAutoSuggestions(""));
+        assertNull(empty.getAutoSuggestions("a"));
+        assertFalse(empty.startsWith("a"));
+    }
+
+    private static void checkAutoSuggestions(Trie trie, List<String> words) {
+        for (String prefix : prefixes(words)) {
+            List<String> expected = filter(words, prefix);
+            List<String> actual = trie.getAutoSuggestions(prefix);
+            if (expected.isEmpty() && !prefix.isEmpty()) {
+                assertNull(prefix, actual);
+                assertFalse(prefix, trie.startsWith(prefix));
+            } else {
+                assertNotNull(prefix, actual);
+                assertEquals(prefix, actual.size(), new LinkedHashSet<>(actual).size());
+                assertEquals(prefix, expected, sorted(actual));
+                assertEquals(prefix, !prefix.isEmpty(), trie.startsWith(prefix));
+            }
+        }
+    }
+
+    private static void checkTopSuggestions(Trie trie, List<String> words) {
+        Comparator<String> ranking = Comparator.comparingInt((String w) -> -WEIGHT.applyAsInt(w))
+                .thenComparingInt(String::length)
+                .thenComparing(w -> w);
+        for (String prefix : prefixes(words)) {
+            List<String> expected = filter(words, prefix);
+            expected.sort(ranking);
+            // Within, at and beyond the cached k
+            for (int k : new int[]{0, 1, 2, 3, 5, 1000}) {
+                List<String> actual = trie.topSuggestions(prefix, k);
+                if (expected.isEmpty() && !prefix.isEmpty()) {
+                    assertNull(prefix, actual);
+                } else {
+                    assertEquals(prefix + ", k = " + k,
+                            expected.subList(0, Math.min(k, expected.size())), actual);
+                }
+            }
+        }
+    }
+
+    /** The distinct words starting with prefix, sorted. */
+    private static List<String> filter(List<String> words, String prefix) {
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                distinct.add(word);
+            }
+        }
+        return sorted(distinct);
+    }
+
+    private static List<String> sorted(Iterable<String> words) {
+        List<String> list = new ArrayList<>();
+        words.forEach(list::add);
+        Collections.sort(list);
+        return list;
+    }
+
+    /** Every prefix of every word, the empty prefix, and prefixes no word has. */
+    private static List<String> prefixes(List<String> words) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        prefixes.add("");
+        for (String word : words) {
+            for (int i = 1; i <= word.length(); i++) {
+                prefixes.add(word.substring(0, i));
+            }
+            prefixes.add(word + "!");
+        }
+        prefixes.addAll(Arrays.asList("q", "berkeleyx", "bx", "cafe  "));
+        return new ArrayList<>(prefixes);
+    }
+
+    /** The fixed words and random ones over a small alphabet, which share many prefixes. */
+    private static List<String> words() {
+        List<String> words = new ArrayList<>(WORDS);
+        Random random = new Random(17);
+        for (int i = 0; i < 300; i++) {
+            int length = 1 + random.nextInt(7);
+            StringBuilder word = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                word.append("abc ".charAt(random.nextInt(4)));
+            }
+            words.add(word.toString());
+        }
+        return words.stream().filter(w -> !w.isEmpty()).collect(Collectors.toList());
+    }
+
+    private static Trie trie(List<String> words) {
+        Trie trie = new Trie();
+        for (String word : words) {
+            trie.insert(word);
+        }
+        return trie;
+    }
+}